@@ -39,6 +39,19 @@ public abstract class Benchmark {
    * Timeout Dialation property.
    */
   private static final String TIMEOUT_DIALATION_PROPERTY = "dacapo.timeout.dialation"; 
+  /**
+   * Heap dump file property, read by the EMI HeapDumper.
+   */
+  private static final String DUMP_FILE_PROPERTY = "dump_file";
+
+  /**
+   * Request id property, read by the EMI HeapDumper (server mode only).
+   */
+  private static final String DUMP_REQUEST_PROPERTY = "dump_request";
+  /**
+   * File to write the output digest of the (last) iteration to.
+   */
+  private static final String OUTPUT_DIGEST_PROPERTY = "output_digest";
   
   /*
    * Class variables
@@ -120,6 +133,12 @@ public abstract class Benchmark {
    */
   protected ClassLoader loader;
 
+  /**
+   * Classloader for the unmutated benchmark, which the mutated loaders delegate
+   * to. Kept so that server mode can swap mutants without re-extracting jars.
+   */
+  private ClassLoader dacapoLoader;
+
   /** Saved classloader across iterations */
   private ClassLoader savedClassLoader;
 
@@ -147,6 +166,19 @@ public abstract class Benchmark {
 
   protected Method method;
 
+  /**
+   * Name and parameters of the benchmark entry point, so that server mode can
+   * resolve it again in each mutant's class loader.
+   */
+  private String methodClass;
+  private String methodName;
+  private Class<?>[] methodParameters;
+
+  /**
+   * Digest of the last iteration's standard output and error.
+   */
+  private String outputDigest;
+
   /**
    * Run a benchmark. This is final because individual benchmarks should not
    * interfere with the flow of control.
@@ -157,6 +189,18 @@ public abstract class Benchmark {
    * @throws Exception Whatever exception the target application dies with
    */
   public final boolean run(Callback callback, String size) throws Exception {
+    if (MutatedClassLoader.serverMode()) {
+      return serve(callback, size);
+    }
+    boolean valid = runIteration(callback, size);
+    String digestFile = System.getProperty(OUTPUT_DIGEST_PROPERTY);
+    if (digestFile != null) {
+      writeFile(new File(digestFile), (outputDigest + "\n").getBytes());
+    }
+    return valid;
+  }
+
+  private boolean runIteration(Callback callback, String size) throws Exception {
     iteration++;
     if (iteration == 1) {
       prepare(size);
@@ -193,11 +237,150 @@ public abstract class Benchmark {
     callback.stop(duration);
 
     boolean valid = validate(size);
+    outputDigest = digestOutput();
     callback.complete(config.name, valid);
     postIteration(size);
     return valid;
   }
 
+  /**
+   * Server mode: keep this JVM, the extracted jars and data and the
+   * DacapoClassLoader alive, and run one iteration per mutant read from
+   * standard input. Each request is a line
+   *
+   *   nonce TAB mutant-path [TAB heap-dump-file [TAB coverage-file]]
+   *
+   * where empty files are skipped, and each response is a line on standard
+   * output
+   *
+   *   nonce TAB DONE TAB mutant-path TAB (PASSED|FAILED) TAB msec TAB output-digest
+   *   nonce TAB ERROR TAB mutant-path TAB message
+   *
+   * The benchmark prints to the same standard output, so the client only
+   * takes lines starting with its request's nonce as the response. The nonce
+   * also identifies the request to the EMI HeapDumper, which dumps at most
+   * once per request.
+   * The server stops at end of input or on an empty line.
+   */
+  private boolean serve(Callback callback, String size) throws Exception {
+    BufferedReader requests = new BufferedReader(new InputStreamReader(System.in));
+    String request;
+    while ((request = requests.readLine()) != null && !request.isEmpty()) {
+      String[] parts = request.split("\t");
+      String nonce = parts[0];
+      String mutant = parts.length > 1 ? parts[1] : "";
+      String dumpFile = (parts.length > 2 && !parts[2].isEmpty()) ? parts[2] : null;
+      String coverageFile = (parts.length > 3 && !parts[3].isEmpty()) ? parts[3] : null;
+      try {
+        useMutant(mutant);
+        System.setProperty(DUMP_REQUEST_PROPERTY, nonce);
+        if (dumpFile != null) {
+          System.setProperty(DUMP_FILE_PROPERTY, dumpFile);
+        } else {
+          System.clearProperty(DUMP_FILE_PROPERTY);
+        }
+        if (coverageFile != null) {
+          coverage("reset");
+        }
+
+        final long start = System.currentTimeMillis();
+        boolean valid = runIteration(callback, size);
+        final long duration = System.currentTimeMillis() - start;
+
+        if (coverageFile != null) {
+          writeFile(new File(coverageFile), (byte[]) coverage("getExecutionData", true));
+        }
+        savedOut.println(nonce + "\tDONE\t" + mutant + "\t" + (valid ? "PASSED" : "FAILED") + "\t" + duration + "\t" + outputDigest);
+      } catch (Throwable t) {
+        savedOut.println(nonce + "\tERROR\t" + mutant + "\t" + t.toString().replace('\n', ' '));
+      } finally {
+        releaseMutant();
+      }
+      savedOut.flush();
+    }
+    return true;
+  }
+
+  /**
+   * Digest of the last iteration's standard output and error, so that a
+   * mutant's output can be compared with that of the program it came from.
+   */
+  private String digestOutput() {
+    StringBuilder digests = new StringBuilder();
+    for (String file : new String[] { "$stdout", "$stderr" }) {
+      String digest;
+      try {
+        digest = Digest.toString(FileDigest.get(fileInScratch(file), true, true, scratch));
+      } catch (IOException e) {
+        digest = "<none>";
+      }
+      if (digests.length() > 0) {
+        digests.append(',');
+      }
+      digests.append(file).append('=').append(digest);
+    }
+    return digests.toString();
+  }
+
+  /**
+   * Replace the benchmark class loader with one for the given mutant, layered
+   * over the cached DacapoClassLoader. The benchmark entry point is resolved
+   * again so that it comes from the mutant.
+   */
+  private void useMutant(String mutatedPath) throws Exception {
+    releaseMutant();
+    rememberMethod();
+    loader = MutatedClassLoader.create(dacapoLoader, mutatedPath);
+    if (methodClass != null) {
+      method = loader.loadClass(methodClass).getMethod(methodName, methodParameters);
+    }
+  }
+
+  private void rememberMethod() {
+    if (methodClass == null && method != null) {
+      methodClass = method.getDeclaringClass().getName();
+      methodName = method.getName();
+      methodParameters = method.getParameterTypes();
+    }
+  }
+
+  /**
+   * Drop every reference the harness holds to the current mutant's loader, so
+   * that its classes can be unloaded.
+   */
+  private void releaseMutant() throws IOException {
+    if (loader instanceof MutatedClassLoader) {
+      rememberMethod();
+      ((MutatedClassLoader) loader).close();
+      loader = null;
+      method = null;
+    }
+  }
+
+  /**
+   * Invoke a method of the JaCoCo agent (if running with -javaagent), through
+   * reflection since the agent is not on the harness class path at compile time.
+   */
+  private static Object coverage(String name, Object... args) throws Exception {
+    Class<?> rt = Class.forName("org.jacoco.agent.rt.RT");
+    Class<?> agentInterface = Class.forName("org.jacoco.agent.rt.IAgent");
+    Object agent = rt.getMethod("getAgent").invoke(null);
+    Class<?>[] types = new Class<?>[args.length];
+    for (int i = 0; i < args.length; i++) {
+      types[i] = (args[i] instanceof Boolean) ? boolean.class : args[i].getClass();
+    }
+    return agentInterface.getMethod(name, types).invoke(agent, args);
+  }
+
+  private static void writeFile(File file, byte[] data) throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(data);
+    } finally {
+      output.close();
+    }
+  }
+
   /**
    * When an instance of a Benchmark is created, it is expected to prepare its
    * scratch directory, unloading files from the jar file if required.
@@ -233,8 +416,10 @@ public abstract class Benchmark {
       }
     }
     prepareJars();
-    // one-line patch: wrap DacapoClassLoader with MutatedClassLoader
-    loader = MutatedClassLoader.create(DacapoClassLoader.create(config, scratch));
+    // patch: wrap DacapoClassLoader with MutatedClassLoader
+    dacapoLoader = DacapoClassLoader.create(config, scratch);
+    // In server mode the mutants arrive later (see serve), so start from the unmutated benchmark.
+    loader = MutatedClassLoader.serverMode() ? dacapoLoader : MutatedClassLoader.create(dacapoLoader);
     prepare();
   }
 
@@ -12,13 +12,26 @@ import org.dacapo.parser.Config;
  */
 public class MutatedClassLoader extends URLClassLoader {
   private static final String MUTATED_PATH_PROP = "mutated_path";
+  private static final String SERVER_PROP = "mutant_server";
+
+  /**
+   * Whether the harness should run as a server, reading mutant paths from
+   * standard input (see Benchmark#serve). Enabled with -Dmutant_server=true.
+   */
+  public static boolean serverMode() {
+    return Boolean.getBoolean(SERVER_PROP);
+  }
+
   public static MutatedClassLoader create(ClassLoader parent) {
     String mutatedPath = System.getProperty(MUTATED_PATH_PROP);
     if (mutatedPath == null) {
         System.err.println("Expected a mutated path to be set. Use -Dmutated_path to set one.");
         System.exit(-1);
     }
+    return create(parent, mutatedPath);
+  }
 
+  public static MutatedClassLoader create(ClassLoader parent, String mutatedPath) {
     MutatedClassLoader result = null;
     try {
       result = new MutatedClassLoader(new URL[]{ Paths.get(mutatedPath).toUri().toURL() }, parent);
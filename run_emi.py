@@ -30,12 +30,11 @@ def log(msg: str):
 
 
 
-def run_emi(registry: str, seed: str):
+def run_emi(registry: str, seed: str, single_run: bool):
     project_root = os.getcwd()
     bazel_bin = check_path(project_root, "bazel-bin", hint="Executable should be run from the bazel project root.")
     heap_dump_lib = check_path(bazel_bin, "libheap-dump.jar", hint="The heap-dump library should be built.")
     jacoco_lib = check_path(project_root, "lib", "jacocoagent.jar")
-    jacoco_cli = check_path(project_root, "lib", "jacococli.jar")
 
 
     os.chdir(registry)
@@ -48,10 +47,17 @@ def run_emi(registry: str, seed: str):
     while True:
         current_path = current if current == "seed" else check_path(mutants, current)
 
-        # 1. Generate heap dump
         heap_dump_file = os.path.join(dumps, f"{current}.hprof")
-        log(f"Running {current}. Dumping heap to {heap_dump_file}.")
-        execute([run_script, current_path, "--dump-lib", heap_dump_lib, "--output", heap_dump_file])
+        coverage_file = os.path.join(coverage, f"{current}.exec")
+        if single_run:
+            # 1+3. Generate heap dump and profile in a single execution
+            log(f"Running {current}. Dumping heap to {heap_dump_file} and coverage to {coverage_file}.")
+            execute([run_script, current_path, "--dump-lib", heap_dump_lib, "--output", heap_dump_file,
+                     "--coverage", coverage_file, "--jacoco", jacoco_lib])
+        else:
+            # 1. Generate heap dump
+            log(f"Running {current}. Dumping heap to {heap_dump_file}.")
+            execute([run_script, current_path, "--dump-lib", heap_dump_lib, "--output", heap_dump_file])
 
         # Currently disabled, since heap dumps are more of a nuisance than a benefit right now
         # 2. Compare outputs
@@ -63,19 +69,16 @@ def run_emi(registry: str, seed: str):
         #         cwd=project_root
         #     )
 
-        # 3. Profile mutant
-        log(f"Re-running {current} to obtain coverage.")
-        coverage_file = os.path.join(coverage, f"{current}.exec")
-        execute([run_script, current_path, "--dump-lib", heap_dump_lib, "--output", coverage_file, "--profile", "--jacoco", jacoco_lib])
-        # Convert to an XML report
-        coverage_report = os.path.join(coverage, f"{current}.xml")
-        execute(["java", "-jar", jacoco_cli, "report", coverage_file, "--classfiles", current_path, "--xml", coverage_report])
+        if not single_run:
+            # 3. Profile mutant
+            log(f"Re-running {current} to obtain coverage.")
+            execute([run_script, current_path, "--dump-lib", heap_dump_lib, "--output", coverage_file, "--profile", "--jacoco", jacoco_lib])
 
         # 4. Generate EMI mutant
         next = secrets.token_hex(8)
         log(f"Creating a mutant of {current} as {next}.")
         execute(
-            ["bazel", "run", ":mutator", "--", "--registry", registry, "--variant", current, "--new-variant", next, "--coverage", coverage_report],
+            ["bazel", "run", ":mutator", "--", "--registry", registry, "--variant", current, "--new-variant", next, "--coverage", coverage_file],
             cwd=project_root
         )
 
@@ -84,7 +87,7 @@ def run_emi(registry: str, seed: str):
 
 def main():
     args = parse_args()
-    run_emi(args.registry, args.seed)
+    run_emi(args.registry, args.seed, args.single_run)
     seed = args.seed
 
 
@@ -96,6 +99,8 @@ def parse_args():
     parser.add_argument("registry", help="path to the EMI registry")
     parser.add_argument("--seed", default="seed",
                         help="Variant to start EMI mutations from (default is seed)")
+    parser.add_argument("--single-run", action="store_true",
+                        help="Collect the heap dump and coverage in one execution of each variant")
 
     return parser.parse_args()
 
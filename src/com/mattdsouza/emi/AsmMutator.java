@@ -0,0 +1,595 @@
+package com.mattdsouza.emi;
+
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Applies EMIMutator's mutations (TRUE_GUARD and ALLOC) to class files directly with ASM's tree API, rather than
+// round-tripping classes through Soot's Jimple. Sites are bytecode offsets, like coverage, so neither Soot nor its
+// patched build is needed. Only the target methods of a class are rewritten (with their frames recomputed); its other
+// methods are copied byte for byte.
+// In bytecode, a "statement" is a run of instructions from one point where the operand stack is empty to the next.
+// Sites are the statements' first instructions (see statements).
+class AsmMutator {
+    private final long seed;
+    // Targets by class name, then by method name and descriptor.
+    private final Map<String, Map<String, MutationPlan.Target>> targets = new TreeMap<>();
+
+    AsmMutator(MutationPlan plan) {
+        this.seed = plan.seed;
+        for (MutationPlan.Target target : plan.targets) {
+            this.targets.computeIfAbsent(target.className, k -> new TreeMap<>()).put(target.methodWithDescriptor, target);
+        }
+    }
+
+    // Writes the classes each mutant of a batch mutates to its output directory.
+    static void writeMutants(String classPath, List<MutationPlan> plans, List<Path> outputPaths) throws IOException {
+        try (ClassHierarchy hierarchy = new ClassHierarchy(classPath)) {
+            for (int i = 0; i < plans.size(); i++) {
+                AsmMutator mutator = new AsmMutator(plans.get(i));
+                for (String className : plans.get(i).classNames()) {
+                    String internalName = className.replace('.', '/');
+                    byte[] classFile = hierarchy.read(internalName);
+                    if (classFile == null) {
+                        System.out.printf("Class %s not found.\n", className);
+                        continue;
+                    }
+                    byte[] mutated = mutator.mutate(className, classFile, hierarchy);
+                    if (mutated != null) {
+                        Path output = outputPaths.get(i).resolve(internalName + ".class");
+                        Files.createDirectories(output.getParent());
+                        Files.write(output, mutated);
+                    }
+                }
+            }
+        }
+    }
+
+    // Indexes the given classes of a variant, adding (or replacing) their sites: the bytecode statements of each method.
+    static void index(MutationSites sites, String classPath, Collection<String> classNames) throws IOException {
+        try (ClassHierarchy hierarchy = new ClassHierarchy(classPath)) {
+            for (String className : classNames) {
+                sites.addClass(className);
+                byte[] classFile = hierarchy.read(className.replace('.', '/'));
+                if (classFile == null) {
+                    continue;
+                }
+                OffsetReader reader = new OffsetReader(classFile);
+                for (int i = 0; i < reader.node.methods.size(); i++) {
+                    MethodNode method = reader.node.methods.get(i);
+                    // Mutating constructors is asking for problems.
+                    if (method.instructions.size() == 0 || method.name.equals("<init>")) {
+                        continue;
+                    }
+                    List<MutationSites.Site> methodSites = new ArrayList<>();
+                    try {
+                        for (Statement statement : statements(reader.node.name, method, reader.offsets.get(i))) {
+                            methodSites.add(new MutationSites.Site(statement.offset, statement.kind,
+                                    BytecodeCoverage.Level.UNKNOWN));
+                        }
+                    } catch (AnalyzerException e) {
+                        System.out.printf("Could not index %s.%s%s: %s\n",
+                                className, method.name, method.desc, e.getMessage());
+                    }
+                    if (!methodSites.isEmpty()) {
+                        sites.put(className, method.name + method.desc, methodSites);
+                    }
+                }
+            }
+        }
+    }
+
+    // Returns the class file with the class's target methods mutated, or null if none was.
+    byte[] mutate(String className, byte[] classFile, ClassHierarchy hierarchy) {
+        Map<String, MutationPlan.Target> classTargets = targets.get(className);
+        if (classTargets == null) {
+            return null;
+        }
+        OffsetReader reader = new OffsetReader(classFile);
+        Map<String, MethodNode> mutated = new HashMap<>();
+        for (int i = 0; i < reader.node.methods.size(); i++) {
+            MethodNode method = reader.node.methods.get(i);
+            MutationPlan.Target target = classTargets.get(method.name + method.desc);
+            // Mutating constructors is asking for problems.
+            if (target == null || method.name.equals("<init>")) {
+                continue;
+            }
+            try {
+                if (mutate(reader.node, method, reader.offsets.get(i), target)) {
+                    mutated.put(method.name + method.desc, frame(reader.node, method, hierarchy));
+                    System.out.printf("Mutated %s.%s with strategy %s.\n", className, target.methodWithDescriptor, target.mutation);
+                }
+            } catch (AnalyzerException | RuntimeException e) {
+                System.out.printf("Could not mutate %s.%s: %s\n", className, target.methodWithDescriptor, e);
+            }
+        }
+        if (mutated.isEmpty()) {
+            return null;
+        }
+
+        // Replace the mutated methods, in place. The writer shares the reader's constant pool, and copies the other
+        // methods without decoding them.
+        ClassReader original = new ClassReader(classFile);
+        ClassWriter writer = new ClassWriter(original, 0);
+        original.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                MethodNode replacement = mutated.get(name + descriptor);
+                if (replacement != null) {
+                    replacement.accept(writer);
+                    return null;
+                }
+                return super.visitMethod(access, name, descriptor, signature, exceptions);
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    // Applies a target's mutation to a method. Returns false if the target's site isn't in the method.
+    private boolean mutate(ClassNode owner, MethodNode method, int[] offsets, MutationPlan.Target target)
+            throws AnalyzerException {
+        Statement choice = null;
+        for (Statement statement : statements(owner.name, method, offsets)) {
+            if (statement.offset == target.site.offset && statement.kind == target.site.kind) {
+                choice = statement;
+                break;
+            }
+        }
+        if (choice == null) {
+            System.out.printf("Site %d (%s) of %s.%s not found; the site index is out of date.\n",
+                    target.site.offset, target.site.kind, target.className, target.methodWithDescriptor);
+            return false;
+        }
+
+        // A method's randomness doesn't depend on which other methods were mutated before it.
+        Random random = target.random(seed);
+        switch (target.mutation) {
+            case ALLOC:
+                runAlloc(method, choice);
+                break;
+            case TRUE_GUARD:
+                runTrueGuard(method, choice, random);
+                break;
+            default:
+                throw new RuntimeException("Unknown mutation " + target.mutation.toString());
+        }
+        return true;
+    }
+
+    // Wraps the chosen statement (a live, guardable site) in an always-true guard, like EMIMutator.runTrueGuard.
+    private static void runTrueGuard(MethodNode method, Statement choice, Random random) {
+        int guard = method.maxLocals++;
+        int value = random.nextInt();
+
+        // Assign the guard before anything else, so it's definitely assigned everywhere (including in handlers).
+        InsnList init = new InsnList();
+        init.add(new LdcInsnNode(value));
+        init.add(new VarInsnNode(Opcodes.ISTORE, guard));
+        method.instructions.insert(init);
+
+        // The else branch is dead, but some statements need something in it to pass bytecode verification: locals
+        // are checked for definite assignment, and a method can't fall off a return.
+        // Unlike in Jimple, a bytecode statement can store to locals before its last instruction (e.g. a condition
+        // like "(x = next()) != 0"), so every local it stores to is assigned.
+        InsnList elses = new InsnList();
+        AbstractInsnNode last = choice.last;
+        for (AbstractInsnNode insn = choice.first; insn != last.getNext(); insn = insn.getNext()) {
+            if (insn.getOpcode() >= Opcodes.ISTORE && insn.getOpcode() <= Opcodes.ASTORE) {
+                elses.add(pushValue(storedType(insn.getOpcode()), random));
+                elses.add(new VarInsnNode(insn.getOpcode(), ((VarInsnNode) insn).var));
+            }
+        }
+        if (last.getOpcode() == Opcodes.RETURN) {
+            elses.add(new InsnNode(Opcodes.RETURN));
+        } else if (last.getOpcode() >= Opcodes.IRETURN && last.getOpcode() <= Opcodes.ARETURN) {
+            Type returnType = Type.getReturnType(method.desc);
+            elses.add(pushValue(returnType, random));
+            elses.add(new InsnNode(returnType.getOpcode(Opcodes.IRETURN)));
+        } else if (last instanceof TableSwitchInsnNode) {
+            elses.add(new JumpInsnNode(Opcodes.GOTO, ((TableSwitchInsnNode) last).dflt));
+        } else if (last instanceof LookupSwitchInsnNode) {
+            elses.add(new JumpInsnNode(Opcodes.GOTO, ((LookupSwitchInsnNode) last).dflt));
+        }
+
+        // Insert the guard right before the statement (after its labels, so jumps to it go through the guard), and
+        // the else case afterwards.
+        LabelNode elseLabel = new LabelNode();
+        LabelNode endIf = new LabelNode();
+        InsnList check = new InsnList();
+        check.add(new VarInsnNode(Opcodes.ILOAD, guard));
+        check.add(new LdcInsnNode(value));
+        check.add(new JumpInsnNode(Opcodes.IF_ICMPNE, elseLabel));
+        method.instructions.insertBefore(choice.first, check);
+
+        // Statements which don't fall through (returns and switches) need no jump over the elses, which also end the
+        // method or jump away. Old class files are only verified by type inference, which rejects a jump to the end
+        // of the code even when it's dead.
+        InsnList after = new InsnList();
+        boolean fallsThrough = fallsThrough(last.getOpcode());
+        if (fallsThrough) {
+            after.add(new JumpInsnNode(Opcodes.GOTO, endIf));  // skip elses
+        }
+        after.add(elseLabel);
+        after.add(elses);
+        if (fallsThrough) {
+            after.add(endIf);
+        }
+        method.instructions.insert(last, after);
+    }
+
+    // Allocates an object into a new local before the chosen statement, like EMIMutator.runAlloc (which doesn't
+    // initialize it).
+    private static void runAlloc(MethodNode method, Statement choice) {
+        int local = method.maxLocals++;
+        InsnList alloc = new InsnList();
+        alloc.add(new TypeInsnNode(Opcodes.NEW, "java/lang/Object"));
+        alloc.add(new InsnNode(Opcodes.DUP));
+        alloc.add(new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false));
+        alloc.add(new VarInsnNode(Opcodes.ASTORE, local));
+        method.instructions.insertBefore(choice.first, alloc);
+    }
+
+    private static Type storedType(int storeOpcode) {
+        switch (storeOpcode) {
+            case Opcodes.ISTORE: return Type.INT_TYPE;
+            case Opcodes.LSTORE: return Type.LONG_TYPE;
+            case Opcodes.FSTORE: return Type.FLOAT_TYPE;
+            case Opcodes.DSTORE: return Type.DOUBLE_TYPE;
+            default: return Type.getObjectType("java/lang/Object");
+        }
+    }
+
+    // Pushes an arbitrary value of a type, like EMIMutator.generateValue.
+    private static AbstractInsnNode pushValue(Type t, Random random) {
+        switch (t.getSort()) {
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return new InsnNode(Opcodes.ACONST_NULL);
+            case Type.LONG:
+                return new LdcInsnNode(random.nextLong());
+            case Type.INT:
+                return new LdcInsnNode(random.nextInt());
+            case Type.FLOAT:
+                return new InsnNode(Opcodes.FCONST_0);
+            case Type.DOUBLE:
+                return new InsnNode(Opcodes.DCONST_0);
+            default:
+                return new InsnNode(Opcodes.ICONST_0);
+        }
+    }
+
+    // Recomputes a rewritten method's frames (and max stack and locals), by writing it alone into a copy of its class.
+    // Classes too old for stack map frames only get their maxes recomputed.
+    private static MethodNode frame(ClassNode owner, MethodNode method, ClassHierarchy hierarchy) {
+        boolean frames = (owner.version & 0xFFFF) >= Opcodes.V1_6;
+        ClassWriter writer = hierarchy.newWriter(frames ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS);
+        writer.visit(owner.version, owner.access, owner.name, owner.signature, owner.superName,
+                owner.interfaces.toArray(new String[0]));
+        method.accept(writer);
+        writer.visitEnd();
+        ClassNode framed = new ClassNode();
+        new ClassReader(writer.toByteArray()).accept(framed, 0);
+        return framed.methods.get(0);
+    }
+
+    // A bytecode statement: its first and last instructions, the offset of the first, and what kind of statement it is.
+    static class Statement {
+        final AbstractInsnNode first;
+        final AbstractInsnNode last;
+        final int offset;
+        final MutationSites.Kind kind;
+
+        Statement(AbstractInsnNode first, AbstractInsnNode last, int offset, MutationSites.Kind kind) {
+            this.first = first;
+            this.last = last;
+            this.offset = offset;
+            this.kind = kind;
+        }
+    }
+
+    // Splits the reachable code of a method into statements. Offsets are the bytecode offsets of the method's
+    // instructions (see OffsetReader).
+    static List<Statement> statements(String owner, MethodNode method, int[] offsets) throws AnalyzerException {
+        Frame<BasicValue>[] frames = new Analyzer<>(new BasicInterpreter()).analyze(owner, method);
+
+        // Labels which code jumps to or catches exceptions at.
+        Set<LabelNode> entries = new HashSet<>();
+        for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            entries.add(tryCatch.handler);
+        }
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn instanceof JumpInsnNode) {
+                entries.add(((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                entries.add(((TableSwitchInsnNode) insn).dflt);
+                entries.addAll(((TableSwitchInsnNode) insn).labels);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                entries.add(((LookupSwitchInsnNode) insn).dflt);
+                entries.addAll(((LookupSwitchInsnNode) insn).labels);
+            }
+        }
+
+        List<Statement> statements = new ArrayList<>();
+        AbstractInsnNode first = null;
+        AbstractInsnNode last = null;
+        int offset = 0;
+        // Whether the open statement allocates, and whether code jumps into its middle.
+        boolean allocates = false;
+        boolean entered = false;
+        // Whether there's an entry label since the last instruction. Labels belong to the instruction after them.
+        boolean entry = false;
+        int index = 0;
+        int instruction = 0;
+        for (AbstractInsnNode insn : method.instructions) {
+            Frame<BasicValue> frame = frames[index++];
+            if (insn.getOpcode() < 0) {
+                entry |= insn instanceof LabelNode && entries.contains(insn);
+                continue;
+            }
+            int insnOffset = offsets[instruction++];
+            if (frame == null || frame.getStackSize() == 0) {
+                if (first != null) {
+                    statements.add(new Statement(first, last, offset, entered ? MutationSites.Kind.OTHER : kind(last, allocates)));
+                    first = null;
+                }
+                if (frame != null) {
+                    first = insn;
+                    offset = insnOffset;
+                    allocates = false;
+                    entered = false;
+                    entry = false;
+                }
+            }
+            if (first == null) {
+                // Unreachable, or in a handler before its exception is stored.
+                entry = false;
+                continue;
+            }
+            last = insn;
+            entered |= entry;
+            entry = false;
+            int opcode = insn.getOpcode();
+            allocates |= opcode == Opcodes.NEW || opcode == Opcodes.NEWARRAY || opcode == Opcodes.ANEWARRAY
+                    || opcode == Opcodes.MULTIANEWARRAY;
+            if (!fallsThrough(opcode)) {
+                statements.add(new Statement(first, last, offset, entered ? MutationSites.Kind.OTHER : kind(last, allocates)));
+                first = null;
+            }
+        }
+        if (first != null) {
+            statements.add(new Statement(first, last, offset, entered ? MutationSites.Kind.OTHER : kind(last, allocates)));
+        }
+        return statements;
+    }
+
+    private static boolean fallsThrough(int opcode) {
+        switch (opcode) {
+            case Opcodes.GOTO: case Opcodes.JSR: case Opcodes.RET:
+            case Opcodes.TABLESWITCH: case Opcodes.LOOKUPSWITCH: case Opcodes.ATHROW:
+            case Opcodes.IRETURN: case Opcodes.LRETURN: case Opcodes.FRETURN: case Opcodes.DRETURN: case Opcodes.ARETURN:
+            case Opcodes.RETURN:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    // The kind of a statement, from its last instruction, like EMIMutator.kindOf for its Jimple.
+    private static MutationSites.Kind kind(AbstractInsnNode last, boolean allocates) {
+        int opcode = last.getOpcode();
+        switch (opcode) {
+            case Opcodes.ISTORE: case Opcodes.LSTORE: case Opcodes.FSTORE: case Opcodes.DSTORE: case Opcodes.ASTORE:
+            case Opcodes.IASTORE: case Opcodes.LASTORE: case Opcodes.FASTORE: case Opcodes.DASTORE:
+            case Opcodes.AASTORE: case Opcodes.BASTORE: case Opcodes.CASTORE: case Opcodes.SASTORE:
+            case Opcodes.PUTFIELD: case Opcodes.PUTSTATIC: case Opcodes.IINC:
+                return allocates ? MutationSites.Kind.ASSIGN_NEW : MutationSites.Kind.ASSIGN;
+            case Opcodes.INVOKEVIRTUAL: case Opcodes.INVOKESTATIC: case Opcodes.INVOKEINTERFACE: case Opcodes.INVOKEDYNAMIC:
+                return MutationSites.Kind.INVOKE;
+            case Opcodes.INVOKESPECIAL:
+                return MutationSites.Kind.SPECIAL_INVOKE;
+            case Opcodes.POP: case Opcodes.POP2:
+                // An invocation whose result is discarded.
+                AbstractInsnNode previous = last.getPrevious();
+                while (previous != null && previous.getOpcode() < 0) {
+                    previous = previous.getPrevious();
+                }
+                if (previous instanceof MethodInsnNode || previous instanceof InvokeDynamicInsnNode) {
+                    return kind(previous, allocates);
+                }
+                return MutationSites.Kind.OTHER;
+            case Opcodes.IFEQ: case Opcodes.IFNE: case Opcodes.IFLT: case Opcodes.IFGE: case Opcodes.IFGT: case Opcodes.IFLE:
+            case Opcodes.IF_ICMPEQ: case Opcodes.IF_ICMPNE: case Opcodes.IF_ICMPLT: case Opcodes.IF_ICMPGE:
+            case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE: case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+            case Opcodes.IFNULL: case Opcodes.IFNONNULL:
+                return MutationSites.Kind.IF;
+            case Opcodes.TABLESWITCH: case Opcodes.LOOKUPSWITCH:
+                return MutationSites.Kind.SWITCH;
+            case Opcodes.IRETURN: case Opcodes.LRETURN: case Opcodes.FRETURN: case Opcodes.DRETURN: case Opcodes.ARETURN:
+                return MutationSites.Kind.RETURN;
+            case Opcodes.RETURN:
+                return MutationSites.Kind.RETURN_VOID;
+            case Opcodes.GOTO:
+                return MutationSites.Kind.GOTO;
+            case Opcodes.ATHROW:
+                return MutationSites.Kind.THROW;
+            case Opcodes.MONITORENTER: case Opcodes.MONITOREXIT:
+                return MutationSites.Kind.MONITOR;
+            default:
+                return MutationSites.Kind.OTHER;
+        }
+    }
+
+    // Reads a class into a ClassNode. The tree API doesn't keep bytecode offsets, so they are recorded while the class
+    // is read: offsets.get(i) has the offsets of the instructions (the nodes with an opcode) of node.methods.get(i).
+    static class OffsetReader extends ClassReader {
+        final ClassNode node = new ClassNode();
+        final List<int[]> offsets = new ArrayList<>();
+        private List<Integer> current;
+
+        OffsetReader(byte[] classFile) {
+            super(classFile);
+            List<List<Integer>> methodOffsets = new ArrayList<>();
+            accept(new ClassVisitor(Opcodes.ASM9, node) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    current = new ArrayList<>();
+                    methodOffsets.add(current);
+                    return super.visitMethod(access, name, descriptor, signature, exceptions);
+                }
+            }, 0);
+            for (List<Integer> method : methodOffsets) {
+                offsets.add(method.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+
+        @Override
+        protected void readBytecodeInstructionOffset(int bytecodeOffset) {
+            current.add(bytecodeOffset);
+        }
+    }
+
+    // Reads the classes of a variant's class path (and the JDK's) without loading them. ClassWriter computes frames
+    // with Class.forName, but the variant's classes aren't on our class path (and shouldn't be loaded).
+    // Closing the hierarchy closes the jars of the class path.
+    static class ClassHierarchy implements Closeable {
+        private final URLClassLoader loader;
+        // Superclass (or null), direct superinterfaces and whether it's an interface, by internal name.
+        private final Map<String, String> superNames = new HashMap<>();
+        private final Map<String, String[]> interfaceNames = new HashMap<>();
+        private final Map<String, Boolean> interfaces = new HashMap<>();
+
+        ClassHierarchy(String classPath) {
+            List<URL> urls = new ArrayList<>();
+            for (String entry : classPath.split(":")) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                try {
+                    urls.add(Paths.get(entry).toUri().toURL());
+                } catch (MalformedURLException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+            // No parent: only the JDK's classes, from the boot loader.
+            this.loader = new URLClassLoader(urls.toArray(new URL[0]), null);
+        }
+
+        // Returns the class file of a class (by internal name), or null if it isn't on the class path.
+        byte[] read(String internalName) throws IOException {
+            try (InputStream input = loader.getResourceAsStream(internalName + ".class")) {
+                if (input == null) {
+                    return null;
+                }
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                return bytes.toByteArray();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            loader.close();
+        }
+
+        ClassWriter newWriter(int flags) {
+            return new ClassWriter(flags) {
+                @Override
+                protected String getCommonSuperClass(String type1, String type2) {
+                    return commonSuperClass(type1, type2);
+                }
+            };
+        }
+
+        // Same result as ClassWriter.getCommonSuperClass: either type if the other is assignable to it (so an interface
+        // if the other type implements it), Object if either is an interface, or else their closest common superclass.
+        private String commonSuperClass(String type1, String type2) {
+            if (isAssignableFrom(type1, type2)) {
+                return type1;
+            }
+            if (isAssignableFrom(type2, type1)) {
+                return type2;
+            }
+            if (isInterface(type1) || isInterface(type2)) {
+                return "java/lang/Object";
+            }
+            for (String t = superName(type1); t != null; t = superName(t)) {
+                if (isAssignableFrom(t, type2)) {
+                    return t;
+                }
+            }
+            return "java/lang/Object";
+        }
+
+        // Whether type2 is type1, or one of its superclasses or superinterfaces is, like Class.isAssignableFrom.
+        private boolean isAssignableFrom(String type1, String type2) {
+            if (type1.equals("java/lang/Object")) {
+                return true;
+            }
+            Deque<String> pending = new ArrayDeque<>();
+            Set<String> seen = new HashSet<>();
+            pending.push(type2);
+            while (!pending.isEmpty()) {
+                String t = pending.pop();
+                if (t.equals(type1)) {
+                    return true;
+                }
+                if (!seen.add(t)) {
+                    continue;
+                }
+                String superName = superName(t);
+                if (superName != null) {
+                    pending.push(superName);
+                }
+                for (String interfaceName : interfaceNames.get(t)) {
+                    pending.push(interfaceName);
+                }
+            }
+            return false;
+        }
+
+        String superName(String internalName) {
+            load(internalName);
+            return superNames.get(internalName);
+        }
+
+        boolean isInterface(String internalName) {
+            load(internalName);
+            return interfaces.get(internalName);
+        }
+
+        private void load(String internalName) {
+            if (interfaces.containsKey(internalName)) {
+                return;
+            }
+            byte[] classFile;
+            try {
+                classFile = read(internalName);
+            } catch (IOException e) {
+                classFile = null;
+            }
+            if (classFile == null) {
+                throw new TypeNotPresentException(internalName.replace('/', '.'), null);
+            }
+            ClassReader reader = new ClassReader(classFile);
+            superNames.put(internalName, reader.getSuperName());
+            interfaceNames.put(internalName, reader.getInterfaces());
+            interfaces.put(internalName, (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.mattdsouza.emi;
+
+import org.apache.commons.cli.*;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Helper utility to check the ASM mutator and the mutant verifier against the JVM's verifier. Applies every mutation
+// at every site of the given classes (by default, every class of the class path's directories and jars), one mutant
+// per site, and has the JVM load and link each mutated class. Each mutant is defined by a class loader of its own, so
+// the JVM verifies it even without -Xverify:all.
+// Reports the mutants the JVM rejects (the mutator's bugs), and those where the MutantVerifier disagrees with the JVM.
+// Mutants which refer to classes missing from the class path can't be linked, and are only counted.
+public class AsmMutatorCheck {
+    private int mutants = 0;
+    private int accepted = 0;
+    private int rejected = 0;
+    private int unresolved = 0;
+    private int notMutated = 0;
+    private int falseRejects = 0;
+    private int missedRejects = 0;
+
+    public static void main(String[] args) throws Exception {
+        CommandLine options = parseOptions(args);
+        String classPath = options.getOptionValue("classpath");
+        List<String> classNames = options.getArgList();
+        if (classNames.isEmpty()) {
+            classNames = classNames(classPath);
+        }
+
+        AsmMutatorCheck check = new AsmMutatorCheck();
+        try (AsmMutator.ClassHierarchy hierarchy = new AsmMutator.ClassHierarchy(classPath);
+             MutantVerifier verifier = new MutantVerifier(classPath)) {
+            for (String className : classNames) {
+                check.check(className, hierarchy, verifier);
+            }
+        }
+        System.out.printf("%d mutants: %d accepted, %d rejected, %d unresolved, %d not mutated.\n",
+                check.mutants, check.accepted, check.rejected, check.unresolved, check.notMutated);
+        System.out.printf("MutantVerifier: %d false rejects, %d missed rejects.\n",
+                check.falseRejects, check.missedRejects);
+    }
+
+    private void check(String className, AsmMutator.ClassHierarchy hierarchy, MutantVerifier verifier)
+            throws IOException {
+        byte[] classFile = hierarchy.read(className.replace('.', '/'));
+        if (classFile == null) {
+            System.out.printf("Class %s not found.\n", className);
+            return;
+        }
+        AsmMutator.OffsetReader reader = new AsmMutator.OffsetReader(classFile);
+        for (int i = 0; i < reader.node.methods.size(); i++) {
+            MethodNode method = reader.node.methods.get(i);
+            // The mutator skips constructors.
+            if (method.instructions.size() == 0 || method.name.equals("<init>")) {
+                continue;
+            }
+            List<AsmMutator.Statement> statements;
+            try {
+                statements = AsmMutator.statements(reader.node.name, method, reader.offsets.get(i));
+            } catch (AnalyzerException e) {
+                System.out.printf("Could not index %s.%s%s: %s\n", className, method.name, method.desc, e.getMessage());
+                continue;
+            }
+            for (AsmMutator.Statement statement : statements) {
+                MutationSites.Site site =
+                        new MutationSites.Site(statement.offset, statement.kind, BytecodeCoverage.Level.LIVE);
+                for (MutationPlan.Mutation mutation : MutationPlan.Mutation.values()) {
+                    if (mutation == MutationPlan.Mutation.TRUE_GUARD && !statement.kind.guardable()) {
+                        continue;
+                    }
+                    MutationPlan.Target target =
+                            new MutationPlan.Target(className, method.name + method.desc, mutation, site);
+                    MutationPlan plan = new MutationPlan(mutants++, Collections.singletonList(target));
+                    check(plan, classFile, hierarchy, verifier);
+                }
+            }
+        }
+    }
+
+    private void check(MutationPlan plan, byte[] classFile, AsmMutator.ClassHierarchy hierarchy,
+                       MutantVerifier verifier) {
+        MutationPlan.Target target = plan.targets.get(0);
+        String mutant = String.format("%s.%s @%d %s", target.className, target.methodWithDescriptor,
+                target.site.offset, target.mutation);
+
+        // The mutator logs every mutation; only the failures are of interest here.
+        PrintStream out = System.out;
+        byte[] mutated;
+        try {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+            }));
+            mutated = new AsmMutator(plan).mutate(target.className, classFile, hierarchy);
+        } finally {
+            System.setOut(out);
+        }
+        if (mutated == null) {
+            notMutated++;
+            System.out.printf("Could not mutate %s.\n", mutant);
+            return;
+        }
+
+        String problem = verifier.verify(mutated);
+        try {
+            // Reflecting on the class links it, which verifies it, but doesn't initialize it.
+            Class.forName(target.className, false, new MutantLoader(target.className, mutated, hierarchy))
+                    .getDeclaredMethods();
+        } catch (VerifyError e) {
+            rejected++;
+            System.out.printf("JVM rejected %s: %s\n", mutant, e.getMessage().split("\n")[0]);
+            if (problem == null) {
+                missedRejects++;
+                System.out.printf("MutantVerifier accepted %s.\n", mutant);
+            }
+            return;
+        } catch (ClassNotFoundException | LinkageError e) {
+            unresolved++;
+            return;
+        }
+        accepted++;
+        if (problem != null) {
+            falseRejects++;
+            System.out.printf("MutantVerifier rejected %s: %s\n", mutant, problem);
+        }
+    }
+
+    // Loads the classes of the class path itself, with one class replaced by its mutant, so that the mutant is linked
+    // against the classes it was mutated against. The JDK's classes come from the boot loader.
+    private static class MutantLoader extends ClassLoader {
+        private final String mutatedName;
+        private final byte[] mutated;
+        private final AsmMutator.ClassHierarchy hierarchy;
+
+        MutantLoader(String mutatedName, byte[] mutated, AsmMutator.ClassHierarchy hierarchy) {
+            super(null);
+            this.mutatedName = mutatedName;
+            this.mutated = mutated;
+            this.hierarchy = hierarchy;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] classFile;
+            try {
+                classFile = name.equals(mutatedName) ? mutated : hierarchy.read(name.replace('.', '/'));
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            if (classFile == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+    // Returns the classes of the class path's directories and jars.
+    private static List<String> classNames(String classPath) throws IOException {
+        List<String> classNames = new ArrayList<>();
+        for (String entry : classPath.split(":")) {
+            Path path = Paths.get(entry);
+            if (entry.isEmpty() || !Files.exists(path)) {
+                continue;
+            }
+            List<String> classFiles;
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    classFiles = walk.map(file -> path.relativize(file).toString()).collect(Collectors.toList());
+                }
+            } else {
+                try (JarFile jar = new JarFile(path.toFile())) {
+                    classFiles = jar.stream().map(JarEntry::getName).collect(Collectors.toList());
+                }
+            }
+            for (String classFile : classFiles) {
+                if (classFile.endsWith(".class") && !classFile.endsWith("module-info.class")) {
+                    classNames.add(classFile.substring(0, classFile.length() - ".class".length()).replace('/', '.'));
+                }
+            }
+        }
+        Collections.sort(classNames);
+        return classNames;
+    }
+
+    static CommandLine parseOptions(String[] args) {
+        Options options = new Options();
+
+        Option classPath = new Option("cp", "classpath", true, "Class path of the classes to mutate");
+        classPath.setRequired(true);
+        options.addOption(classPath);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        try {
+            return parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp(AsmMutatorCheck.class.getName() + " [classes...]", options);
+            System.exit(1);
+        }
+        return null;
+    }
+}
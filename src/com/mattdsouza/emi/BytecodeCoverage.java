@@ -1,5 +1,10 @@
 package com.mattdsouza.emi;
 
+import org.jacoco.core.analysis.Analyzer;
+import org.jacoco.core.analysis.CoverageBuilder;
+import org.jacoco.core.analysis.IClassCoverage;
+import org.jacoco.core.analysis.IMethodCoverage;
+import org.jacoco.core.tools.ExecFileLoader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -8,13 +13,19 @@ import org.xml.sax.SAXException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import java.io.File;
-import java.io.IOException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
 
-// Abstraction over a JaCoCo coverage report modified to include bytecode offsets.
-// Includes helper methods to parse coverage reports and determine which offsets are covered.
+// Abstraction over JaCoCo coverage (patched to include bytecode offsets).
+// Includes helper methods to load coverage, either from an XML report or directly from execution data, and determine
+// which offsets are covered.
 class BytecodeCoverage {
     enum Level {
         UNKNOWN,
@@ -23,27 +34,196 @@ class BytecodeCoverage {
         NON_INSTRUCTION
     }
 
-    private final Map<String, Map<String, Set<Integer>>> coverage;
-    private final Set<String> methodsReached;
+    // Interned ids of reached methods, per class. A method is only assigned an id if some offset in it was reached.
+    private final Map<String, Map<String, Integer>> methodIds;
+    // Sorted reached offsets, indexed by method id.
+    private final int[][] offsets;
+    // Declaring class and name (with descriptor) of each method, indexed by method id.
+    private final String[] classNames;
+    private final String[] methodNames;
 
-    private BytecodeCoverage(Map<String, Map<String, Set<Integer>>> coverage, Set<String> methodsReached) {
-        this.coverage = coverage;
-        this.methodsReached = methodsReached;
+    private BytecodeCoverage(Map<String, Map<String, Integer>> methodIds, int[][] offsets, String[] classNames, String[] methodNames) {
+        this.methodIds = methodIds;
+        this.offsets = offsets;
+        this.classNames = classNames;
+        this.methodNames = methodNames;
+    }
+
+    // Builds the interned index while a coverage source is being read.
+    private static class Builder {
+        private final Map<String, Map<String, Integer>> methodIds = new HashMap<>();
+        private final List<int[]> offsets = new ArrayList<>();
+        private final List<String> classNames = new ArrayList<>();
+        private final List<String> methodNames = new ArrayList<>();
+
+        // Records a reached method. Offsets must be sorted and non-empty.
+        void addMethod(String className, String methodWithDescriptor, int[] sortedOffsets) {
+            methodIds.computeIfAbsent(className, k -> new HashMap<>()).put(methodWithDescriptor, offsets.size());
+            offsets.add(sortedOffsets);
+            classNames.add(className);
+            methodNames.add(methodWithDescriptor);
+        }
+
+        BytecodeCoverage build() {
+            return new BytecodeCoverage(methodIds, offsets.toArray(new int[0][]),
+                    classNames.toArray(new String[0]), methodNames.toArray(new String[0]));
+        }
+    }
+
+    // Returns the id of a reached method, or -1 if the method was not reached (or is not covered by this report).
+    // Resolve the id once per method body; the id-based queries below don't allocate.
+    public int methodId(String className, String methodWithDescriptor) {
+        Map<String, Integer> classIds = methodIds.get(className);
+        if (classIds == null) return -1;
+        Integer id = classIds.get(methodWithDescriptor);
+        return (id == null) ? -1 : id;
+    }
+
+    // Number of reached methods. Reached methods have ids 0 to methodCount()-1.
+    public int methodCount() {
+        return offsets.length;
+    }
+
+    public String className(int methodId) {
+        return classNames[methodId];
+    }
+
+    public String methodWithDescriptor(int methodId) {
+        return methodNames[methodId];
+    }
+
+    public Level coverageOf(int methodId, int offset) {
+        if (methodId < 0) return Level.UNKNOWN;
+        return (Arrays.binarySearch(offsets[methodId], offset) >= 0) ? Level.LIVE : Level.DEAD;
+    }
+
+    public boolean methodReached(int methodId) {
+        return methodId >= 0;
     }
 
     public Level coverageOf(String className, String methodWithDescriptor, int offset) {
-        Map<String, Set<Integer>> classCoverage = coverage.get(className);
-        if (classCoverage == null) return Level.UNKNOWN;
-        Set<Integer> methodCoverage = classCoverage.get(methodWithDescriptor);
-        if (methodCoverage == null) return Level.UNKNOWN;
-        return (methodCoverage.contains(offset)) ? Level.LIVE : Level.DEAD;
+        return coverageOf(methodId(className, methodWithDescriptor), offset);
     }
 
     public boolean methodReached(String className, String methodWithDescriptor) {
-        return methodsReached.contains(String.format("%s %s", className, methodWithDescriptor));
+        return methodReached(methodId(className, methodWithDescriptor));
+    }
+
+    // Loads coverage from an XML report, or from JaCoCo execution data if the file is a .exec file. Execution data only
+    // records probes, so it is analyzed against the class files in classDir. Report entries for classes outside
+    // classDir (e.g., supporting jars) are skipped.
+    public static BytecodeCoverage load(String coverageFile, String classDir) throws IOException, XMLStreamException {
+        if (coverageFile.endsWith(".exec")) {
+            return fromExecData(coverageFile, classDir);
+        }
+        return fromFile(coverageFile, classDir);
+    }
+
+    // Builds coverage in memory from execution data, skipping the XML report round trip (jacococli report + parse).
+    public static BytecodeCoverage fromExecData(String execFile, String classDir) throws IOException {
+        ExecFileLoader loader = new ExecFileLoader();
+        loader.load(new File(execFile));
+
+        CoverageBuilder builder = new CoverageBuilder();
+        Analyzer analyzer = new Analyzer(loader.getExecutionDataStore(), builder);
+        analyzer.analyzeAll(new File(classDir));
+
+        Builder coverage = new Builder();
+        for (IClassCoverage clazz : builder.getClasses()) {
+            String className = clazz.getName().replace("/", ".");
+            for (IMethodCoverage method : clazz.getMethods()) {
+                int[] offsets = method.getBytecodeOffsets();
+                if (offsets == null || offsets.length == 0) {
+                    continue;
+                }
+                int[] sorted = offsets.clone();
+                Arrays.sort(sorted);
+                coverage.addMethod(className, method.getName() + method.getDesc(), sorted);
+            }
+        }
+        return coverage.build();
+    }
+
+    public static BytecodeCoverage fromFile(String coverageFile) throws IOException, XMLStreamException {
+        return fromFile(coverageFile, null);
+    }
+
+    // Parses an XML report in a single forward pass, without materializing a DOM. If classDir is non-null, only classes
+    // with a class file in classDir are kept.
+    public static BytecodeCoverage fromFile(String coverageFile, String classDir) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // JaCoCo reports declare a DTD; don't try to load it.
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        Path classRoot = (classDir == null) ? null : Paths.get(classDir);
+
+        Builder coverage = new Builder();
+        try (InputStream input = new BufferedInputStream(new FileInputStream(coverageFile))) {
+            XMLStreamReader reader = factory.createXMLStreamReader(input);
+            String className = null;
+            String methodWithDescriptor = null;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "class":
+                        String vmName = reader.getAttributeValue(null, "name");
+                        if (classRoot != null && !Files.isRegularFile(classRoot.resolve(vmName + ".class"))) {
+                            className = null;
+                            break;
+                        }
+                        className = vmName.replace("/", ".");
+                        break;
+                    case "method":
+                        methodWithDescriptor = (className == null) ? null :
+                                reader.getAttributeValue(null, "name") + reader.getAttributeValue(null, "desc");
+                        break;
+                    case "bytecode":
+                        if (methodWithDescriptor == null) {
+                            break;
+                        }
+                        String offsets = reader.getAttributeValue(null, "offsets");
+                        if (offsets != null && !offsets.isEmpty()) {
+                            coverage.addMethod(className, methodWithDescriptor, parseOffsets(offsets));
+                        }
+                        methodWithDescriptor = null;
+                        break;
+                }
+            }
+            reader.close();
+        }
+        return coverage.build();
+    }
+
+    // Parses a comma-separated offset list (e.g. "0,3,7,") into a sorted array, without splitting it into
+    // intermediate strings.
+    private static int[] parseOffsets(String offsets) {
+        int[] result = new int[16];
+        int count = 0;
+        int value = 0;
+        boolean inNumber = false;
+        for (int i = 0; i <= offsets.length(); i++) {
+            char c = (i == offsets.length()) ? ',' : offsets.charAt(i);
+            if (c == ',') {
+                if (inNumber) {
+                    if (count == result.length) result = Arrays.copyOf(result, count * 2);
+                    result[count++] = value;
+                }
+                value = 0;
+                inNumber = false;
+            } else {
+                value = value * 10 + (c - '0');
+                inNumber = true;
+            }
+        }
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
     }
 
-    public static BytecodeCoverage fromFile(String coverageFile) throws ParserConfigurationException, IOException, SAXException {
+    // DOM-based parser which the streaming parser replaced. Only kept as a baseline for CoverageParserBenchmark.
+    static BytecodeCoverage fromFileDom(String coverageFile) throws ParserConfigurationException, IOException, SAXException {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setIgnoringElementContentWhitespace(true);
         factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
@@ -52,14 +232,12 @@ class BytecodeCoverage {
         File file = new File(coverageFile);
         Document doc = builder.parse(file);
 
-        Map<String, Map<String, Set<Integer>>> coverage = new HashMap<>();
-        Set<String> methodsReached = new HashSet<>();
+        Builder coverage = new Builder();
         NodeList classes = doc.getElementsByTagName("class");
         for (int i = 0; i < classes.getLength(); i++) {
             Element clazz = (Element) classes.item(i);
             String className = clazz.getAttribute("name").replace("/", ".");
 
-            Map<String, Set<Integer>> classCoverage = new HashMap<>();
             NodeList methods = clazz.getElementsByTagName("method");
             for (int j = 0; j < methods.getLength(); j++) {
                 Element method = (Element) methods.item(j);
@@ -73,18 +251,16 @@ class BytecodeCoverage {
 
                 if (offsets.isEmpty()) {
                     continue;
-                } else {
-                    methodsReached.add(String.format("%s %s", className, methodWithDescriptor));
                 }
 
-                Set<Integer> methodCoverage = Arrays.stream(offsets.split(","))
+                int[] methodCoverage = Arrays.stream(offsets.split(","))
                         .filter(s -> s.length() > 0)
-                        .map(Integer::parseInt)
-                        .collect(Collectors.toSet());
-                classCoverage.put(methodWithDescriptor, methodCoverage);
+                        .mapToInt(Integer::parseInt)
+                        .sorted()
+                        .toArray();
+                coverage.addMethod(className, methodWithDescriptor, methodCoverage);
             }
-            coverage.put(className, classCoverage);
         }
-        return new BytecodeCoverage(coverage, methodsReached);
+        return coverage.build();
     }
 }
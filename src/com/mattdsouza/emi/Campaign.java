@@ -0,0 +1,486 @@
+package com.mattdsouza.emi;
+
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Entrypoint to run an EMI campaign in a single, long-lived JVM.
+// Replaces the subprocess-per-step loop of run_emi.py: variants are still executed through the registry's run script,
+// but coverage analysis and mutant generation happen in-process.
+// With --workers N, N lineages are extended concurrently from a shared frontier.
+// Each mutant is checked against the seed by a tiered Oracle before it is extended; mutants which diverge are recorded
+// in the registry and their lineage falls back to the parent. So does a lineage which fails to extend a variant
+// MAX_FAILURES times; the campaign stops if that variant has no parent.
+// With --evict-every N, the registry's objects which no lineage needs are evicted every N mutants; they are regenerated
+// from the mutants' recipes if needed again (see MutantRegistry.evict).
+public class Campaign {
+    // Failed attempts to extend a variant before its lineage falls back to the variant's parent.
+    private static final int MAX_FAILURES = 3;
+
+    private final String registryPath;
+    private final MutantRegistry registry;
+    private final Path dumpLibrary;
+    private final Path jacocoAgent;
+    private final int workers;
+    // Whether to collect the heap dump and coverage in one execution of the variant.
+    private final boolean singleRun;
+    // Whether to run variants in warm DaCapo harnesses (one per worker) rather than a fresh JVM per execution.
+    private final boolean server;
+    private final boolean heapDiff;
+    // Whether to delete the heap dumps of mutants which pass the heap diff (their root hashes are kept).
+    private final boolean dropDumps;
+    // Limit on one execution of a variant.
+    private final long timeoutSeconds;
+    // Number of mutants to generate at a time from one variant.
+    private final int batch;
+    // Mutator backend (see MutantGenerator).
+    private final String backend;
+    // Number of mutants to generate between evictions of cold objects from the registry, or 0 to never evict.
+    private final int evictEvery;
+    // Workers hold the read lock while they extend a lineage; eviction takes the write lock, so that it never deletes
+    // objects from under a worker.
+    private final ReadWriteLock storeLock;
+    private Oracle oracle;
+    private final SecureRandom random;
+
+    // Variants waiting to be mutated. Each entry is the tip of one lineage; there are as many lineages as workers.
+    private final BlockingQueue<String> frontier;
+    // Coverage (JaCoCo execution data) of variants that have already been executed (e.g., the seed, which every lineage
+    // starts from).
+    private final Map<String, Path> coverageFiles;
+    private final Map<String, String> parents;
+    // Mutants generated in a batch but not used yet, by parent. A lineage which needs a new mutant of a variant (e.g.,
+    // after the previous one diverged) takes one of these before generating more.
+    private final Map<String, Deque<String>> spares;
+    // Failed attempts to extend each variant (see MAX_FAILURES).
+    private final Map<String, AtomicInteger> failures;
+    // Mutants left to generate, or a negative number to run forever.
+    private final AtomicInteger remaining;
+    private final AtomicInteger generated;
+    private long start;
+
+    private Campaign(String registryPath, Path dumpLibrary, Path jacocoAgent, int workers, boolean singleRun,
+                     boolean server, boolean heapDiff, boolean dropDumps, long timeoutSeconds, int batch, String backend, int evictEvery, int iterations) throws Exception {
+        this.registryPath = registryPath;
+        this.registry = new MutantRegistry(registryPath);
+        this.dumpLibrary = dumpLibrary;
+        this.jacocoAgent = jacocoAgent;
+        this.workers = workers;
+        this.singleRun = singleRun;
+        this.server = server;
+        this.heapDiff = heapDiff;
+        this.dropDumps = dropDumps;
+        this.timeoutSeconds = timeoutSeconds;
+        this.batch = batch;
+        this.backend = backend;
+        this.evictEvery = evictEvery;
+        this.storeLock = new ReentrantReadWriteLock();
+        this.random = new SecureRandom();
+        this.frontier = new LinkedBlockingQueue<>();
+        this.coverageFiles = new ConcurrentHashMap<>();
+        this.parents = new ConcurrentHashMap<>();
+        this.spares = new ConcurrentHashMap<>();
+        this.failures = new ConcurrentHashMap<>();
+        this.remaining = new AtomicInteger(iterations);
+        this.generated = new AtomicInteger();
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine options = parseOptions(args);
+        String registryPath = options.getOptionValue("registry");
+        String seed = options.getOptionValue("seed", "seed");
+        int iterations = Integer.parseInt(options.getOptionValue("iterations", "-1"));
+        int workers = Integer.parseInt(options.getOptionValue("workers", "1"));
+        boolean singleRun = options.hasOption("single-run");
+        boolean server = options.hasOption("server");
+        boolean heapDiff = !options.hasOption("no-heap-diff");
+        boolean dropDumps = options.hasOption("drop-dumps");
+        long timeoutSeconds = Long.parseLong(options.getOptionValue("timeout", Long.toString(VariantRunner.DEFAULT_TIMEOUT_SECONDS)));
+        int batch = Integer.parseInt(options.getOptionValue("batch", "1"));
+        String backend = options.getOptionValue("backend", MutantGenerator.DEFAULT_BACKEND);
+        int evictEvery = Integer.parseInt(options.getOptionValue("evict-every", "0"));
+
+        Path projectRoot = projectRoot();
+        Path dumpLibrary = Paths.get(options.getOptionValue("dump-lib",
+                projectRoot.resolve("bazel-bin").resolve("libheap-dump.jar").toString()));
+        Path jacocoAgent = Paths.get(options.getOptionValue("jacoco",
+                projectRoot.resolve("lib").resolve("jacocoagent.jar").toString()));
+        checkFile(dumpLibrary, "The heap-dump library should be built.");
+        checkFile(jacocoAgent, null);
+
+        Campaign campaign = new Campaign(registryPath, dumpLibrary.toAbsolutePath(), jacocoAgent.toAbsolutePath(),
+                workers, singleRun, server, heapDiff, dropDumps, timeoutSeconds, batch, backend, evictEvery, iterations);
+        campaign.run(seed);
+    }
+
+    // Runs the EMI loop on one lineage per worker, all starting from the given variant.
+    private void run(String seed) throws Exception {
+        start = System.nanoTime();
+
+        // Execute the starting variant once up front, rather than once per lineage. Its output and heap are what every
+        // mutant is checked against.
+        VariantRunner seedRunner = newRunner(0);
+        Path seedDump = registry.getDumps().resolve(seed + ".hprof");
+        String seedDigest = singleRun
+                ? seedRunner.dumpAndProfile(registry.getMutant(seed), seedDump, coverageFile(seed), digestFile(seed))
+                : seedRunner.dump(registry.getMutant(seed), seedDump, digestFile(seed));
+        if (!singleRun) {
+            seedRunner.profile(registry.getMutant(seed), coverageFile(seed));
+        }
+        coverageFiles.put(seed, coverageFile(seed));
+        oracle = new Oracle(registry, seedDigest, seedDump, heapDiff);
+        for (int i = 0; i < workers; i++) {
+            frontier.add(seed);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        CompletionService<Void> results = new ExecutorCompletionService<>(pool);
+        for (int i = 0; i < workers; i++) {
+            int worker = i;
+            VariantRunner runner = (i == 0) ? seedRunner : newRunner(i);
+            results.submit(() -> {
+                try {
+                    work(worker, runner);
+                } finally {
+                    runner.close();
+                }
+                return null;
+            });
+        }
+        pool.shutdown();
+        try {
+            for (int i = 0; i < workers; i++) {
+                results.take().get();
+            }
+        } catch (ExecutionException e) {
+            // A worker gave up on its lineage. Stop the others, which could otherwise wait on the frontier forever.
+            pool.shutdownNow();
+            throw e;
+        } finally {
+            // The workers read the seed's snapshot, so it can only be unmapped once they're all gone.
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            oracle.close();
+        }
+        log(0, "Oracle: %s.", oracle);
+    }
+
+    private VariantRunner newRunner(int worker) throws Exception {
+        // A single worker keeps the program's default scratch directory, like run_emi.py.
+        Path scratch = (workers == 1) ? null : Files.createDirectories(registry.getRoot().resolve("scratch").resolve("worker-" + worker));
+        return new VariantRunner(registry.getRunScript(), registry.getRoot(), dumpLibrary, jacocoAgent, scratch, server, timeoutSeconds);
+    }
+
+    private void work(int worker, VariantRunner runner) throws Exception {
+        while (remaining.get() != 0) {
+            String current = frontier.take();
+            if (remaining.getAndDecrement() == 0) {
+                remaining.incrementAndGet();
+                return;
+            }
+
+            String next = null;
+            List<String> names = null;
+            storeLock.readLock().lock();
+            try {
+                try {
+                    Path coverageFile = coverageFiles.get(current);
+                    if (coverageFile == null) {
+                        coverageFile = execute(worker, runner, current);
+                        if (coverageFile != null) {
+                            // A lineage which falls back to this variant can generate its next mutant without re-running it.
+                            coverageFiles.put(current, coverageFile);
+                        }
+                    }
+                    if (coverageFile == null) {
+                        // Diverged from the seed: keep the finding, and continue the lineage from its parent.
+                        String parent = parents.get(current);
+                        log(worker, "%s diverged from the seed. Continuing from %s.", current, parent);
+                        // This iteration generated nothing: the diverged mutant was counted when it was generated.
+                        // The parent's next iteration generates (or takes a spare), and is counted, so a lineage which
+                        // keeps diverging still uses up --iterations.
+                        remaining.incrementAndGet();
+                        frontier.put(parent);
+                        continue;
+                    }
+
+                    next = spares.computeIfAbsent(current, variant -> new ConcurrentLinkedDeque<>()).poll();
+                    if (next != null) {
+                        log(worker, "Continuing with %s, a spare mutant of %s.", next, current);
+                    } else {
+                        names = MutantGenerator.batchNames(newVariantName(), batch);
+                        log(worker, "Creating %d mutant(s) of %s as %s.", names.size(), current, String.join(", ", names));
+                        generate(current, names, coverageFile);
+                        for (String name : names) {
+                            parents.put(name, current);
+                        }
+                        next = names.get(0);
+                        spares.get(current).addAll(names.subList(1, names.size()));
+                    }
+                    // The lineage has moved on; the store can recreate this view if it's ever needed again.
+                    registry.release(current);
+                } catch (Exception e) {
+                    log(worker, "Failed to extend %s: %s", current, e.getMessage());
+                    if (names != null) {
+                        for (String name : names) {
+                            registry.discardMutant(name);
+                        }
+                    }
+                    remaining.incrementAndGet();
+                    int failed = failures.computeIfAbsent(current, variant -> new AtomicInteger()).incrementAndGet();
+                    String parent = parents.get(current);
+                    if (failed < MAX_FAILURES) {
+                        // Keep the lineage alive by retrying from the last good variant.
+                        frontier.put(current);
+                    } else if (parent != null) {
+                        // Failing deterministically (e.g., no mutant of it verifies): continue from its parent.
+                        log(worker, "Giving up on %s after %d failures. Continuing from %s.", current, failed, parent);
+                        frontier.put(parent);
+                    } else {
+                        throw new RuntimeException(String.format("Giving up on %s after %d failures.", current, failed), e);
+                    }
+                    continue;
+                }
+                frontier.put(next);
+            } finally {
+                storeLock.readLock().unlock();
+            }
+
+            int count = generated.incrementAndGet();
+            double hours = (System.nanoTime() - start) / 3.6e12;
+            log(worker, "Generated %d mutant(s) in %.1f minutes (%.1f mutants/hour).", count, hours * 60, count / hours);
+            log(worker, "Oracle: %s.", oracle);
+            if (evictEvery > 0 && count % evictEvery == 0) {
+                evict(worker);
+            }
+        }
+    }
+
+    // Evicts the objects of the mutants no lineage needs right now: all but the lineages' tips and the spare mutants
+    // (and their parents). Mutants which diverged, or which a lineage moved on from, are regenerated from their recipes
+    // if they're ever needed again.
+    private void evict(int worker) {
+        storeLock.writeLock().lock();
+        try {
+            Set<String> hot = new HashSet<>(frontier);
+            for (Map.Entry<String, Deque<String>> entry : spares.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    hot.add(entry.getKey());
+                    hot.addAll(entry.getValue());
+                }
+            }
+            int deleted = registry.evict(hot);
+            log(worker, "Evicted %d object(s) of cold mutants.", deleted);
+        } catch (Exception e) {
+            log(worker, "Failed to evict cold mutants: %s", e.getMessage());
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    // Executes a mutant to obtain its heap dump and coverage, checking it against the seed in between. Returns the
+    // coverage (execution data) file, or null if the mutant diverged from the seed.
+    private Path execute(int worker, VariantRunner runner, String variant) throws Exception {
+        Path variantPath = registry.getMutant(variant);
+        String parent = parents.get(variant);
+
+        Path heapDumpFile = registry.getDumps().resolve(variant + ".hprof");
+        Path coverageFile = coverageFile(variant);
+        long start = System.nanoTime();
+        String digest;
+        try {
+            if (singleRun) {
+                log(worker, "Running %s. Dumping heap to %s and coverage to %s.", variant, heapDumpFile, coverageFile);
+                digest = runner.dumpAndProfile(variantPath, heapDumpFile, coverageFile, digestFile(variant));
+            } else {
+                // 1. Generate heap dump
+                log(worker, "Running %s. Dumping heap to %s.", variant, heapDumpFile);
+                digest = runner.dump(variantPath, heapDumpFile, digestFile(variant));
+            }
+        } catch (VariantRunner.VariantRunnerException e) {
+            log(worker, "%s", e.getMessage());
+            digest = null;
+        }
+
+        // 2. Compare outputs: cheap checks first, and the heap diff only if those pass.
+        if (!oracle.checkOutput(variant, parent, digest, System.nanoTime() - start)) {
+            return null;
+        }
+        log(worker, "Comparing heap dump of %s with the seed.", variant);
+        if (!oracle.checkHeap(variant, parent, heapDumpFile)) {
+            return null;
+        }
+        if (dropDumps && heapDiff) {
+            Files.deleteIfExists(heapDumpFile);
+        }
+
+        if (!singleRun) {
+            // 3. Profile mutant
+            log(worker, "Re-running %s to obtain coverage.", variant);
+            runner.profile(variantPath, coverageFile);
+        }
+        return coverageFile;
+    }
+
+    private Path coverageFile(String variant) throws IOException {
+        return registry.getCoverage().resolve(variant + ".exec");
+    }
+
+    private Path digestFile(String variant) throws IOException {
+        return registry.getOutputs().resolve(variant + ".digest");
+    }
+
+    // Generates a batch of EMI mutants, named as MutantGenerator.batchNames does. Soot's G/Scene singletons are
+    // process-global, so with several workers every generation runs in a forked JVM; a single worker generates
+    // in-process (the Soot backend resets Soot on entry).
+    private void generate(String variant, List<String> newVariants, Path coverageFile) throws Exception {
+        if (workers == 1) {
+            MutantGenerator.generateMutants(registryPath, variant, newVariants, coverageFile.toString(), null, backend);
+            return;
+        }
+        // With a single mutant, its name is the base name.
+        String newVariant = newVariants.size() == 1
+                ? newVariants.get(0)
+                : newVariants.get(0).substring(0, newVariants.get(0).lastIndexOf('-'));
+
+        List<String> command = Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                MutantGenerator.class.getName(),
+                "--registry", registryPath,
+                "--variant", variant,
+                "--new-variant", newVariant,
+                "--coverage", coverageFile.toString(),
+                "--count", Integer.toString(newVariants.size()),
+                "--backend", backend
+        );
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new RuntimeException(String.format("Mutant generator exited with status %d.", exitCode));
+        }
+    }
+
+    private String newVariantName() {
+        byte[] bytes = new byte[8];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // `bazel run` executes from the runfiles tree, so resolve default paths against the workspace if we know it.
+    private static Path projectRoot() {
+        String workspace = System.getenv("BUILD_WORKSPACE_DIRECTORY");
+        return Paths.get(workspace != null ? workspace : "").toAbsolutePath();
+    }
+
+    private static void checkFile(Path path, String hint) {
+        if (!Files.isRegularFile(path)) {
+            System.err.println("Path " + path + " not found." + (hint == null ? "" : " " + hint));
+            System.exit(1);
+        }
+    }
+
+    private static void log(int worker, String fmt, Object... args) {
+        System.out.printf("\033[36m* [%d] %s\033[0m\n", worker, String.format(fmt, args));
+    }
+
+    static CommandLine parseOptions(String[] args) {
+        Options options = new Options();
+
+        Option registryDirectory = new Option("r", "registry", true, "Path to registry folder");
+        registryDirectory.setRequired(true);
+        options.addOption(registryDirectory);
+
+        Option seed = new Option("s", "seed", true, "Variant to start EMI mutations from (default is seed)");
+        seed.setRequired(false);
+        options.addOption(seed);
+
+        Option iterations = new Option("n", "iterations", true,
+                "Number of mutants to generate, including those which diverge (default is unbounded)");
+        iterations.setRequired(false);
+        options.addOption(iterations);
+
+        Option workers = new Option("w", "workers", true, "Number of lineages to mutate concurrently (default is 1)");
+        workers.setRequired(false);
+        options.addOption(workers);
+
+        Option singleRun = new Option(null, "single-run", false,
+                "Collect the heap dump and coverage in one execution (dumps are then only comparable with other single-run dumps)");
+        singleRun.setRequired(false);
+        options.addOption(singleRun);
+
+        Option server = new Option(null, "server", false,
+                "Run variants in a warm harness which stays up across executions (requires run script support for --server)");
+        server.setRequired(false);
+        options.addOption(server);
+
+        Option noHeapDiff = new Option(null, "no-heap-diff", false,
+                "Only check mutants' exit status and output against the seed, without diffing their heaps");
+        noHeapDiff.setRequired(false);
+        options.addOption(noHeapDiff);
+
+        Option dropDumps = new Option(null, "drop-dumps", false,
+                "Delete the heap dumps of mutants which pass the heap diff, keeping only their root hashes (.roots)");
+        dropDumps.setRequired(false);
+        options.addOption(dropDumps);
+
+        Option timeout = new Option(null, "timeout", true,
+                "Seconds after which an execution of a variant is killed and counted as a failure (default is " +
+                VariantRunner.DEFAULT_TIMEOUT_SECONDS + ")");
+        timeout.setRequired(false);
+        options.addOption(timeout);
+
+        Option batch = new Option(null, "batch", true,
+                "Number of mutants to generate at a time from one variant, reading their classes once (default is 1). The " +
+                "spare mutants are used when a lineage needs another mutant of the same variant");
+        batch.setRequired(false);
+        options.addOption(batch);
+
+        Option backend = new Option("b", "backend", true,
+                "How to apply mutations: asm (default) rewrites bytecode directly, soot goes through Jimple");
+        backend.setRequired(false);
+        options.addOption(backend);
+
+        Option evictEvery = new Option(null, "evict-every", true,
+                "Evict the stored class files which no lineage needs every this many mutants (default is never). " +
+                "Evicted mutants are regenerated from their recipes when needed");
+        evictEvery.setRequired(false);
+        options.addOption(evictEvery);
+
+        Option dumpLibrary = new Option("d", "dump-lib", true, "Path to the heap dump library (default is bazel-bin/libheap-dump.jar)");
+        dumpLibrary.setRequired(false);
+        options.addOption(dumpLibrary);
+
+        Option jacoco = new Option("j", "jacoco", true, "Path to the JaCoCo agent jar (default is lib/jacocoagent.jar)");
+        jacoco.setRequired(false);
+        options.addOption(jacoco);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        try {
+            return parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp(Campaign.class.getName(), options);
+            System.exit(1);
+        }
+        return null;
+    }
+}
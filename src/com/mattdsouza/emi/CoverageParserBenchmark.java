@@ -0,0 +1,97 @@
+package com.mattdsouza.emi;
+
+import org.apache.commons.cli.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+// Helper utility to compare the streaming XML coverage parser against the old DOM parser.
+// Point it at a PMD-sized report (e.g., from `jacococli report <exec> --classfiles <variant> --xml <report>`).
+public class CoverageParserBenchmark {
+    private interface Parser {
+        BytecodeCoverage parse(String coverageFile) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine options = parseOptions(args);
+        String coverageFile = options.getOptionValue("coverage");
+        String classDir = options.getOptionValue("classdir");
+        int iterations = Integer.parseInt(options.getOptionValue("iterations", "10"));
+
+        measure("DOM", BytecodeCoverage::fromFileDom, coverageFile, iterations);
+        measure("StAX", file -> BytecodeCoverage.fromFile(file, null), coverageFile, iterations);
+        if (classDir != null) {
+            measure("StAX (process-dir only)", file -> BytecodeCoverage.fromFile(file, classDir), coverageFile, iterations);
+        }
+    }
+
+    private static void measure(String name, Parser parser, String coverageFile, int iterations) throws Exception {
+        // Warm up, so that we compare steady-state parsing rather than class loading and JIT compilation.
+        for (int i = 0; i < iterations; i++) {
+            parser.parse(coverageFile);
+        }
+
+        long totalNanos = 0;
+        long maxPeakBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            System.gc();
+            long baseline = resetPeakHeapUsage();
+            long start = System.nanoTime();
+            parser.parse(coverageFile);
+            totalNanos += System.nanoTime() - start;
+            maxPeakBytes = Math.max(maxPeakBytes, peakHeapUsage() - baseline);
+        }
+        System.out.printf("%-25s %8.1f ms/parse %8.1f MB peak heap\n",
+                name, totalNanos / 1e6 / iterations, maxPeakBytes / (1024.0 * 1024.0));
+    }
+
+    // Resets the peak usage of all heap pools, returning the current usage.
+    private static long resetPeakHeapUsage() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long peakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    static CommandLine parseOptions(String[] args) {
+        Options options = new Options();
+
+        Option coverage = new Option("c", "coverage", true, "JaCoCo coverage report file (XML)");
+        coverage.setRequired(true);
+        options.addOption(coverage);
+
+        Option classDir = new Option("d", "classdir", true, "Variant class directory, to also measure process-dir filtering");
+        classDir.setRequired(false);
+        options.addOption(classDir);
+
+        Option iterations = new Option("n", "iterations", true, "Number of measured parses per parser (default is 10)");
+        iterations.setRequired(false);
+        options.addOption(iterations);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        try {
+            return parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp(CoverageParserBenchmark.class.getName(), options);
+            System.exit(1);
+        }
+        return null;
+    }
+}
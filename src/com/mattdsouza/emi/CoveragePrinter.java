@@ -1,12 +1,11 @@
 package com.mattdsouza.emi;
 
 import org.apache.commons.cli.*;
-import org.xml.sax.SAXException;
 import soot.*;
 import soot.tagkit.BytecodeOffsetTag;
 import soot.tagkit.Tag;
 
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,8 +36,8 @@ public class CoveragePrinter {
         // Parse coverage and add our transformer to the Soot pipeline
         BytecodeCoverage coverage = null;
         try {
-            coverage = BytecodeCoverage.fromFile(coverageFile);
-        } catch (ParserConfigurationException | IOException | SAXException e) {
+            coverage = BytecodeCoverage.load(coverageFile, classpath);
+        } catch (IOException | XMLStreamException e) {
             e.printStackTrace();
         }
         PackManager.v().getPack("jtp").add(new Transform("jtp.mytransform", new CoveragePrintingTransformer(coverage)));
@@ -56,7 +55,7 @@ public class CoveragePrinter {
         classpath.setRequired(true);
         options.addOption(classpath);
 
-        Option coverage = new Option("c", "coverage", true, "JaCoCo coverage report file (XML)");
+        Option coverage = new Option("c", "coverage", true, "JaCoCo coverage report (XML) or execution data (.exec) file");
         coverage.setRequired(true);
         options.addOption(coverage);
 
@@ -86,6 +85,7 @@ class CoveragePrintingTransformer extends BodyTransformer {
         String clazz = b.getMethod().getDeclaringClass().getName();
         String method = b.getMethod().getName();
         System.out.println(clazz + "::" + method);
+        int methodId = coverage.methodId(clazz, EMIMutator.getMethodWithDescriptor(b.getMethod()));
         UnitPatchingChain units = b.getUnits();
         for (Unit unit : units) {
             Tag offsetTag = unit.getTag("BytecodeOffsetTag");
@@ -97,7 +97,7 @@ class CoveragePrintingTransformer extends BodyTransformer {
                 coverageLevel = BytecodeCoverage.Level.LIVE;
             } else {
                 offset = ((BytecodeOffsetTag) offsetTag).getBytecodeOffset();
-                coverageLevel = coverage.coverageOf(clazz, method, offset);
+                coverageLevel = coverage.coverageOf(methodId, offset);
             }
 
             char cov = (coverageLevel == BytecodeCoverage.Level.LIVE) ? ' ' : (coverageLevel == BytecodeCoverage.Level.DEAD) ? '!' : '?';
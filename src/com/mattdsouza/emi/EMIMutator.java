@@ -6,81 +6,246 @@ import soot.jimple.internal.*;
 import soot.tagkit.BytecodeOffsetTag;
 import soot.tagkit.Tag;
 
+import java.nio.file.Path;
 import java.util.*;
-import java.util.stream.Collectors;
 
-class EMIMutator extends BodyTransformer {
-    BytecodeCoverage coverage;
+// Applies the mutations of a mutant's plan (see MutationPlan) with Soot: target classes are converted to Jimple, mutated
+// and written back out as class files. Bodies are shared by every mutant of a batch (see writeMutants), so mutations
+// are applied to copies.
+class EMIMutator {
+    private final long seed;
+    // Mutations to apply, by key of the method to mutate.
+    private final Map<String, MutationPlan.Target> targets = new TreeMap<>();
+
+    EMIMutator(MutationPlan plan) {
+        this.seed = plan.seed;
+        for (MutationPlan.Target target : plan.targets) {
+            this.targets.put(target.key(), target);
+        }
+    }
 
-    static Random rand = new Random();
+    // Writes the classes each mutant of a batch mutates to its output directory. The classes any of them mutates are
+    // converted to Jimple once, and each mutant mutates copies of just its target bodies. Resets Soot before and after.
+    static void writeMutants(String classPath, List<MutationPlan> plans, List<Path> outputPaths) {
+        Set<String> targetClasses = new TreeSet<>();
+        for (MutationPlan plan : plans) {
+            targetClasses.addAll(plan.classNames());
+        }
+        if (targetClasses.isEmpty()) {
+            return;
+        }
 
-    enum Mutation {
-//        DELETE,
-        ALLOC,
-        TRUE_GUARD;
+        List<String> sootOptions = new ArrayList<>();
+        // Add classes to Soot classpath
+        sootOptions.add("-cp");
+        sootOptions.add(classPath);
+        // Prepend Soot classpath to default classpath
+        sootOptions.add("-pp");
+        // Direct Soot to remember bytecode offsets
+        sootOptions.add("-keep-bytecode-offset");
+        // Output transformed results as classfiles
+        sootOptions.add("-f");
+        sootOptions.add("c");
+        // Direct Soot to load just the classes declaring a target method
+        sootOptions.addAll(targetClasses);
+        G.reset();
+        soot.options.Options.v().parse(sootOptions.toArray(new String[0]));
+        Scene.v().loadNecessaryClasses();
+
+        Map<SootMethod, Body> bodies = new HashMap<>();
+        for (String className : targetClasses) {
+            for (SootMethod method : Scene.v().getSootClass(className).getMethods()) {
+                if (method.isConcrete()) {
+                    bodies.put(method, method.retrieveActiveBody());
+                }
+            }
+        }
+        for (int i = 0; i < plans.size(); i++) {
+            writeMutant(new EMIMutator(plans.get(i)), plans.get(i).classNames(), bodies, outputPaths.get(i));
+        }
+        G.reset();
+    }
 
-        static Mutation randomChoice() {
-            Mutation[] all = Mutation.values();
-            return all[rand.nextInt(all.length)];
+    // Writes the classes a mutant mutates to its output directory: their target bodies are replaced by mutated copies,
+    // and their other bodies are the shared originals.
+    private static void writeMutant(EMIMutator mutator, Set<String> targetClasses, Map<SootMethod, Body> bodies,
+                                    Path outputPath) {
+        soot.options.Options.v().set_output_dir(outputPath.toString());
+        for (String className : targetClasses) {
+            SootClass sootClass = Scene.v().getSootClass(className);
+            List<Body> mutated = new ArrayList<>();
+            for (SootMethod method : sootClass.getMethods()) {
+                Body original = bodies.get(method);
+                if (original == null) {
+                    continue;
+                }
+                Body body = mutator.mutate(original);
+                if (body != null) {
+                    mutated.add(body);
+                }
+                method.setActiveBody(body != null ? body : original);
+            }
+            if (mutated.isEmpty()) {
+                continue;
+            }
+            // Only the mutated bodies changed, so only they need validating. The written class files are checked
+            // again by MutantVerifier.
+            for (Body body : mutated) {
+                body.validate();
+            }
+            PackManager.v().writeClass(sootClass);
         }
     }
 
+    // Indexes the given classes of a variant with Soot, adding (or replacing) their sites: the distinct bytecode offsets
+    // and kinds of each method's non-identity statements. Resets Soot before and after.
+    static void index(MutationSites sites, String classPath, Collection<String> classNames) {
+        if (classNames.isEmpty()) {
+            return;
+        }
+        G.reset();
+        for (String className : classNames) {
+            // Classes without any concrete method body are never visited by the indexer, but are still indexed.
+            sites.addClass(className);
+        }
 
-    EMIMutator(BytecodeCoverage coverage) {
-        this.coverage = coverage;
+        List<String> sootOptions = new ArrayList<>();
+        sootOptions.add("-cp");
+        sootOptions.add(classPath);
+        sootOptions.add("-pp");
+        sootOptions.add("-keep-bytecode-offset");
+        // Only the transform pass is needed; don't write anything out.
+        sootOptions.add("-f");
+        sootOptions.add("n");
+        sootOptions.addAll(classNames);
+
+        PackManager.v().getPack("jtp").add(new Transform("jtp.siteindexer", new Indexer(sites)));
+        soot.Main.main(sootOptions.toArray(new String[0]));
+        G.reset();
     }
 
-    @Override
-    protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
-        String clazz = b.getMethod().getDeclaringClass().getName();
-        String methodWithDescriptor = getMethodWithDescriptor(b.getMethod());
+    private static class Indexer extends BodyTransformer {
+        private final MutationSites index;
 
-        // Mutating constructors is asking for problems.
-        if (b.getMethod().isConstructor()) {
-            return;
+        Indexer(MutationSites index) {
+            this.index = index;
         }
 
-        // Don't mutate unreached methods. We need a liveness trace in order to produce a valid control flow graph.
-        if (!coverage.methodReached(clazz, methodWithDescriptor)) {
-            return;
+        @Override
+        protected void internalTransform(Body b, String phaseName, Map<String, String> options) {
+            // Mutating constructors is asking for problems.
+            if (b.getMethod().isConstructor()) {
+                return;
+            }
+            // Soot can split one bytecode instruction into several statements; a site is the first of each kind.
+            Map<Long, MutationSites.Site> sites = new LinkedHashMap<>();
+            for (Unit unit : b.getUnits()) {
+                MutationSites.Kind kind = kindOf(unit);
+                Tag offsetTag = unit.getTag("BytecodeOffsetTag");
+                if (kind == null || offsetTag == null) {
+                    continue;
+                }
+                int offset = ((BytecodeOffsetTag) offsetTag).getBytecodeOffset();
+                sites.putIfAbsent(((long) offset << 8) | kind.ordinal(),
+                        new MutationSites.Site(offset, kind, BytecodeCoverage.Level.UNKNOWN));
+            }
+            if (!sites.isEmpty()) {
+                index.put(b.getMethod().getDeclaringClass().getName(), getMethodWithDescriptor(b.getMethod()),
+                        new ArrayList<>(sites.values()));
+            }
         }
+    }
 
+    // Returns the kind of a statement, or null for identity statements, which are never mutated.
+    static MutationSites.Kind kindOf(Unit unit) {
+        if (unit instanceof IdentityStmt) {
+            return null;
+        } else if (unit instanceof AssignStmt) {
+            return ((AssignStmt) unit).getRightOp() instanceof AnyNewExpr ? MutationSites.Kind.ASSIGN_NEW : MutationSites.Kind.ASSIGN;
+        } else if (unit instanceof InvokeStmt) {
+            return ((InvokeStmt) unit).getInvokeExpr() instanceof SpecialInvokeExpr ? MutationSites.Kind.SPECIAL_INVOKE : MutationSites.Kind.INVOKE;
+        } else if (unit instanceof IfStmt) {
+            return MutationSites.Kind.IF;
+        } else if (unit instanceof SwitchStmt) {
+            return MutationSites.Kind.SWITCH;
+        } else if (unit instanceof ReturnStmt) {
+            return MutationSites.Kind.RETURN;
+        } else if (unit instanceof ReturnVoidStmt) {
+            return MutationSites.Kind.RETURN_VOID;
+        } else if (unit instanceof GotoStmt) {
+            return MutationSites.Kind.GOTO;
+        } else if (unit instanceof ThrowStmt) {
+            return MutationSites.Kind.THROW;
+        } else if (unit instanceof MonitorStmt) {
+            return MutationSites.Kind.MONITOR;
+        }
+        return MutationSites.Kind.OTHER;
+    }
 
-        float mutationFrequency = 0.01f;
-        if (rand.nextFloat() > mutationFrequency) {
-            return;
+    // Returns a mutated copy of a body, or null if its method isn't a target (or its site can't be found). The original
+    // body is left untouched.
+    Body mutate(Body original) {
+        // Mutating constructors is asking for problems.
+        if (original.getMethod().isConstructor()) {
+            return null;
         }
 
-        Mutation mutation = Mutation.randomChoice();
+        // Only mutate the targets chosen up front (which are all reached methods).
+        MutationPlan.Target target = targets.get(MutationPlan.key(original.getMethod().getDeclaringClass().getName(), getMethodWithDescriptor(original.getMethod())));
+        if (target == null) {
+            return null;
+        }
+        // Randomness of this method's mutation doesn't depend on which other bodies were mutated before it.
+        Random random = target.random(seed);
+        Body b = (Body) original.clone();
+        Unit choice = findSite(b, target.site);
+        if (choice == null) {
+            System.out.printf("Site %d (%s) of %s not found; the site index is out of date.\n",
+                    target.site.offset, target.site.kind, b.getMethod().getSignature());
+            return null;
+        }
+
+        MutationPlan.Mutation mutation = target.mutation;
         switch(mutation) {
 //            case DELETE:
-//                runDelete(b);
+//                runDelete(b, coverage, methodId);
 //                break;
             case ALLOC:
-                runAlloc(b);
+                runAlloc(b, choice);
                 break;
             case TRUE_GUARD:
-                runTrueGuard(b);
+                runTrueGuard(b, choice, random);
                 break;
             default:
                 throw new RuntimeException("Unknown mutation " + mutation.toString());
         }
         System.out.printf("Mutated %s with strategy %s.\n", b.getMethod().getSignature(), mutation.toString());
+        return b;
     }
 
-    private String getMethodWithDescriptor(SootMethod method) {
+    static String getMethodWithDescriptor(SootMethod method) {
         return method.getName() + AbstractJasminClass.jasminDescriptorOf(method.makeRef());
     }
 
-    private BytecodeCoverage.Level coverageOf(Body b, Unit unit) {
+    // Returns the first statement at the site's offset of the site's kind, or null if there is none.
+    private static Unit findSite(Body b, MutationSites.Site site) {
+        for (Unit unit : b.getUnits()) {
+            Tag offsetTag = unit.getTag("BytecodeOffsetTag");
+            if (offsetTag != null && ((BytecodeOffsetTag) offsetTag).getBytecodeOffset() == site.offset
+                    && kindOf(unit) == site.kind) {
+                return unit;
+            }
+        }
+        return null;
+    }
+
+    private static BytecodeCoverage.Level coverageOf(BytecodeCoverage coverage, int methodId, Unit unit) {
         Tag offsetTag = unit.getTag("BytecodeOffsetTag");
         if (offsetTag == null) {
             return BytecodeCoverage.Level.NON_INSTRUCTION;
         } else {
-            String clazz = b.getMethod().getDeclaringClass().getName();
-            String methodWithDescriptor = getMethodWithDescriptor(b.getMethod());
             int offset = ((BytecodeOffsetTag) offsetTag).getBytecodeOffset();
-            return coverage.coverageOf(clazz, methodWithDescriptor, offset);
+            return coverage.coverageOf(methodId, offset);
         }
     }
 
@@ -91,31 +256,29 @@ class EMIMutator extends BodyTransformer {
         return Jimple.v().newLocal(newLocal, t);
     }
 
-    private Value generateValue(Type t) {
+    private Value generateValue(Type t, Random random) {
         if (t instanceof RefLikeType) {
             return NullConstant.v();
         } else if (t instanceof LongType) {
-            return LongConstant.v(rand.nextLong());
+            return LongConstant.v(random.nextLong());
         } else if (t instanceof IntType) {
-            return IntConstant.v(rand.nextInt());
+            return IntConstant.v(random.nextInt());
         } else {
             return IntConstant.v(0);
         }
     }
 
-    private void runTrueGuard(Body b) {
+    // Wraps the chosen statement (a live, guardable site) in an always-true guard.
+    private void runTrueGuard(Body b, Unit choice, Random random) {
         Local newLocal = makeLocal(b, IntType.v());
         b.getLocals().add(newLocal);
 
         UnitPatchingChain units = b.getUnits();
 
-        // Insert an assignment at the beginning of the method.
-        Optional<Unit> firstUnit = units.stream().filter(u -> !(u instanceof JIdentityStmt)).findFirst();
-        if (!firstUnit.isPresent()) {
-            throw new RuntimeException("Attempted to mutate body of " + b.getMethod().getSignature() + " but it has no appropriate units.");
-        }
-        Unit assignLocation = firstUnit.get();
-        int value = rand.nextInt();
+        // Insert an assignment at the beginning of the method. The chosen statement isn't an identity statement, so
+        // there is one.
+        Unit assignLocation = ((JimpleBody) b).getFirstNonIdentityStmt();
+        int value = random.nextInt();
         Unit initStmt = Jimple.v().newAssignStmt(newLocal, IntConstant.v(value));
         units.insertBefore(initStmt, assignLocation);
         // If assignment happens at the beginning of a try block, the variable might not be definitely assigned afterward.
@@ -126,23 +289,6 @@ class EMIMutator extends BodyTransformer {
             }
         });
 
-        // Now, pick a unit to get "wrapped".
-        List<Unit> candidates = units.stream()
-                .filter(u -> !(
-                        u instanceof JIdentityStmt || u instanceof MonitorStmt ||
-                        u instanceof ThrowStmt || u instanceof GotoStmt ||
-                        // Don't wrap <init> calls!
-                        u instanceof InvokeStmt && ((InvokeStmt) u).getInvokeExpr() instanceof SpecialInvokeExpr ||
-                        // Don't wrap new assignments (verifier doesn't seem to understand if both branches are "uninit")
-                        u instanceof AssignStmt && ((AssignStmt) u).getRightOp() instanceof AnyNewExpr
-                ))
-                .filter(u -> coverageOf(b, u) == BytecodeCoverage.Level.LIVE)
-                .collect(Collectors.toList());
-        if (candidates.isEmpty()) {
-            return;
-        }
-        Unit choice = candidates.get(rand.nextInt(candidates.size()));
-
         // Next, generate a valid replacement in the else branch. Sometimes this can be empty, but some statements (e.g.,
         // assignments) need something in this dead else branch to pass bytecode validation.
         NopStmt endIf = Jimple.v().newNopStmt();
@@ -152,7 +298,7 @@ class EMIMutator extends BodyTransformer {
             Type variableType = assignStmt.getLeftOp().getType();
             if (assignStmt.getLeftOp() instanceof Local) {
                 // Locals are checked for definite assignment
-                elses = Jimple.v().newAssignStmt(assignStmt.getLeftOp(), generateValue(variableType));
+                elses = Jimple.v().newAssignStmt(assignStmt.getLeftOp(), generateValue(variableType, random));
             } else {
                 elses = Jimple.v().newNopStmt();
             }
@@ -160,7 +306,7 @@ class EMIMutator extends BodyTransformer {
             elses = Jimple.v().newReturnVoidStmt();
         } else if (choice instanceof ReturnStmt) {
             ReturnStmt returnStmt = (ReturnStmt) choice;
-            elses = Jimple.v().newReturnStmt(generateValue(returnStmt.getOp().getType()));
+            elses = Jimple.v().newReturnStmt(generateValue(returnStmt.getOp().getType(), random));
         } else if (choice instanceof IfStmt || choice instanceof InvokeStmt || choice instanceof SwitchStmt) {
             elses = Jimple.v().newNopStmt();
         } else {
@@ -181,18 +327,9 @@ class EMIMutator extends BodyTransformer {
     /* NOTE: This doesn't work very well, because it changes the roots set when performing a heap dump.
      * Maybe there's a better way to do this kind of transformation.
      */
-    private void runAlloc(Body b) {
+    private void runAlloc(Body b, Unit choice) {
         UnitPatchingChain units = b.getUnits();
 
-        // Find somewhere to insert a new call.
-        List<Unit> candidates = units.stream()
-                .filter(u -> !(u instanceof JIdentityStmt))
-                .collect(Collectors.toList());
-        if (candidates.isEmpty()) {
-            return;
-        }
-        Unit choice = candidates.get(rand.nextInt(candidates.size()));
-
         Local l = makeLocal(b, RefType.v("java.lang.Object"));
         b.getLocals().add(l);
 
@@ -207,16 +344,13 @@ class EMIMutator extends BodyTransformer {
      *  compute the stack frame map. I think it's related to control flow and exception handlers, but it's not clear.
      *  Before using this technique we need a better understanding of when it is OK to delete instructions.
      */
-    private void runDelete(Body b) {
-        String clazz = b.getMethod().getDeclaringClass().getName();
-        String methodWithDescriptor = getMethodWithDescriptor(b.getMethod());
-
+    private void runDelete(Body b, BytecodeCoverage coverage, int methodId) {
         UnitPatchingChain units = b.getUnits();
         Iterator<Unit> unitIt = units.snapshotIterator();
 
         while (unitIt.hasNext()) {
             Unit unit = unitIt.next();
-            BytecodeCoverage.Level coverageLevel = coverageOf(b, unit);
+            BytecodeCoverage.Level coverageLevel = coverageOf(coverage, methodId, unit);
             if (coverageLevel == BytecodeCoverage.Level.DEAD && deletable(unit)) {
                 units.remove(unit);
             }
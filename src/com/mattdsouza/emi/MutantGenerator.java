@@ -1,69 +1,206 @@
 package com.mattdsouza.emi;
 
 import org.apache.commons.cli.*;
-import org.xml.sax.SAXException;
-import soot.*;
 
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.stream.Collectors;
 
-// Entrypoint to generate a new EMI variant from an existing variant.
+// Entrypoint to generate new EMI variants from an existing variant.
+// With --count K, K independent mutants are generated at once, so that their classes are read (and, with Soot, converted
+// to Jimple) once.
+// Mutations are applied by one of two backends (--backend): asm (AsmMutator, the default) rewrites the target methods'
+// bytecode directly; soot (EMIMutator) round-trips the target classes through Jimple, and needs the patched Soot.
+// Mutants are verified before they're committed (see MutantVerifier); one which fails is replaced by a new one.
+// Each mutant gets its own seed (drawn from --seed, if given), and is committed with its recipe: the backend, the seed
+// and the mutations chosen with it. That's enough to generate it again (see regenerate), so the registry can evict its
+// objects once it's checked that the recipe does.
 public class MutantGenerator {
+    static final String DEFAULT_BACKEND = "asm";
+    // Mutants generated in place of one which failed verification, before giving up.
+    private static final int MAX_ATTEMPTS = 10;
+
+    // Soot keeps its state in global singletons, so runs in one JVM (e.g., regenerations by Campaign workers) take turns.
+    private static final Object SOOT_LOCK = new Object();
+
     public static void main(String[] args) throws Exception {
         CommandLine options = parseOptions(args);
         String registryPath = options.getOptionValue("registry");
         String variant = options.getOptionValue("variant");
         String newVariant = options.getOptionValue("new-variant");
         String coverageFile = options.getOptionValue("coverage");
-        generateMutant(registryPath, variant, newVariant, coverageFile);
+        int count = Integer.parseInt(options.getOptionValue("count", "1"));
+        Long seed = options.hasOption("seed") ? Long.parseLong(options.getOptionValue("seed")) : null;
+        String backend = options.getOptionValue("backend", DEFAULT_BACKEND);
+        generateMutants(registryPath, variant, batchNames(newVariant, count), coverageFile, seed, backend);
+    }
+
+    // Names of the mutants of a batch: the new variant name itself for a single mutant, or the name with a "-<i>"
+    // suffix for each of several.
+    static List<String> batchNames(String newVariant, int count) {
+        if (count == 1) {
+            return Collections.singletonList(newVariant);
+        }
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            names.add(newVariant + "-" + i);
+        }
+        return names;
     }
 
     public static void generateMutant(String registryPath, String variant, String newVariant, String coverageFile) throws Exception {
-        MutantRegistry registry = new MutantRegistry(registryPath);
-        String variantPath = registry.getMutant(variant).toString();
+        generateMutants(registryPath, variant, Collections.singletonList(newVariant), coverageFile, null, DEFAULT_BACKEND);
+    }
 
-        String classPath = registry.getSupportingJars().stream()
+    // Generates a batch of mutants of a variant. Their seeds are drawn from batchSeed, or at random if it's null.
+    public static void generateMutants(String registryPath, String variant, List<String> newVariants, String coverageFile,
+                                       Long batchSeed, String backend) throws Exception {
+        checkBackend(backend);
+        synchronized (SOOT_LOCK) {
+            MutantRegistry registry = new MutantRegistry(registryPath);
+            String variantPath = registry.getMutant(variant).toString();
+            String classPath = classPath(registry, variantPath);
+            System.out.println("Classpath is " + classPath);
+            List<Path> outputPaths = new ArrayList<>();
+            for (String newVariant : newVariants) {
+                outputPaths.add(registry.createMutant(newVariant));
+            }
+
+            // Parse coverage and choose the methods to mutate up front, so that only their declaring classes need to
+            // be rewritten. Everything else is shared with the parent.
+            BytecodeCoverage coverage = null;
+            try {
+                coverage = BytecodeCoverage.load(coverageFile, variantPath);
+            } catch (IOException | XMLStreamException e) {
+                e.printStackTrace();
+            }
+            MutationSites sites = loadSites(registry, variant, classPath, coverage, backend);
+            Random seeds = batchSeed != null ? new Random(batchSeed) : new SecureRandom();
+            List<MutationPlan> plans = new ArrayList<>();
+            for (String newVariant : newVariants) {
+                long seed = seeds.nextLong();
+                System.out.printf("Mutant %s has seed %d.\n", newVariant, seed);
+                plans.add(MutationPlan.choose(seed, coverage, sites));
+            }
+            writeMutants(backend, classPath, plans, outputPaths);
+
+            // Check each mutant's classes before committing it, and replace mutants the JVM would reject with new ones
+            // (under the same name, so callers can rely on the batch's names).
+            try (MutantVerifier verifier = new MutantVerifier(classPath)) {
+                for (int i = 0; i < newVariants.size(); i++) {
+                    String problem;
+                    for (int attempt = 1; (problem = verifier.verify(outputPaths.get(i))) != null; attempt++) {
+                        System.out.printf("Rejected mutant %s with seed %d: %s\n",
+                                newVariants.get(i), plans.get(i).seed, problem);
+                        if (attempt == MAX_ATTEMPTS) {
+                            throw new RuntimeException(String.format("No valid mutant %s in %d attempts.",
+                                    newVariants.get(i), attempt));
+                        }
+                        MutantRegistry.deleteTree(outputPaths.get(i));
+                        Files.createDirectory(outputPaths.get(i));
+                        long seed = seeds.nextLong();
+                        System.out.printf("Mutant %s has seed %d.\n", newVariants.get(i), seed);
+                        plans.set(i, MutationPlan.choose(seed, coverage, sites));
+                        writeMutants(backend, classPath, plans.subList(i, i + 1), outputPaths.subList(i, i + 1));
+                    }
+                }
+            }
+
+            // Only the mutated classes were written; the registry records them as a delta over the parent. Each recipe
+            // is checked against the written classes now, so that evicting the mutant later only has to delete them.
+            for (int i = 0; i < newVariants.size(); i++) {
+                MutantRegistry.Recipe recipe = plans.get(i).toRecipe(backend);
+                boolean reproducible = registry.reproduces(newVariants.get(i), variant, recipe);
+                if (!reproducible) {
+                    System.out.printf("Mutant %s doesn't regenerate from its recipe; its objects won't be evicted.\n",
+                            newVariants.get(i));
+                }
+                registry.commitMutant(newVariants.get(i), variant, recipe, reproducible);
+            }
+        }
+    }
+
+    // Generates a mutant again from its parent and recipe, writing the classes it mutated to the output directory.
+    // Targets were chosen when the mutant was first generated, so neither coverage nor the site index is needed.
+    static void regenerate(MutantRegistry registry, String parent, MutantRegistry.Recipe recipe, Path outputPath)
+            throws MutantRegistry.MutantRegistryException, IOException {
+        checkBackend(recipe.backend);
+        synchronized (SOOT_LOCK) {
+            String classPath = classPath(registry, registry.getMutant(parent).toString());
+            writeMutants(recipe.backend, classPath, Collections.singletonList(MutationPlan.fromRecipe(recipe)),
+                    Collections.singletonList(outputPath));
+        }
+    }
+
+    private static void writeMutants(String backend, String classPath, List<MutationPlan> plans, List<Path> outputPaths)
+            throws IOException {
+        if (backend.equals("soot")) {
+            EMIMutator.writeMutants(classPath, plans, outputPaths);
+        } else {
+            AsmMutator.writeMutants(classPath, plans, outputPaths);
+        }
+    }
+
+    private static void checkBackend(String backend) {
+        if (!backend.equals("asm") && !backend.equals("soot")) {
+            throw new IllegalArgumentException("Unknown mutator backend " + backend + "; expected asm or soot.");
+        }
+    }
+
+    private static String classPath(MutantRegistry registry, String variantPath)
+            throws MutantRegistry.MutantRegistryException, IOException {
+        return registry.getSupportingJars().stream()
                 .map(Path::toString)
                 .collect(Collectors.joining(":")) + ":" + variantPath;
-        System.out.println("Classpath is " + classPath);
-        String outputPath = registry.createMutant(newVariant).toString();
-
-        List<String> sootOptions = new ArrayList<>();
-        // Add classes to Soot classpath
-        sootOptions.add("-cp");
-        sootOptions.add(classPath);
-        // Direct Soot to transform classes in directory
-        sootOptions.add("-process-dir");
-        sootOptions.add(variantPath);
-        // Prepend Soot classpath to default classpath
-        sootOptions.add("-pp");
-        // Direct Soot to remember bytecode offsets
-        sootOptions.add("-keep-bytecode-offset");
-        // Output transformed results as classfiles
-        sootOptions.add("-f");
-        sootOptions.add("c");
-        // Indicate output location for classfiles
-        sootOptions.add("-d");
-        sootOptions.add(outputPath);
-        // Direct Soot to validate the output
-        sootOptions.add("-validate");
-
-        // Parse coverage and add our transformer to the Soot pipeline
-        BytecodeCoverage coverage = null;
-        try {
-            coverage = BytecodeCoverage.fromFile(coverageFile);
-        } catch (ParserConfigurationException | IOException | SAXException e) {
-            e.printStackTrace();
+    }
+
+    // Returns the mutation sites of a variant, with their levels in the given coverage. The index is built the first
+    // time a mutant is generated from the variant, starting from its parent's: only the classes the variant changed,
+    // and reached classes the parent's index doesn't cover, are indexed.
+    private static MutationSites loadSites(MutantRegistry registry, String variant, String classPath,
+                                           BytecodeCoverage coverage, String backend) throws Exception {
+        Path file = registry.getMutationSites(variant, backend);
+        boolean stored = Files.exists(file);
+        MutationSites sites;
+        if (stored) {
+            sites = MutationSites.read(file);
+        } else {
+            String parent = registry.getParent(variant);
+            if (parent != null && Files.exists(registry.getMutationSites(parent, backend))) {
+                sites = MutationSites.read(registry.getMutationSites(parent, backend));
+                for (String changed : registry.getChangedFiles(variant)) {
+                    if (changed.endsWith(".class")) {
+                        sites.removeClass(changed.substring(0, changed.length() - ".class".length()).replace('/', '.'));
+                    }
+                }
+            } else {
+                sites = new MutationSites();
+            }
         }
-        EMIMutator mutator = new EMIMutator(coverage);
-        PackManager.v().getPack("jtp").add(new Transform("jtp.mytransform", mutator));
 
-        // Run Soot
-        String[] sootArgs = new String[sootOptions.size()];
-        soot.Main.main(sootOptions.toArray(sootArgs));
+        Set<String> unindexed = new TreeSet<>();
+        for (int methodId = 0; methodId < coverage.methodCount(); methodId++) {
+            if (!sites.classNames().contains(coverage.className(methodId))) {
+                unindexed.add(coverage.className(methodId));
+            }
+        }
+        if (!unindexed.isEmpty()) {
+            System.out.printf("Indexing mutation sites of %d class(es) of %s.\n", unindexed.size(), variant);
+        }
+        if (backend.equals("soot")) {
+            EMIMutator.index(sites, classPath, unindexed);
+        } else {
+            AsmMutator.index(sites, classPath, unindexed);
+        }
+        sites.relevel(coverage);
+        if (!stored || !unindexed.isEmpty()) {
+            sites.write(file);
+        }
+        return sites;
     }
 
     static CommandLine parseOptions(String[] args) {
@@ -81,10 +218,26 @@ public class MutantGenerator {
         newVariant.setRequired(true);
         options.addOption(newVariant);
 
-        Option coverage = new Option("c", "coverage", true, "JaCoCo coverage report file (XML)");
+        Option coverage = new Option("c", "coverage", true, "JaCoCo coverage report (XML) or execution data (.exec) file");
         coverage.setRequired(true);
         options.addOption(coverage);
 
+        Option count = new Option(null, "count", true,
+                "Number of independent mutants to generate at once (default is 1). With several, they are " +
+                "named <new-variant>-1 to <new-variant>-<count>");
+        count.setRequired(false);
+        options.addOption(count);
+
+        Option seed = new Option("s", "seed", true,
+                "Seed to draw the mutants' seeds from, to generate the same batch again (default is random)");
+        seed.setRequired(false);
+        options.addOption(seed);
+
+        Option backend = new Option("b", "backend", true,
+                "How to apply mutations: asm (default) rewrites bytecode directly, soot goes through Jimple");
+        backend.setRequired(false);
+        options.addOption(backend);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         try {
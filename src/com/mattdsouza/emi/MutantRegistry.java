@@ -1,23 +1,37 @@
 package com.mattdsouza.emi;
 
-import java.io.File;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 // Abstraction over a directory which persists files from the EMI process.
 // Contains:
 //  - seed/ folder with the base (unmodified) program
 //  - inputs/ folder containing sets of command line inputs
-//  - outputs/ folder containing the corresponding output for each input
-//  - mutants/ folder containing generated mutants (if any)
+//  - outputs/ folder containing the corresponding output for each input, and the output digest of executed variants
+//  - objects/ folder, a content-addressed store of the class files (and other files) that mutants changed
+//  - manifests/ folder with one file per mutant: its parent variant, its recipe if it has one (see Recipe), plus the
+//    files which differ from the parent (relative path and object hash, or "-" if deleted)
+//  - mutants/ folder with materialized views of mutants (hard links into objects/ and seed/), created on demand
+//  - staging/ folder where new mutants are written before being committed to the store
+//  - run script which executes a variant (see VariantRunner)
+//  - optional heap-ignore file with the rules for objects the heap diff skips (see HeapIgnorePolicy)
+//  - dumps/ and coverage/ folders containing heap dumps (and their root hashes, see HeapHasher) and coverage of executed
+//    variants
+//  - sites/ folder with the index of mutation sites of each variant mutants were generated from, per mutator backend
+//    (see MutationSites)
 //  - any other data necessary for execution
+// Objects of mutants with a recipe can be evicted when they are cold (see evict), if the recipe was shown to generate
+// them again when the mutant was committed (see reproduces): getMutant generates them again from the recipe, and checks
+// that they hash the same as before.
 public class MutantRegistry {
     public static class MutantRegistryException extends Exception {
         MutantRegistryException(String message) {
@@ -25,10 +39,45 @@ public class MutantRegistry {
         }
     }
 
+    // How a mutant was generated, so that it can be generated again from its parent: the backend which applied its
+    // mutations, the seed all its randomness came from, and the mutations (one line each; the registry doesn't
+    // interpret them, see MutationPlan).
+    public static class Recipe {
+        public final String backend;
+        public final long seed;
+        public final List<String> mutations;
+
+        public Recipe(String backend, long seed, List<String> mutations) {
+            this.backend = backend;
+            this.seed = seed;
+            this.mutations = mutations;
+        }
+    }
+
+    private static class Manifest {
+        String parent;
+        Recipe recipe;
+        // Whether the recipe was checked to generate the mutant's files again when it was committed. Manifests from
+        // before the check was recorded count as unchecked.
+        boolean reproducible;
+        // Relative path and object hash (or DELETED) of each file which differs from the parent.
+        final List<String[]> delta = new ArrayList<>();
+    }
+
+    private static final String PARENT_KEY = "parent";
+    private static final String BACKEND_KEY = "backend";
+    private static final String SEED_KEY = "seed";
+    private static final String MUTATION_KEY = "mutation";
+    private static final String REPRODUCIBLE_KEY = "reproducible";
+    private static final String DELETED = "-";
+
     private final Path root;
     private final Path mutants;
     private final Path seed;
     private final Path support;
+    private final Path objects;
+    private final Path manifests;
+    private final Path staging;
 
 
     public MutantRegistry(String root) throws MutantRegistryException, IOException {
@@ -36,28 +85,440 @@ public class MutantRegistry {
         this.mutants = checkDirectory(this.root.resolve("mutants"));
         this.seed = checkDirectory(this.root.resolve("seed"));
         this.support = checkDirectory(this.root.resolve("support"));
+        this.objects = Files.createDirectories(this.root.resolve("objects"));
+        this.manifests = Files.createDirectories(this.root.resolve("manifests"));
+        this.staging = Files.createDirectories(this.root.resolve("staging"));
+    }
+
+    public Path getRoot() {
+        return root;
     }
 
     public Path getSeed() {
         return seed;
     }
 
+    public Path getRunScript() throws MutantRegistryException {
+        return checkFile(root.resolve("run"));
+    }
+
+    // Returns the heap ignore rules of the program, or null if it uses the default rules.
+    public Path getHeapIgnoreRules() {
+        Path rules = root.resolve("heap-ignore");
+        return Files.isRegularFile(rules) ? rules : null;
+    }
+
+    public Path getDumps() throws IOException {
+        return Files.createDirectories(root.resolve("dumps"));
+    }
+
+    public Path getCoverage() throws IOException {
+        return Files.createDirectories(root.resolve("coverage"));
+    }
+
+    public Path getOutputs() throws IOException {
+        return Files.createDirectories(root.resolve("outputs"));
+    }
+
+    // Returns the path of a backend's mutation site index of a variant (which may not exist yet).
+    public Path getMutationSites(String variant, String backend) throws IOException {
+        Path sites = Files.createDirectories(root.resolve("sites"));
+        // Soot's indexes predate the other backends.
+        return backend.equals("soot") ? sites.resolve(variant) : sites.resolve(variant + "." + backend);
+    }
+
+    // Returns the parent of a mutant, or null for the seed and mutants created before the object store.
+    public String getParent(String mutant) throws MutantRegistryException, IOException {
+        if (mutant.equals("seed") || !Files.exists(manifests.resolve(mutant))) {
+            return null;
+        }
+        return readManifest(mutant).parent;
+    }
+
+    // Returns the files (relative paths) which a mutant changed or deleted relative to its parent.
+    public List<String> getChangedFiles(String mutant) throws MutantRegistryException, IOException {
+        if (getParent(mutant) == null) {
+            return new ArrayList<>();
+        }
+        return readManifest(mutant).delta.stream().map(entry -> entry[0]).collect(Collectors.toList());
+    }
+
+    // Returns the recipe of a mutant, or null if it has none (e.g., the seed, or mutants generated before recipes).
+    public Recipe getRecipe(String mutant) throws MutantRegistryException, IOException {
+        if (mutant.equals("seed") || !Files.exists(manifests.resolve(mutant))) {
+            return null;
+        }
+        return readManifest(mutant).recipe;
+    }
+
     public List<Path> getSupportingJars() throws IOException, MutantRegistryException{
         return Files.list(checkDirectory(support.resolve("jar")))
                 .filter((path) -> path.toString().endsWith(".jar"))
                 .collect(Collectors.toList());
     }
 
-    public Path getMutant(String mutant) throws MutantRegistryException {
-        return mutant.equals("seed") ? getSeed() : checkDirectory(mutants.resolve(mutant));
+    // Returns a directory containing the full program of the given variant, materializing it if necessary.
+    public Path getMutant(String mutant) throws MutantRegistryException, IOException {
+        if (mutant.equals("seed")) {
+            return getSeed();
+        }
+        Path view = mutants.resolve(mutant);
+        if (Files.isDirectory(view)) {
+            return view;
+        }
+        if (!Files.exists(manifests.resolve(mutant))) {
+            throw new MutantRegistryException("Mutant " + mutant + " does not exist.");
+        }
+
+        // Build the view next to its final location and move it in place, so concurrent readers only ever see a
+        // complete view.
+        Map<String, Path> files = resolve(mutant, true);
+        Path temporary = Files.createTempDirectory(mutants, mutant + ".");
+        for (Map.Entry<String, Path> entry : files.entrySet()) {
+            Path target = temporary.resolve(entry.getKey());
+            Files.createDirectories(target.getParent());
+            link(entry.getValue(), target);
+        }
+        try {
+            Files.move(temporary, view, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteTree(temporary);
+            // Fine if someone else materialized it first.
+            if (!Files.isDirectory(view)) {
+                throw e;
+            }
+        }
+        return view;
+    }
+
+    // Deletes the materialized view of a mutant. Its contents stay in the store, so getMutant can recreate it.
+    public void release(String mutant) throws IOException {
+        if (!mutant.equals("seed") && Files.exists(manifests.resolve(mutant))) {
+            deleteTree(mutants.resolve(mutant));
+        }
     }
 
-    public Path createMutant(String mutant) throws MutantRegistryException {
-        Path newPath = mutants.resolve(mutant);
-        if (Files.exists(newPath)) {
+    // Reserves a staging directory for a new mutant. Creation is atomic, so concurrent writers (e.g., parallel Campaign
+    // workers or forked generators) can never be handed the same directory. Only files that differ from the parent
+    // need to be written to it; see commitMutant.
+    public Path createMutant(String mutant) throws MutantRegistryException, IOException {
+        Path newPath = staging.resolve(mutant);
+        if (Files.exists(manifests.resolve(mutant)) || Files.exists(mutants.resolve(mutant))) {
+            throw new MutantRegistryException("Mutant " + mutant + " already exists.");
+        }
+        try {
+            return Files.createDirectory(newPath);
+        } catch (FileAlreadyExistsException e) {
             throw new MutantRegistryException("Path " + newPath.toString() + " already exists.");
         }
-        return newPath;
+    }
+
+    // Deletes the staging directory of a mutant which was never committed, e.g., because generating it failed.
+    public void discardMutant(String mutant) throws IOException {
+        if (!Files.exists(manifests.resolve(mutant))) {
+            deleteTree(staging.resolve(mutant));
+        }
+    }
+
+    // Moves the files of a staged mutant into the object store and records them as a delta over the parent variant.
+    // Returns the materialized view of the new mutant.
+    public Path commitMutant(String mutant, String parent) throws MutantRegistryException, IOException {
+        return commitMutant(mutant, parent, null, false);
+    }
+
+    // Like commitMutant(mutant, parent), also recording how the mutant was generated, and whether the recipe was checked
+    // to generate it again (see reproduces); only then can its objects be evicted. The recipe may be null.
+    public Path commitMutant(String mutant, String parent, Recipe recipe, boolean reproducible)
+            throws MutantRegistryException, IOException {
+        Path stagingPath = checkDirectory(staging.resolve(mutant));
+        if (!parent.equals("seed") && !Files.exists(manifests.resolve(parent)) && !Files.isDirectory(mutants.resolve(parent))) {
+            throw new MutantRegistryException("Parent " + parent + " of mutant " + mutant + " does not exist.");
+        }
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(stagingPath)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        Path manifest = Files.createTempFile(manifests, mutant + ".", ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            writer.write(PARENT_KEY + "\t" + parent + "\n");
+            if (recipe != null) {
+                writer.write(BACKEND_KEY + "\t" + recipe.backend + "\n");
+                writer.write(SEED_KEY + "\t" + recipe.seed + "\n");
+                for (String mutation : recipe.mutations) {
+                    writer.write(MUTATION_KEY + "\t" + mutation + "\n");
+                }
+                writer.write(REPRODUCIBLE_KEY + "\t" + reproducible + "\n");
+            }
+            for (Path file : files) {
+                writer.write(stagingPath.relativize(file).toString() + "\t" + store(file) + "\n");
+            }
+        }
+        Files.move(manifest, manifests.resolve(mutant), StandardCopyOption.ATOMIC_MOVE);
+        deleteTree(stagingPath);
+        return getMutant(mutant);
+    }
+
+    // Returns whether a recipe generates a staged mutant's files again, byte for byte. Meant to be checked before the
+    // mutant is committed, while its files are at hand, so that evict never has to generate anything. Takes no lock;
+    // the parent's files must stay in place meanwhile.
+    public boolean reproduces(String mutant, String parent, Recipe recipe) throws IOException {
+        Path stagingPath = staging.resolve(mutant);
+        Path output = Files.createTempDirectory(staging, mutant + ".");
+        try {
+            MutantGenerator.regenerate(this, parent, recipe, output);
+            return hashes(output).equals(hashes(stagingPath));
+        } catch (MutantRegistryException | RuntimeException e) {
+            System.out.printf("Could not generate mutant %s again: %s\n", mutant, e.getMessage());
+            return false;
+        } finally {
+            deleteTree(output);
+        }
+    }
+
+    // Returns the relative path and hash of each file under a directory.
+    private static Map<String, String> hashes(Path directory) throws IOException {
+        Map<String, String> hashes = new TreeMap<>();
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                hashes.put(directory.relativize(file).toString(), hash(file));
+            }
+        }
+        return hashes;
+    }
+
+    private void regenerate(String mutant, Manifest manifest) throws MutantRegistryException, IOException {
+        System.out.printf("Regenerating evicted mutant %s from %s.\n", mutant, manifest.parent);
+        generateAgain(mutant, manifest);
+    }
+
+    // Generates a mutant's files again from its recipe, and puts them back in the object store (if they aren't there
+    // already). Fails if they don't hash as recorded, e.g., if generation isn't deterministic after all.
+    private void generateAgain(String mutant, Manifest manifest) throws MutantRegistryException, IOException {
+        Map<String, String> expected = new TreeMap<>();
+        for (String[] entry : manifest.delta) {
+            if (!entry[1].equals(DELETED)) {
+                expected.put(entry[0], entry[1]);
+            }
+        }
+        Path output = Files.createTempDirectory(staging, mutant + ".");
+        try {
+            MutantGenerator.regenerate(this, manifest.parent, manifest.recipe, output);
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(output)) {
+                files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                String relative = output.relativize(file).toString();
+                String hash = hash(file);
+                if (!hash.equals(expected.remove(relative))) {
+                    throw new MutantRegistryException("Regenerating mutant " + mutant + " produced a different " + relative + ".");
+                }
+                store(file, hash);
+            }
+            if (!expected.isEmpty()) {
+                throw new MutantRegistryException("Regenerating mutant " + mutant + " didn't produce " + expected.keySet() + ".");
+            }
+        } finally {
+            deleteTree(output);
+        }
+    }
+
+    // Deletes the objects that only cold mutants use, along with the materialized views of cold mutants. The hot
+    // variants (and the ancestors they resolve through) keep every object their views need. Only objects of mutants
+    // whose recipe was checked to generate them again when they were committed are evicted, so that getMutant can
+    // regenerate them if they're needed again; nothing is generated here. Returns the number of objects deleted.
+    // Must not run concurrently with generating or materializing mutants.
+    public int evict(Collection<String> hot) throws MutantRegistryException, IOException {
+        Set<Path> keep = new HashSet<>();
+        for (String variant : hot) {
+            keep.addAll(resolve(variant, false).values());
+        }
+        Map<String, Manifest> cold = new TreeMap<>();
+        try (Stream<Path> list = Files.list(manifests)) {
+            for (Path file : (Iterable<Path>) list::iterator) {
+                String mutant = file.getFileName().toString();
+                if (mutant.endsWith(".tmp")) {
+                    continue;
+                }
+                Manifest manifest = readManifest(mutant);
+                if (manifest.recipe == null || !manifest.reproducible) {
+                    // Can't be generated again.
+                    for (String[] entry : manifest.delta) {
+                        if (!entry[1].equals(DELETED)) {
+                            keep.add(objectPath(entry[1]));
+                        }
+                    }
+                } else if (!hot.contains(mutant)) {
+                    cold.put(mutant, manifest);
+                }
+            }
+        }
+
+        int deleted = 0;
+        for (Map.Entry<String, Manifest> entry : cold.entrySet()) {
+            // Views hold links to the objects, so they go first.
+            deleteTree(mutants.resolve(entry.getKey()));
+            for (String[] file : entry.getValue().delta) {
+                if (!file[1].equals(DELETED)) {
+                    Path object = objectPath(file[1]);
+                    if (!keep.contains(object) && Files.deleteIfExists(object)) {
+                        deleted++;
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    // Returns every file of a variant (relative path to the file in seed/, objects/ or a legacy mutant directory). With
+    // regenerateMissing, evicted objects the variant needs are generated again first.
+    private Map<String, Path> resolve(String variant, boolean regenerateMissing) throws MutantRegistryException, IOException {
+        // Walk up to the nearest full tree, collecting deltas along the way.
+        Deque<String> chain = new ArrayDeque<>();
+        Map<String, Manifest> manifestsByMutant = new HashMap<>();
+        String current = variant;
+        while (!current.equals("seed") && Files.exists(manifests.resolve(current))) {
+            Manifest manifest = readManifest(current);
+            chain.push(current);
+            manifestsByMutant.put(current, manifest);
+            current = manifest.parent;
+        }
+
+        // Mutants created before the object store are full directory trees, like the seed.
+        Path base = current.equals("seed") ? seed : checkDirectory(mutants.resolve(current));
+        Map<String, Path> files = new TreeMap<>();
+        try (Stream<Path> walk = Files.walk(base)) {
+            for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                files.put(base.relativize(file).toString(), file);
+            }
+        }
+        // Which mutant each file's current version comes from.
+        Map<String, String> owners = new HashMap<>();
+        for (String mutant : chain) {
+            for (String[] entry : manifestsByMutant.get(mutant).delta) {
+                if (entry[1].equals(DELETED)) {
+                    files.remove(entry[0]);
+                    owners.remove(entry[0]);
+                } else {
+                    files.put(entry[0], objectPath(entry[1]));
+                    owners.put(entry[0], mutant);
+                }
+            }
+        }
+
+        if (regenerateMissing) {
+            Set<String> regenerated = new HashSet<>();
+            for (Map.Entry<String, String> owner : owners.entrySet()) {
+                String mutant = owner.getValue();
+                if (Files.exists(files.get(owner.getKey())) || !regenerated.add(mutant)) {
+                    continue;
+                }
+                Manifest manifest = manifestsByMutant.get(mutant);
+                if (manifest.recipe == null) {
+                    throw new MutantRegistryException("Object of " + owner.getKey() + " in mutant " + mutant
+                            + " is missing, and the mutant has no recipe to regenerate it from.");
+                }
+                regenerate(mutant, manifest);
+            }
+        }
+        return files;
+    }
+
+    private Manifest readManifest(String mutant) throws MutantRegistryException, IOException {
+        Manifest manifest = new Manifest();
+        // Recipes from before there was a choice of backend are Soot's.
+        String backend = "soot";
+        Long seed = null;
+        List<String> mutations = new ArrayList<>();
+        for (String line : Files.readAllLines(manifests.resolve(mutant), StandardCharsets.UTF_8)) {
+            String[] entry = line.split("\t");
+            if (entry[0].equals(PARENT_KEY)) {
+                manifest.parent = entry[1];
+            } else if (entry[0].equals(BACKEND_KEY)) {
+                backend = entry[1];
+            } else if (entry[0].equals(SEED_KEY)) {
+                seed = Long.parseLong(entry[1]);
+            } else if (entry[0].equals(MUTATION_KEY)) {
+                mutations.add(line.substring(MUTATION_KEY.length() + 1));
+            } else if (entry[0].equals(REPRODUCIBLE_KEY)) {
+                manifest.reproducible = Boolean.parseBoolean(entry[1]);
+            } else {
+                manifest.delta.add(entry);
+            }
+        }
+        if (manifest.parent == null) {
+            throw new MutantRegistryException("Manifest of mutant " + mutant + " has no parent.");
+        }
+        if (seed != null) {
+            manifest.recipe = new Recipe(backend, seed, mutations);
+        }
+        return manifest;
+    }
+
+    // Adds a file to the object store (consuming it) and returns its hash.
+    private String store(Path file) throws IOException {
+        return store(file, hash(file));
+    }
+
+    private String store(Path file, String hash) throws IOException {
+        Path object = objectPath(hash);
+        if (Files.exists(object)) {
+            Files.delete(file);
+            return hash;
+        }
+        Files.createDirectories(object.getParent());
+        try {
+            Files.move(file, object, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Stored concurrently by someone else; the contents are identical.
+            Files.delete(file);
+        }
+        return hash;
+    }
+
+    private Path objectPath(String hash) {
+        return objects.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (InputStream input = new DigestInputStream(Files.newInputStream(file), digest)) {
+            byte[] buffer = new byte[8192];
+            while (input.read(buffer) != -1) { }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // Files in the store and the seed are never modified in place, so views can share them.
+    private static void link(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target);
+        }
+    }
+
+    static void deleteTree(Path p) throws IOException {
+        if (!Files.exists(p)) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(p)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.delete(path);
+        }
     }
 
     private static Path checkFile(Path p) throws MutantRegistryException {
@@ -0,0 +1,162 @@
+package com.mattdsouza.emi;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Checks the class files a mutator wrote for a mutant before it's committed, so that a mutant the JVM would reject is
+// caught in milliseconds rather than by a failed run of the whole program. Each class is checked structurally (with
+// ASM's CheckClassAdapter) and each of its methods is verified by type inference (with ASM's Analyzer), like the
+// JVM's verifier.
+// The verifier resolves types against the variant's class path through a ClassHierarchy, so the variant's classes are
+// never loaded. Methods which refer to classes missing from the class path can't be checked, and are let through.
+// Closing the verifier closes the jars of the class path.
+class MutantVerifier implements Closeable {
+    private final AsmMutator.ClassHierarchy hierarchy;
+
+    MutantVerifier(String classPath) {
+        this.hierarchy = new AsmMutator.ClassHierarchy(classPath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        hierarchy.close();
+    }
+
+    // Checks the class files under a mutant's output directory. Returns the first problem found, or null if there's
+    // none.
+    String verify(Path outputPath) throws IOException {
+        List<Path> classFiles;
+        try (Stream<Path> walk = Files.walk(outputPath)) {
+            classFiles = walk.filter(path -> path.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+        }
+        for (Path classFile : classFiles) {
+            String problem = verify(Files.readAllBytes(classFile));
+            if (problem != null) {
+                return outputPath.relativize(classFile) + ": " + problem;
+            }
+        }
+        return null;
+    }
+
+    // Checks a class file. Returns the first problem found, or null if there's none.
+    String verify(byte[] classFile) {
+        ClassNode node = new ClassNode();
+        try {
+            new ClassReader(classFile).accept(node, 0);
+            node.accept(new CheckClassAdapter(null, false));
+        } catch (RuntimeException e) {
+            return e.toString();
+        }
+
+        Type currentClass = Type.getObjectType(node.name);
+        Type currentSuperClass = node.superName == null ? null : Type.getObjectType(node.superName);
+        List<Type> currentInterfaces = new ArrayList<>();
+        for (String name : node.interfaces) {
+            currentInterfaces.add(Type.getObjectType(name));
+        }
+        boolean isInterface = (node.access & Opcodes.ACC_INTERFACE) != 0;
+        for (MethodNode method : node.methods) {
+            if (method.instructions.size() == 0) {
+                continue;
+            }
+            Verifier verifier = new Verifier(hierarchy, currentClass, currentSuperClass, currentInterfaces, isInterface);
+            try {
+                new Analyzer<>(verifier).analyze(node.name, method);
+            } catch (AnalyzerException e) {
+                return String.format("%s%s: %s", method.name, method.desc, e.getMessage());
+            } catch (TypeNotPresentException e) {
+                System.out.printf("Could not verify %s.%s%s: %s is not on the class path.\n",
+                        node.name.replace('/', '.'), method.name, method.desc, e.typeName());
+            }
+        }
+        return null;
+    }
+
+    // ASM's SimpleVerifier, with types resolved by a ClassHierarchy rather than by loading classes. Like the JVM's
+    // verifier, treats interfaces like Object: anything can be assigned to them.
+    private static class Verifier extends SimpleVerifier {
+        private static final Type OBJECT_TYPE = Type.getObjectType("java/lang/Object");
+
+        private final AsmMutator.ClassHierarchy hierarchy;
+        private final Type currentClass;
+        private final Type currentSuperClass;
+        private final boolean isInterface;
+
+        Verifier(AsmMutator.ClassHierarchy hierarchy, Type currentClass, Type currentSuperClass,
+                 List<Type> currentInterfaces, boolean isInterface) {
+            super(Opcodes.ASM9, currentClass, currentSuperClass, currentInterfaces, isInterface);
+            this.hierarchy = hierarchy;
+            this.currentClass = currentClass;
+            this.currentSuperClass = currentSuperClass;
+            this.isInterface = isInterface;
+        }
+
+        @Override
+        protected boolean isInterface(Type type) {
+            if (type.equals(currentClass)) {
+                return isInterface;
+            }
+            return type.getSort() == Type.OBJECT && hierarchy.isInterface(type.getInternalName());
+        }
+
+        @Override
+        protected Type getSuperClass(Type type) {
+            if (type.equals(currentClass)) {
+                return currentSuperClass;
+            }
+            if (type.getSort() == Type.ARRAY) {
+                return OBJECT_TYPE;
+            }
+            String superName = hierarchy.superName(type.getInternalName());
+            return superName == null ? null : Type.getObjectType(superName);
+        }
+
+        @Override
+        protected boolean isAssignableFrom(Type type1, Type type2) {
+            if (type1.equals(type2) || type1.equals(OBJECT_TYPE)) {
+                return true;
+            }
+            if (type1.getSort() == Type.ARRAY || type2.getSort() == Type.ARRAY) {
+                if (type1.getSort() != Type.ARRAY) {
+                    // Arrays are also Cloneable and Serializable, which are interfaces.
+                    return isInterface(type1);
+                }
+                if (type2.getSort() != Type.ARRAY) {
+                    return false;
+                }
+                Type element1 = Type.getType(type1.getDescriptor().substring(1));
+                Type element2 = Type.getType(type2.getDescriptor().substring(1));
+                return isReference(element1) && isReference(element2) && isAssignableFrom(element1, element2);
+            }
+            if (isInterface(type1)) {
+                return true;
+            }
+            for (Type type = getSuperClass(type2); type != null; type = getSuperClass(type)) {
+                if (type.equals(type1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isReference(Type type) {
+            return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.mattdsouza.emi;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+// The mutations chosen for one mutant, up front from coverage and the variant's site index, so that only their classes
+// need to be rewritten: for each target method, which mutation to apply and at which site.
+// All randomness comes from the mutant's seed: choosing targets draws from a Random seeded with it, and mutating a
+// target method draws from its own Random, seeded from the mutant's seed and the method. So a plan (which is what a
+// mutant's recipe records, see MutantRegistry.Recipe) generates the same mutant again, in any order and in any batch.
+// Plans don't depend on how mutations are applied: see EMIMutator (with Soot) and AsmMutator (with ASM).
+class MutationPlan {
+    static final float MUTATION_FREQUENCY = 0.01f;
+
+    enum Mutation {
+//        DELETE,
+        ALLOC,
+        TRUE_GUARD;
+
+        static Mutation randomChoice(Random random) {
+            Mutation[] all = Mutation.values();
+            return all[random.nextInt(all.length)];
+        }
+    }
+
+    // A mutation chosen up front: which mutation to apply to a method, and at which site.
+    static class Target {
+        final String className;
+        final String methodWithDescriptor;
+        final Mutation mutation;
+        final MutationSites.Site site;
+
+        Target(String className, String methodWithDescriptor, Mutation mutation, MutationSites.Site site) {
+            this.className = className;
+            this.methodWithDescriptor = methodWithDescriptor;
+            this.mutation = mutation;
+            this.site = site;
+        }
+
+        String key() {
+            return MutationPlan.key(className, methodWithDescriptor);
+        }
+
+        // The randomness of mutating this target in a mutant with the given seed.
+        Random random(long mutantSeed) {
+            return new Random(mutantSeed * 31 + key().hashCode());
+        }
+
+        // The target as a line of a mutant's recipe: class, method, mutation, site offset and site kind, tab-separated.
+        String toRecipe() {
+            return String.join("\t", className, methodWithDescriptor, mutation.toString(),
+                    Integer.toString(site.offset), site.kind.toString());
+        }
+
+        static Target fromRecipe(String line) {
+            String[] parts = line.split("\t");
+            if (parts.length != 5) {
+                throw new IllegalArgumentException("Malformed mutation in recipe: " + line);
+            }
+            MutationSites.Site site = new MutationSites.Site(Integer.parseInt(parts[3]),
+                    MutationSites.Kind.valueOf(parts[4]), BytecodeCoverage.Level.UNKNOWN);
+            return new Target(parts[0], parts[1], Mutation.valueOf(parts[2]), site);
+        }
+    }
+
+    final long seed;
+    final List<Target> targets;
+
+    MutationPlan(long seed, List<Target> targets) {
+        this.seed = seed;
+        this.targets = targets;
+    }
+
+    static String key(String className, String methodWithDescriptor) {
+        return className + "." + methodWithDescriptor;
+    }
+
+    // Names of the classes declaring a target method.
+    Set<String> classNames() {
+        return targets.stream().map(target -> target.className).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    MutantRegistry.Recipe toRecipe(String backend) {
+        return new MutantRegistry.Recipe(backend, seed, targets.stream().map(Target::toRecipe).collect(Collectors.toList()));
+    }
+
+    static MutationPlan fromRecipe(MutantRegistry.Recipe recipe) {
+        return new MutationPlan(recipe.seed, recipe.mutations.stream().map(Target::fromRecipe).collect(Collectors.toList()));
+    }
+
+    // Picks the methods to mutate, and the mutation and site for each.
+    // Only reached methods are candidates: we need a liveness trace in order to produce a valid control flow graph.
+    static MutationPlan choose(long seed, BytecodeCoverage coverage, MutationSites sites) {
+        Random random = new Random(seed);
+        List<Target> targets = new ArrayList<>();
+        for (int methodId = 0; methodId < coverage.methodCount(); methodId++) {
+            // Mutating constructors is asking for problems.
+            if (coverage.methodWithDescriptor(methodId).startsWith("<init>(") || !coverage.methodReached(methodId)) {
+                continue;
+            }
+            List<MutationSites.Site> methodSites = sites.sites(coverage.className(methodId), coverage.methodWithDescriptor(methodId));
+            if (methodSites.isEmpty()) {
+                continue;
+            }
+            if (random.nextFloat() <= MUTATION_FREQUENCY) {
+                targets.add(chooseTarget(coverage, methodId, methodSites, random));
+            }
+        }
+        return new MutationPlan(seed, targets);
+    }
+
+    // Picks a mutation for a method and the site to apply it at. TRUE_GUARD wraps a live statement, so methods without
+    // one get ALLOC.
+    private static Target chooseTarget(BytecodeCoverage coverage, int methodId, List<MutationSites.Site> sites,
+                                       Random random) {
+        List<MutationSites.Site> guardable = sites.stream()
+                .filter(site -> site.kind.guardable() && site.level == BytecodeCoverage.Level.LIVE)
+                .collect(Collectors.toList());
+        Mutation mutation = guardable.isEmpty() ? Mutation.ALLOC : Mutation.randomChoice(random);
+        List<MutationSites.Site> candidates = mutation == Mutation.TRUE_GUARD ? guardable : sites;
+        return new Target(coverage.className(methodId), coverage.methodWithDescriptor(methodId), mutation,
+                candidates.get(random.nextInt(candidates.size())));
+    }
+}
@@ -0,0 +1,152 @@
+package com.mattdsouza.emi;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// Index of the statements a mutator can mutate in a variant ("sites"): for each method of the indexed classes
+// (constructors excluded), the distinct bytecode offsets and kinds of its statements, with their coverage level in the
+// variant's coverage. Built once per variant and kept in the registry (see MutantRegistry), so that generating a mutant
+// samples its sites from the index, and only the classes it mutates are rewritten.
+// Statements are Jimple statements for EMIMutator (see EMIMutator.index) and bytecode statements for AsmMutator (see
+// AsmMutator.index), so each backend has its own index.
+// Saved as text: a "class <name>" line per indexed class (including classes without sites, so that they aren't indexed
+// again), followed by a "method <name+descriptor>" line per method with sites, followed by one "<offset> <kind> <level>"
+// line per site.
+class MutationSites {
+    enum Kind {
+        ASSIGN,
+        // Assignments of a new object or array.
+        ASSIGN_NEW,
+        INVOKE,
+        // Invocations of constructors, private methods and super methods.
+        SPECIAL_INVOKE,
+        IF,
+        SWITCH,
+        RETURN,
+        RETURN_VOID,
+        GOTO,
+        THROW,
+        MONITOR,
+        OTHER;
+
+        // Whether TRUE_GUARD can wrap statements of this kind. It doesn't wrap <init> calls, nor new assignments (the
+        // verifier doesn't seem to understand if both branches are "uninit").
+        boolean guardable() {
+            switch (this) {
+                case ASSIGN:
+                case INVOKE:
+                case IF:
+                case SWITCH:
+                case RETURN:
+                case RETURN_VOID:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    static class Site {
+        final int offset;
+        final Kind kind;
+        BytecodeCoverage.Level level;
+
+        Site(int offset, Kind kind, BytecodeCoverage.Level level) {
+            this.offset = offset;
+            this.kind = kind;
+            this.level = level;
+        }
+    }
+
+    // Sites by class name, then by method name and descriptor.
+    private final Map<String, Map<String, List<Site>>> classes = new TreeMap<>();
+
+    Set<String> classNames() {
+        return classes.keySet();
+    }
+
+    // Returns the sites of a method, or an empty list if it has none (or its class isn't indexed).
+    List<Site> sites(String className, String methodWithDescriptor) {
+        Map<String, List<Site>> methods = classes.get(className);
+        List<Site> sites = methods == null ? null : methods.get(methodWithDescriptor);
+        return sites == null ? Collections.emptyList() : sites;
+    }
+
+    void removeClass(String className) {
+        classes.remove(className);
+    }
+
+    // Sets the sites' coverage levels from a variant's coverage.
+    void relevel(BytecodeCoverage coverage) {
+        for (Map.Entry<String, Map<String, List<Site>>> clazz : classes.entrySet()) {
+            for (Map.Entry<String, List<Site>> method : clazz.getValue().entrySet()) {
+                int methodId = coverage.methodId(clazz.getKey(), method.getKey());
+                for (Site site : method.getValue()) {
+                    site.level = coverage.coverageOf(methodId, site.offset);
+                }
+            }
+        }
+    }
+
+    // Adds a class to the index, without any sites yet. Indexed classes are never indexed again, even without sites.
+    void addClass(String className) {
+        classes.put(className, new TreeMap<>());
+    }
+
+    // Sets the sites of a method of an indexed class. Indexers may add methods concurrently.
+    void put(String className, String methodWithDescriptor, List<Site> sites) {
+        Map<String, List<Site>> methods = classes.get(className);
+        if (methods != null) {
+            synchronized (methods) {
+                methods.put(methodWithDescriptor, sites);
+            }
+        }
+    }
+
+    static MutationSites read(Path file) throws IOException {
+        MutationSites index = new MutationSites();
+        Map<String, List<Site>> methods = null;
+        List<Site> sites = null;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            String[] parts = line.split(" ");
+            if (parts[0].equals("class") && parts.length == 2) {
+                methods = new TreeMap<>();
+                index.classes.put(parts[1], methods);
+                sites = null;
+            } else if (parts[0].equals("method") && parts.length == 2 && methods != null) {
+                sites = new ArrayList<>();
+                methods.put(parts[1], sites);
+            } else if (parts.length == 3 && sites != null) {
+                sites.add(new Site(Integer.parseInt(parts[0]), Kind.valueOf(parts[1]), BytecodeCoverage.Level.valueOf(parts[2])));
+            } else {
+                throw new IOException(String.format("%s:%d: malformed mutation site index line: %s", file, lineNumber, line));
+            }
+        }
+        return index;
+    }
+
+    // Writes the index next to its final location and moves it in place, so that concurrent generators only ever read a
+    // complete index.
+    void write(Path file) throws IOException {
+        Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString() + ".", ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<String, List<Site>>> clazz : classes.entrySet()) {
+                writer.write("class " + clazz.getKey() + "\n");
+                for (Map.Entry<String, List<Site>> method : clazz.getValue().entrySet()) {
+                    writer.write("method " + method.getKey() + "\n");
+                    for (Site site : method.getValue()) {
+                        writer.write(site.offset + " " + site.kind + " " + site.level + "\n");
+                    }
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
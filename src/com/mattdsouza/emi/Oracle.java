@@ -0,0 +1,140 @@
+package com.mattdsouza.emi;
+
+import com.mattdsouza.emi.heaps.HeapDiffer;
+import com.mattdsouza.emi.heaps.HeapHasher;
+import com.mattdsouza.emi.heaps.HeapIgnorePolicy;
+import com.mattdsouza.emi.heaps.RootHashes;
+import com.mattdsouza.emi.heaps.RootSnapshot;
+import com.mattdsouza.emi.heaps.SnapshotWriter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides whether a mutant behaves like the seed, in tiers of increasing cost:
+//  1. the exit status of the mutant's run and the digest of its stdout/stderr (from DaCapo's TeePrintStream);
+//  2. a HeapDiffer comparison of its heap dump, only for mutants that pass tier 1. The dump's roots are hashed first
+//     (see HeapHasher): if every hash matches the seed's the mutant passes outright, and otherwise HeapDiffer only walks
+//     the roots from the first one which differs. The hashes are saved next to the dump, as <variant>.roots.
+// Mutants that fail a tier are recorded in the registry's "divergent" file. Each tier keeps its pass/fail counts and
+// the time spent in it. The seed's snapshot stays open until the oracle is closed; each mutant's snapshot is closed
+// once it has been checked, so its dump can be deleted.
+class Oracle implements Closeable {
+    static class Tier {
+        private final String name;
+        private final AtomicInteger passed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong nanos = new AtomicLong();
+
+        Tier(String name) {
+            this.name = name;
+        }
+
+        private boolean record(boolean pass, long elapsed) {
+            (pass ? passed : failed).incrementAndGet();
+            nanos.addAndGet(elapsed);
+            return pass;
+        }
+
+        @Override
+        public String toString() {
+            int total = passed.get() + failed.get();
+            double seconds = nanos.get() / 1e9;
+            return String.format("%s: %d passed, %d failed, %.1fs (%.2fs/check)",
+                    name, passed.get(), failed.get(), seconds, total == 0 ? 0 : seconds / total);
+        }
+    }
+
+    private final String seedDigest;
+    private final RootSnapshot seedSnapshot;
+    private final RootHashes seedHashes;
+    private final Path divergent;
+    private final boolean heapDiff;
+    private final HeapIgnorePolicy ignorePolicy;
+
+    // Tier 1's time is the time of the execution which produces the digest (the digest comparison itself is free).
+    final Tier output = new Tier("output");
+    final Tier heap = new Tier("heap");
+
+    Oracle(MutantRegistry registry, String seedDigest, Path seedDump, boolean heapDiff) throws IOException {
+        this.seedDigest = seedDigest;
+        this.divergent = registry.getRoot().resolve("divergent");
+        this.heapDiff = heapDiff;
+        Path ignoreRules = registry.getHeapIgnoreRules();
+        this.ignorePolicy = ignoreRules != null ? HeapIgnorePolicy.fromFile(ignoreRules) : HeapIgnorePolicy.defaults();
+        if (heapDiff) {
+            // Every heap diff is against the seed, so convert its dump once to a snapshot which opens instantly, and
+            // keep it open along with its root hashes.
+            Path seedSnapshotFile = withExtension(seedDump, ".snap");
+            SnapshotWriter.write(seedDump.toString(), seedSnapshotFile);
+            this.seedSnapshot = RootSnapshot.fromFile(seedSnapshotFile.toString());
+            this.seedHashes = HeapHasher.hash(seedSnapshot, ignorePolicy);
+            seedHashes.write(withExtension(seedDump, ".roots"));
+        } else {
+            this.seedSnapshot = null;
+            this.seedHashes = null;
+        }
+    }
+
+    // Tier 1. digest is null if the mutant exited abnormally (or failed DaCapo's own validation).
+    boolean checkOutput(String variant, String parent, String digest, long elapsed) throws IOException {
+        boolean pass = digest != null && digest.equals(seedDigest);
+        if (!pass) {
+            diverged(variant, parent, output, digest == null ? "abnormal exit" : "output digest " + digest);
+        }
+        return output.record(pass, elapsed);
+    }
+
+    // Tier 2.
+    boolean checkHeap(String variant, String parent, Path heapDump) throws IOException {
+        if (!heapDiff) {
+            return true;
+        }
+        long start = System.nanoTime();
+        boolean pass;
+        String reason = "heap differs";
+        try {
+            try (RootSnapshot snapshot = RootSnapshot.fromFile(heapDump.toString())) {
+                RootHashes hashes = HeapHasher.hash(snapshot, ignorePolicy);
+                hashes.write(withExtension(heapDump, ".roots"));
+                pass = HeapDiffer.diff(seedSnapshot, seedHashes, snapshot, hashes, ignorePolicy, 1);
+            }
+        } catch (Exception e) {
+            pass = false;
+            reason = "heap diff failed: " + e;
+        }
+        if (!pass) {
+            diverged(variant, parent, heap, reason);
+        }
+        return heap.record(pass, System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (seedSnapshot != null) {
+            seedSnapshot.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return heapDiff ? output + "; " + heap : output.toString();
+    }
+
+    private static Path withExtension(Path dump, String extension) {
+        return dump.resolveSibling(dump.getFileName().toString().replaceAll("\\.hprof$", "") + extension);
+    }
+
+    private synchronized void diverged(String variant, String parent, Tier tier, String reason) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(divergent, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(String.join("\t", variant, parent, tier.name, reason.replace('\n', ' ')) + "\n");
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.mattdsouza.emi;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Wrapper around a registry's run script, which executes a variant of the test program.
+// The script contract is the one run_emi.py uses:
+//   run <variant path> --dump-lib <heap dump jar> --output <file> [--profile --jacoco <agent jar>] [--scratch <dir>]
+// A dump run may also collect coverage in the same execution with --coverage <exec file> --jacoco <agent jar>, and
+// writes the digest of the program's stdout/stderr with --digest <file>.
+// In server mode, the script is started once with --server and keeps a warm DaCapo harness running; each execution is
+// then a request line "<nonce>\t<variant>\t<heap dump>\t<exec file>" on its stdin, answered by a "<nonce>\tDONE\t..."
+// line (which carries the output digest) or a "<nonce>\tERROR\t..." line. The program shares the harness's stdout, so
+// only lines with the request's nonce (fresh for every request) are responses.
+// Executions which take longer than the timeout are killed (in server mode, with the harness, which is restarted).
+class VariantRunner {
+    // Default limit on one execution.
+    static final long DEFAULT_TIMEOUT_SECONDS = 600;
+    // Marks the end of the harness's output in its response queue. Compared by identity, so no output line is mistaken
+    // for it.
+    private static final String END_OF_OUTPUT = new String("end of output");
+
+    static class VariantRunnerException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        VariantRunnerException(String message) {
+            super(message);
+        }
+    }
+
+    private final Path runScript;
+    private final Path workingDirectory;
+    private final Path dumpLibrary;
+    private final Path jacocoAgent;
+    // Scratch directory for the program's own files, so that concurrent runs don't clobber each other. May be null.
+    private final Path scratch;
+    private final boolean serverMode;
+    private final long timeoutSeconds;
+    private final SecureRandom random = new SecureRandom();
+
+    // The warm harness (in server mode), started on first use and restarted if it dies or times out. Its stdout is
+    // read line by line into the queue by a reader thread, so that waiting for a response can time out.
+    private Process server;
+    private PrintWriter requests;
+    private BlockingQueue<String> responses;
+
+    VariantRunner(Path runScript, Path workingDirectory, Path dumpLibrary, Path jacocoAgent, Path scratch) {
+        this(runScript, workingDirectory, dumpLibrary, jacocoAgent, scratch, false, DEFAULT_TIMEOUT_SECONDS);
+    }
+
+    VariantRunner(Path runScript, Path workingDirectory, Path dumpLibrary, Path jacocoAgent, Path scratch, boolean serverMode,
+                  long timeoutSeconds) {
+        this.runScript = runScript;
+        this.workingDirectory = workingDirectory;
+        this.dumpLibrary = dumpLibrary;
+        this.jacocoAgent = jacocoAgent;
+        this.scratch = scratch;
+        this.serverMode = serverMode;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    // Runs the variant, dumping its heap to the given file at the instrumented dump site. Writes the digest of the
+    // program's output to digestFile and returns it. Throws if the program exits abnormally or fails validation.
+    String dump(Path variant, Path heapDump, Path digestFile) throws IOException, InterruptedException, VariantRunnerException {
+        if (serverMode) {
+            return writeDigest(request(variant, heapDump, null), digestFile);
+        }
+        execute(variant, "--output", heapDump.toString(), "--digest", digestFile.toString());
+        return readDigest(digestFile);
+    }
+
+    // Runs the variant under the JaCoCo agent, writing execution data to the given file.
+    void profile(Path variant, Path execFile) throws IOException, InterruptedException, VariantRunnerException {
+        if (serverMode) {
+            request(variant, null, execFile);
+            return;
+        }
+        execute(variant, "--output", execFile.toString(), "--profile", "--jacoco", jacocoAgent.toString());
+    }
+
+    // Runs the variant once, both dumping its heap and writing JaCoCo execution data (flushed when the JVM exits).
+    // Like dump, also writes and returns the output digest.
+    String dumpAndProfile(Path variant, Path heapDump, Path execFile, Path digestFile) throws IOException, InterruptedException, VariantRunnerException {
+        if (serverMode) {
+            return writeDigest(request(variant, heapDump, execFile), digestFile);
+        }
+        execute(variant, "--output", heapDump.toString(), "--coverage", execFile.toString(), "--jacoco", jacocoAgent.toString(),
+                "--digest", digestFile.toString());
+        return readDigest(digestFile);
+    }
+
+    // Stops the warm harness, if one is running.
+    void close() throws InterruptedException {
+        if (server == null) {
+            return;
+        }
+        // An empty request asks the harness to exit.
+        requests.println();
+        requests.flush();
+        server.waitFor();
+        server = null;
+    }
+
+    // Sends one execution to the warm harness and returns the output digest from its response.
+    private String request(Path variant, Path heapDump, Path execFile)
+            throws IOException, InterruptedException, VariantRunnerException {
+        if (server == null || !server.isAlive()) {
+            startServer();
+        }
+        String nonce = Long.toHexString(random.nextLong());
+        // The harness runs from its own working directory, so send absolute paths.
+        String variantPath = variant.toAbsolutePath().toString();
+        requests.println(String.join("\t",
+                nonce,
+                variantPath,
+                heapDump == null ? "" : heapDump.toAbsolutePath().toString(),
+                execFile == null ? "" : execFile.toAbsolutePath().toString()));
+        requests.flush();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        String prefix = nonce + "\t";
+        while (true) {
+            String line = responses.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (line == null) {
+                stopServer();
+                throw new VariantRunnerException(String.format("Variant %s timed out after %d seconds.", variant, timeoutSeconds));
+            }
+            if (line == END_OF_OUTPUT) {
+                server = null;
+                throw new VariantRunnerException(String.format("Harness exited while running %s.", variant));
+            }
+            if (!line.startsWith(prefix)) {
+                // Anything else is the program's (or the harness's) own output.
+                System.out.println(line);
+                continue;
+            }
+            // nonce, DONE or ERROR, variant, and the rest: "PASSED|FAILED\tmsec\tdigest" or the error message.
+            String[] response = line.split("\t", 4);
+            if (response.length < 3 || !response[2].equals(variantPath)) {
+                throw new VariantRunnerException(String.format("Malformed response to %s: %s", variant, line));
+            }
+            String rest = response.length > 3 ? response[3] : "";
+            if (response[1].equals("DONE")) {
+                String[] result = rest.split("\t");
+                if (!result[0].equals("PASSED")) {
+                    throw new VariantRunnerException(String.format("Variant %s failed validation.", variant));
+                }
+                return result.length > 2 ? result[2] : null;
+            }
+            throw new VariantRunnerException(String.format("Variant %s failed: %s", variant, rest));
+        }
+    }
+
+    // Kills the warm harness, e.g., because a variant hangs; the next request starts a new one.
+    private void stopServer() throws InterruptedException {
+        server.destroyForcibly();
+        server.waitFor();
+        server = null;
+    }
+
+    private static String readDigest(Path digestFile) throws IOException {
+        return new String(Files.readAllBytes(digestFile), StandardCharsets.UTF_8).trim();
+    }
+
+    private static String writeDigest(String digest, Path digestFile) throws IOException {
+        if (digest != null) {
+            Files.write(digestFile, (digest + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return digest;
+    }
+
+    private void startServer() throws IOException {
+        List<String> command = baseCommand();
+        command.add("--server");
+        if (jacocoAgent != null) {
+            command.add("--jacoco");
+            command.add(jacocoAgent.toString());
+        }
+        server = new ProcessBuilder(command)
+                .directory(workingDirectory.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        requests = new PrintWriter(new OutputStreamWriter(server.getOutputStream(), StandardCharsets.UTF_8));
+        BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        Thread reader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    queue.add(line);
+                }
+            } catch (IOException e) {
+                // The harness was killed.
+            }
+            queue.add(END_OF_OUTPUT);
+        }, "harness-output");
+        reader.setDaemon(true);
+        reader.start();
+        responses = queue;
+    }
+
+    private List<String> baseCommand() {
+        List<String> command = new ArrayList<>();
+        command.add(runScript.toString());
+        command.add("--dump-lib");
+        command.add(dumpLibrary.toString());
+        if (scratch != null) {
+            command.add("--scratch");
+            command.add(scratch.toString());
+        }
+        return command;
+    }
+
+    private void execute(Path variant, String... args) throws IOException, InterruptedException, VariantRunnerException {
+        List<String> command = baseCommand();
+        command.add(1, variant.toString());
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command)
+                .directory(workingDirectory.toFile())
+                .inheritIO()
+                .start();
+        if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            process.waitFor();
+            throw new VariantRunnerException(String.format("Command %s timed out after %d seconds.", command, timeoutSeconds));
+        }
+        int exitCode = process.exitValue();
+        if (exitCode != 0) {
+            throw new VariantRunnerException(String.format("Command %s exited with status %d.", command, exitCode));
+        }
+    }
+}
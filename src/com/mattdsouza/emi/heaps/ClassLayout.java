@@ -0,0 +1,70 @@
+package com.mattdsouza.emi.heaps;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// The instance fields of a class (including inherited ones), resolved once per class so instances can be compared
+// slot by slot. Fields are sorted by name (stably, so shadowed fields keep subclass-first order), which lines up the
+// fields of two dumps whose classes declare them in different orders.
+class ClassLayout {
+    final String[] names;
+    final byte[] types;
+    // Offset of each field's value from the start of an instance's field values.
+    final int[] offsets;
+
+    private ClassLayout(String[] names, byte[] types, int[] offsets) {
+        this.names = names;
+        this.types = types;
+        this.offsets = offsets;
+    }
+
+    static ClassLayout of(RootSnapshot snapshot, HeapClass cls) {
+        int count = 0;
+        for (HeapClass c = cls; c != null; c = snapshot.getClass(c.superId)) {
+            count += c.fieldNames.length;
+        }
+
+        String[] declaredNames = new String[count];
+        byte[] declaredTypes = new byte[count];
+        int[] declaredOffsets = new int[count];
+        int field = 0;
+        int offset = 0;
+        for (HeapClass c = cls; c != null; c = snapshot.getClass(c.superId)) {
+            for (int i = 0; i < c.fieldNames.length; i++, field++) {
+                declaredNames[field] = c.fieldNames[i];
+                declaredTypes[field] = c.fieldTypes[i];
+                declaredOffsets[field] = offset;
+                offset += snapshot.sizeOf(c.fieldTypes[i]);
+            }
+        }
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> declaredNames[i], Comparator.nullsFirst(Comparator.naturalOrder())));
+
+        String[] names = new String[count];
+        byte[] types = new byte[count];
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = declaredNames[order[i]];
+            types[i] = declaredTypes[order[i]];
+            offsets[i] = declaredOffsets[order[i]];
+        }
+        return new ClassLayout(names, types, offsets);
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    // Whether instances of the two layouts can be compared slot by slot: the same field names, with the same types.
+    boolean matches(ClassLayout other) {
+        return Arrays.equals(names, other.names) && Arrays.equals(types, other.types);
+    }
+
+    boolean isReference(int field) {
+        return types[field] == HeapField.OBJECT;
+    }
+}
@@ -0,0 +1,75 @@
+package com.mattdsouza.emi.heaps;
+
+// IdentityMap which can be shared by concurrent diff tasks: both directions are split into stripes by object id, each
+// stripe a LongLongMap guarded by its own lock, so tasks working on different objects rarely wait for each other.
+// A claim takes the locks of both of its stripes (in stripe order) and changes both directions under them, so no task
+// ever sees half of a pair, and two tasks can never map an object to two different objects; the loser of a race sees
+// the winner's pair and reports the inconsistency as the sequential diff would.
+class ConcurrentIdentityMap implements IdentityMap {
+    private static final int STRIPE_BITS = 8;
+
+    private final Object[] locks = new Object[1 << STRIPE_BITS];
+    // The first dump's objects are in the stripe of their id in forward, the second's in the stripe of their id in
+    // inverse; both stripes with the same number share a lock.
+    private final LongLongMap[] forward = new LongLongMap[1 << STRIPE_BITS];
+    private final LongLongMap[] inverse = new LongLongMap[1 << STRIPE_BITS];
+
+    ConcurrentIdentityMap() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+            forward[i] = new LongLongMap();
+            inverse[i] = new LongLongMap();
+        }
+    }
+
+    private static int stripe(long id) {
+        // Object ids are aligned addresses, so take the stripe from the high bits of a multiplicative hash.
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS));
+    }
+
+    @Override
+    public long get(long first) {
+        int stripe = stripe(first);
+        synchronized (locks[stripe]) {
+            return forward[stripe].get(first);
+        }
+    }
+
+    @Override
+    public long getKey(long second) {
+        int stripe = stripe(second);
+        synchronized (locks[stripe]) {
+            return inverse[stripe].get(second);
+        }
+    }
+
+    @Override
+    public boolean claim(long first, long second) {
+        int firstStripe = stripe(first);
+        int secondStripe = stripe(second);
+        synchronized (locks[Math.min(firstStripe, secondStripe)]) {
+            synchronized (locks[Math.max(firstStripe, secondStripe)]) {
+                if (forward[firstStripe].containsKey(first) || inverse[secondStripe].containsKey(second)) {
+                    return false;
+                }
+                forward[firstStripe].put(first, second);
+                inverse[secondStripe].put(second, first);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void remove(long first, long second) {
+        int firstStripe = stripe(first);
+        int secondStripe = stripe(second);
+        synchronized (locks[Math.min(firstStripe, secondStripe)]) {
+            synchronized (locks[Math.max(firstStripe, secondStripe)]) {
+                if (forward[firstStripe].containsKey(first) && forward[firstStripe].get(first) == second) {
+                    forward[firstStripe].remove(first);
+                    inverse[secondStripe].remove(second);
+                }
+            }
+        }
+    }
+}
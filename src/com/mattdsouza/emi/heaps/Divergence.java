@@ -0,0 +1,72 @@
+package com.mattdsouza.emi.heaps;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One difference found by HeapDiffer. A record keeps the contexts and values involved, and is only rendered when it's
+// printed: rendering a context walks its whole path from the frame, and a full diff of badly diverging dumps can find
+// millions of differences, most of which are never printed.
+class Divergence {
+    final FieldPath path;
+    private final String format;
+    private final Object[] args;
+
+    Divergence(FieldPath path, String format, Object... args) {
+        this.path = path;
+        this.format = format;
+        this.args = args;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(format, args);
+    }
+
+    // The path to a difference with object ids and array indices left out, e.g. "Prog.run(..)" -> items -> [] -> next+,
+    // which groups the differences a full diff reports. Runs of two or more of the same field are collapsed ("next+"),
+    // so the nodes of a linked list share a path. Paths are interned: children are created once per parent, so equal
+    // paths are the same object, and a context's path is computed once per edge (see HeapContext.fieldPath).
+    static final class FieldPath {
+        private final FieldPath parent;
+        private final String segment;
+        private final boolean repeated;
+        private final ConcurrentHashMap<String, FieldPath> children = new ConcurrentHashMap<>();
+
+        private FieldPath(FieldPath parent, String segment, boolean repeated) {
+            this.parent = parent;
+            this.segment = segment;
+            this.repeated = repeated;
+        }
+
+        static FieldPath root(String name) {
+            return new FieldPath(null, name, false);
+        }
+
+        FieldPath child(String segment) {
+            if (parent != null && segment.equals(this.segment)) {
+                return repeated ? this : parent.children.computeIfAbsent(segment + "+", s -> new FieldPath(parent, segment, true));
+            }
+            return children.computeIfAbsent(segment, s -> new FieldPath(this, segment, false));
+        }
+
+        @Override
+        public String toString() {
+            Deque<FieldPath> nodes = new ArrayDeque<>();
+            for (FieldPath node = this; node != null; node = node.parent) {
+                nodes.push(node);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (FieldPath node : nodes) {
+                if (sb.length() > 0) {
+                    sb.append(" -> ");
+                }
+                sb.append(node.segment);
+                if (node.repeated) {
+                    sb.append("+");
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.mattdsouza.emi.heaps;
+
+// Layout of a class in a heap dump: its name, superclass, and the instance fields it declares (not inherited ones).
+class HeapClass {
+    final long id;
+    final String name;
+    final long superId;
+    final String[] fieldNames;
+    final byte[] fieldTypes;
+    // Resolved on first use, by RootSnapshot.getLayout.
+    ClassLayout layout;
+
+    HeapClass(long id, String name, long superId, String[] fieldNames, byte[] fieldTypes) {
+        this.id = id;
+        this.name = name;
+        this.superId = superId;
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+    }
+}
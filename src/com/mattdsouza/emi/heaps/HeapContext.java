@@ -1,15 +1,20 @@
 package com.mattdsouza.emi.heaps;
 
-import heapdl.hprof.JavaThing;
-import heapdl.hprof.StackFrame;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 public class HeapContext {
     private static class Edge {
-        JavaThing value;
+        HeapObject value;
+        // Field name, or null for an array element.
         String pathName;
-        Edge (JavaThing value, String pathName) {
+        int index;
+        // Field path of the context ending with this edge, once computed.
+        Divergence.FieldPath fieldPath;
+        Edge (HeapObject value, String pathName, int index) {
             this.value = value;
             this.pathName = pathName;
+            this.index = index;
         }
     }
 
@@ -22,21 +27,45 @@ public class HeapContext {
         }
     }
 
-    StackFrame base;
+    HeapFrame base;
     Cons<Edge> path;
+    // Field path of the frame's roots.
+    Divergence.FieldPath basePath;
 
-    private HeapContext(StackFrame base, Cons<Edge> path) {
+    private HeapContext(HeapFrame base, Cons<Edge> path, Divergence.FieldPath basePath) {
         this.base = base;
         this.path = path;
+        this.basePath = basePath;
     }
 
-    public HeapContext push(JavaThing value, String pathName) {
-        return new HeapContext(this.base, new Cons<>(new Edge(value, pathName), this.path));
+    public HeapContext push(HeapObject value, String pathName) {
+        return new HeapContext(this.base, new Cons<>(new Edge(value, pathName, -1), this.path), this.basePath);
+    }
+
+    // Array elements are pushed by index, which is only turned into a string if the context is printed.
+    public HeapContext push(HeapObject value, int index) {
+        return new HeapContext(this.base, new Cons<>(new Edge(value, null, index), this.path), this.basePath);
     }
 
     public HeapContext pop() {
         assert this.path != null;
-        return new HeapContext(this.base, this.path.next);
+        return new HeapContext(this.base, this.path.next, this.basePath);
+    }
+
+    // Returns the field path of the context. Edges remember their path, so this only walks the edges no path has been
+    // computed for yet, and computing the paths of a deep structure's contexts one by one stays linear.
+    Divergence.FieldPath fieldPath() {
+        Deque<Edge> pending = new ArrayDeque<>();
+        Cons<Edge> cell = path;
+        for (; cell != null && cell.value.fieldPath == null; cell = cell.next) {
+            pending.push(cell.value);
+        }
+        Divergence.FieldPath fieldPath = cell == null ? basePath : cell.value.fieldPath;
+        for (Edge edge : pending) {
+            fieldPath = fieldPath.child(edge.pathName != null ? edge.pathName : "[]");
+            edge.fieldPath = fieldPath;
+        }
+        return fieldPath;
     }
 
     public String toString() {
@@ -51,22 +80,30 @@ public class HeapContext {
     }
 
     private void printPath(Cons<Edge> path, StringBuilder sb) {
-        if (path == null) return;
-        printPath(path.next, sb);
-        Edge edge = path.value;
-        sb.append(edge.value.getClassName());
-        sb.append("@");
-        sb.append(edge.value.getId());
-        sb.append(" -");
-        sb.append(edge.pathName);
-        sb.append("-> ");
+        // Paths can be as long as the heap is deep, so print them from an explicit stack rather than recursively.
+        Deque<Edge> edges = new ArrayDeque<>();
+        for (Cons<Edge> cell = path; cell != null; cell = cell.next) {
+            edges.push(cell.value);
+        }
+        for (Edge edge : edges) {
+            sb.append(edge.value.getClassName());
+            sb.append("@");
+            sb.append(edge.value.getId());
+            sb.append(" -");
+            if (edge.pathName != null) {
+                sb.append(edge.pathName);
+            } else {
+                sb.append(edge.index);
+            }
+            sb.append("-> ");
+        }
     }
 
-    static HeapContext empty(StackFrame base) {
-        return new HeapContext(base, null);
+    static HeapContext empty(HeapFrame base, Divergence.FieldPath basePath) {
+        return new HeapContext(base, null, basePath);
     }
 
-    private static String frameName(StackFrame frame) {
+    private static String frameName(HeapFrame frame) {
         return String.format("\"%s.%s%s\"", frame.getClassName(), frame.getMethodName(), frame.getMethodSignature());
     }
 
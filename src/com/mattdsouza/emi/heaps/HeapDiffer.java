@@ -1,24 +1,57 @@
 package com.mattdsouza.emi.heaps;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import heapdl.hprof.*;
 import org.apache.commons.cli.*;
 
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HeapDiffer {
     RootSnapshot firstSnapshot;
     RootSnapshot secondSnapshot;
     boolean computeFullDiff;
-    List<String> errors;
-
-    List<StackFrame> firstFrames;
-    List<StackFrame> secondFrames;
-    Map<StackFrame, List<Long>> firstRoots;
-    Map<StackFrame, List<Long>> secondRoots;
-
-    BiMap<Long, Long> identity;
+    // The differences kept for the report, in diff order. A full diff keeps at most maxPerPath differences per field
+    // path and maxErrors in total, but counts them all, in errorCount and pathCounts (by path, in order of appearance).
+    static final int DEFAULT_MAX_ERRORS = 1000;
+    static final int DEFAULT_MAX_PER_PATH = 20;
+    List<Divergence> errors;
+    int maxErrors = DEFAULT_MAX_ERRORS;
+    int maxPerPath = DEFAULT_MAX_PER_PATH;
+    long errorCount;
+    Map<Divergence.FieldPath, long[]> pathCounts;
+
+    List<HeapFrame> firstFrames;
+    List<HeapFrame> secondFrames;
+    Map<HeapFrame, List<Long>> firstRoots;
+    Map<HeapFrame, List<Long>> secondRoots;
+    // Which classes and fields are skipped, resolved for the first dump's classes (the classes of objects being compared
+    // have the same names in both dumps, and their layouts are aligned by field name).
+    HeapIgnorePolicy.Verdicts ignored;
+
+    // Structural hashes of the dumps' roots (see HeapHasher), or null to diff every root. The leading roots whose hashes
+    // match aren't walked: their objects are paired up in the order the hashes discovered them instead. After the first
+    // root which differs, discovery numbers no longer line up between the dumps, so every later root is walked.
+    RootHashes firstHashes;
+    RootHashes secondHashes;
+    int skippedRoots;
+    // Index (in diff order) of the next root to diff.
+    int rootIndex;
+
+    // With parallelism > 1, roots are diffed concurrently by a fork/join pool, sharing one concurrent identity map (see
+    // diffRootsInParallel).
+    int parallelism;
+    IdentityMap identity;
+    // Errors of each frame check and root diff, in the order the sequential diff would report them.
+    List<Findings> errorGroups;
+    List<RootDiff> rootDiffs;
+    // Index of the first root whose diff found a difference, when the diff isn't computing the full report. Stops the
+    // diffs of the later roots.
+    final AtomicInteger abortedAt = new AtomicInteger(Integer.MAX_VALUE);
+
+    // Field path of differences between the traces themselves.
+    private static final Divergence.FieldPath TRACE = Divergence.FieldPath.root("trace");
 
 
     private static class HeapDifferException extends Exception {
@@ -27,17 +60,23 @@ public class HeapDiffer {
         }
     }
 
-    private HeapDiffer(String firstPath, String secondPath, boolean computeFullDiff) throws Exception {
-        firstSnapshot = RootSnapshot.fromFile(firstPath);
-        secondSnapshot = RootSnapshot.fromFile(secondPath);
+    private HeapDiffer(RootSnapshot firstSnapshot, RootSnapshot secondSnapshot, boolean computeFullDiff,
+                       HeapIgnorePolicy ignorePolicy, int parallelism) {
+        this.firstSnapshot = firstSnapshot;
+        this.secondSnapshot = secondSnapshot;
         this.computeFullDiff = computeFullDiff;
         this.errors = new ArrayList<>();
+        this.pathCounts = new LinkedHashMap<>();
+        this.parallelism = parallelism;
 
         firstFrames = firstSnapshot.getMainStackFrames();
         secondFrames = secondSnapshot.getMainStackFrames();
         firstRoots = firstSnapshot.filterRoots(firstFrames);
         secondRoots = secondSnapshot.filterRoots(secondFrames);
-        identity = HashBiMap.create();
+        ignored = ignorePolicy.resolve(firstSnapshot);
+        identity = parallelism > 1 ? new ConcurrentIdentityMap() : new LongLongBiMap();
+        errorGroups = new ArrayList<>();
+        rootDiffs = new ArrayList<>();
     }
 
     private void computeDiff() {
@@ -48,24 +87,57 @@ public class HeapDiffer {
                 return;
             }
             for (int i = 0; i < firstFrames.size(); i++) {
-                StackFrame firstFrame = firstFrames.get(i);
-                StackFrame secondFrame = secondFrames.get(i);
+                HeapFrame firstFrame = firstFrames.get(i);
+                HeapFrame secondFrame = secondFrames.get(i);
                 String firstFrameName = frameName(firstFrame);
                 String secondFrameName = frameName(secondFrame);
                 if (!firstFrameName.equals(secondFrameName)) {
                     error("Frames at index %d are for different methods: first is %s, second is %s.",
-                            firstFrameName, secondFrameName);
+                            i, firstFrameName, secondFrameName);
                     return;
                 }
             }
 
+            if (firstHashes != null && secondHashes != null) {
+                skipMatchingRoots();
+            }
             for (int i = 0; i < firstFrames.size(); i++) {
                 diffFrame(i, firstFrames.get(i), secondFrames.get(i));
             }
-        } catch (HeapDifferException ex) {}  // Abort main diff loop on exception
+            if (parallelism > 1) {
+                diffRootsInParallel();
+            }
+        } catch (HeapDifferException ex) {  // Abort main diff loop on exception
+        } finally {
+            collectErrors();
+        }
+    }
+
+    // Merges the findings of the frame checks and root diffs, applying the report's caps to the whole diff. Each group
+    // kept at most as many differences per path as the whole diff may, in order, so the ones kept here are the first.
+    private void collectErrors() {
+        Map<Divergence.FieldPath, long[]> kept = new HashMap<>();
+        for (Findings group : errorGroups) {
+            for (Map.Entry<Divergence.FieldPath, long[]> entry : group.counts.entrySet()) {
+                pathCounts.computeIfAbsent(entry.getKey(), path -> new long[1])[0] += entry.getValue()[0];
+                errorCount += entry.getValue()[0];
+            }
+            for (Divergence error : group.kept) {
+                long[] count = kept.computeIfAbsent(error.path, path -> new long[1]);
+                if (count[0] < maxPerPath && errors.size() < maxErrors) {
+                    count[0]++;
+                    errors.add(error);
+                }
+            }
+        }
+        if (!computeFullDiff && errors.size() > 1) {
+            // Concurrent tasks may each have found a difference before stopping; keep the first in diff order.
+            errors.subList(1, errors.size()).clear();
+            errorCount = 1;
+        }
     }
 
-    private void diffFrame(int frameIndex, StackFrame firstFrame, StackFrame secondFrame) throws HeapDifferException {
+    private void diffFrame(int frameIndex, HeapFrame firstFrame, HeapFrame secondFrame) throws HeapDifferException {
         List<Long> firstFrameRoots = firstRoots.get(firstFrame);
         List<Long> secondFrameRoots = secondRoots.get(secondFrame);
 
@@ -75,7 +147,7 @@ public class HeapDiffer {
         }
         if (firstFrameRoots == null || secondFrameRoots == null) {
             error("Frame at index %d not found for the %s trace.",
-                    firstFrameRoots == null ? "first" : "second");
+                    frameIndex, firstFrameRoots == null ? "first" : "second");
             return;
         }
 
@@ -86,119 +158,321 @@ public class HeapDiffer {
         }
 
         // Assumption: roots are ordered
-        HeapContext firstContext = HeapContext.empty(firstFrame);
-        HeapContext secondContext = HeapContext.empty(secondFrame);
+        Divergence.FieldPath framePath = Divergence.FieldPath.root(frameName(firstFrame));
+        HeapContext firstContext = HeapContext.empty(firstFrame, framePath);
+        HeapContext secondContext = HeapContext.empty(secondFrame, framePath);
         for (int i = 0; i < firstFrameRoots.size(); i++) {
-            diffObject(firstFrameRoots.get(i), secondFrameRoots.get(i), firstContext, secondContext);
+            if (rootIndex++ < skippedRoots) {
+                continue;
+            }
+            RootDiff rootDiff = new RootDiff(rootDiffs.size(), firstFrameRoots.get(i), secondFrameRoots.get(i),
+                    firstContext, secondContext);
+            errorGroups.add(rootDiff.findings);
+            if (parallelism > 1) {
+                rootDiffs.add(rootDiff);
+            } else {
+                rootDiff.diffObject();
+            }
         }
     }
 
-    private void diffObject(long firstObjId, long secondObjId, HeapContext firstContext, HeapContext secondContext) throws HeapDifferException {
-        if (firstObjId == 0 && secondObjId == 0) {
-            return;
-        } else if (firstObjId == 0) {
-            error("Path is null in first dump, but not null in second dump: %s vs. %s",
-                    firstContext, secondContext);
+    private void skipMatchingRoots() {
+        if (firstHashes.discovered == null || secondHashes.discovered == null) {
+            // Hashes read from a file can tell whether dumps match, but can't pair up their objects.
             return;
-        } else if (secondObjId == 0) {
-            error("Path is not null in first dump, but null in second dump: %s vs. %s",
-                    firstContext, secondContext);
+        }
+        skippedRoots = firstHashes.commonPrefix(secondHashes);
+        if (skippedRoots == 0) {
             return;
         }
+        // Matching hashes mean both walks discovered the same number of objects for these roots.
+        int objects = firstHashes.discoveredEnd[skippedRoots - 1];
+        for (int i = 0; i < objects; i++) {
+            identity.claim(firstHashes.discovered[i], secondHashes.discovered[i]);
+        }
+    }
 
-        if (identity.containsKey(firstObjId)) {
-            long match = identity.get(firstObjId);
-            if (match != secondObjId) {
-                error("Object %d in first dump is (potentially) equivalent to object %d in second dump, but was compared to object %d",
-                        firstObjId, match, secondObjId);
+    // Diffs every root as its own fork/join task, as soon as a thread is free. Tasks share the identity map, so an
+    // object reachable from several roots is compared once, by whichever task reaches it first. Which one that is
+    // depends on how the tasks interleave, so from run to run a difference may be reported on a different path (from
+    // another of the roots which reach it), and without -full a different difference may be reported first.
+    private void diffRootsInParallel() {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RootDiffs(0, rootDiffs.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class RootDiffs extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        RootDiffs(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                RootDiff rootDiff = rootDiffs.get(from);
+                try {
+                    rootDiff.diffObject();
+                } catch (HeapDifferException ex) {
+                    abortedAt.accumulateAndGet(rootDiff.index, Math::min);
+                }
+            } else if (to > from) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RootDiffs(from, middle), new RootDiffs(middle, to));
             }
-            return;
-        } else if (identity.containsValue(secondObjId)) {
-            error("Object %d in second dump is (potentially) equivalent to object %d in first dump, but was compared to object %d",
-                    secondObjId, identity.inverse().get(secondObjId), firstObjId);
-            return;
         }
+    }
 
-        JavaThing firstThing = firstSnapshot.getObj(firstObjId);
-        JavaThing secondThing = secondSnapshot.getObj(secondObjId);
+    // The differences found by one frame check or root diff: the first ones, within the report's caps, and the number
+    // found on each path.
+    private class Findings {
+        final List<Divergence> kept = new ArrayList<>();
+        final Map<Divergence.FieldPath, long[]> counts = new LinkedHashMap<>();
 
-        if (!firstThing.getClassName().equals(secondThing.getClassName())) {
-            error("Path between dumps point to differently-typed objects: %s points to a $s, %s points to a %s",
-                    firstContext, firstThing.getClassName(), secondContext, secondThing.getClassName());
-            return;
-        } else if (shouldIgnore(firstThing.getClassName())) {
-            return;
+        void add(Divergence error) throws HeapDifferException {
+            long[] count = counts.computeIfAbsent(error.path, path -> new long[1]);
+            if (count[0]++ < maxPerPath && kept.size() < maxErrors) {
+                kept.add(error);
+            }
+            if (!computeFullDiff) {
+                throw new HeapDifferException(error.toString());
+            }
         }
+    }
 
-        // To handle pointer loops, assume these objects are equivalent until proven otherwise.
-        identity.put(firstObjId, secondObjId);
+    // One object pair whose children are being compared. Frames form an explicit stack (the diff used to recurse once
+    // per reference edge, which overflowed the thread stack on long linked structures).
+    private static class Frame {
+        final long firstObjId;
+        final long secondObjId;
+        final HeapObject firstThing;
+        final HeapObject secondThing;
+        final HeapContext firstContext;
+        final HeapContext secondContext;
+        // Field layouts, for objects. Null for arrays.
+        final ClassLayout firstLayout;
+        final ClassLayout secondLayout;
+        // Which fields of the layouts to skip, or null to compare them all.
+        final boolean[] ignoredFields;
+        // Elements, for object arrays. Null for objects.
+        final long[] firstElements;
+        final long[] secondElements;
+        // Next field or element to compare.
+        int next;
+
+        Frame(long firstObjId, long secondObjId, HeapObject firstThing, HeapObject secondThing,
+              HeapContext firstContext, HeapContext secondContext, boolean[] ignoredFields) {
+            this.firstObjId = firstObjId;
+            this.secondObjId = secondObjId;
+            this.firstThing = firstThing;
+            this.secondThing = secondThing;
+            this.firstContext = firstContext;
+            this.secondContext = secondContext;
+            this.ignoredFields = ignoredFields;
+            if (firstThing instanceof HeapInstance) {
+                firstLayout = ((HeapInstance) firstThing).getLayout();
+                secondLayout = ((HeapInstance) secondThing).getLayout();
+                firstElements = null;
+                secondElements = null;
+            } else {
+                firstLayout = null;
+                secondLayout = null;
+                firstElements = ((HeapObjectArray) firstThing).getElements();
+                secondElements = ((HeapObjectArray) secondThing).getElements();
+            }
+        }
 
-        try {
-            if (firstThing instanceof JavaObject) {
-                JavaObject firstObject = (JavaObject) firstThing;
-                JavaObject secondObject = (JavaObject) secondThing;
-
-                List<JavaField> firstFields = sorted(firstObject.getFields());
-                List<JavaField> secondFields = sorted(secondObject.getFields());
-
-                for (int i = 0; i < firstFields.size(); i++) {
-                    JavaField firstField = firstFields.get(i);
-                    JavaField secondField = secondFields.get(i);
-                    assert firstField.getName().equals(secondField.getName());
-
-                    HeapContext newFirstContext = firstContext.push(firstObject, firstField.getName());
-                    HeapContext newSecondContext = secondContext.push(secondObject, secondField.getName());
-                    if (firstField.getType().equals("Object")) {
-                        diffObject(
-                                Long.parseLong(firstField.getValue()),
-                                Long.parseLong(secondField.getValue()),
-                                newFirstContext,
-                                newSecondContext
-                        );
-                    } else {
-                        // todo: compare primitives in a better way than string value comparison
-                        if (!firstField.getValue().equals(secondField.getValue())) {
-                            error("Field value %s differs between objects on paths %s and %s: first dump has %s, second has %s",
-                                    firstField.getName(), newFirstContext, newSecondContext,
-                                    firstField.getValue(), secondField.getValue());
+        boolean done() {
+            return next >= (firstLayout != null ? firstLayout.size() : firstElements.length);
+        }
+    }
+
+    // The diff of one root: a walk over the object graphs from a pair of root objects.
+    private class RootDiff {
+        // Position of the root in diff order, among the roots which aren't skipped.
+        final int index;
+        private final long firstRootId;
+        private final long secondRootId;
+        private final HeapContext firstRootContext;
+        private final HeapContext secondRootContext;
+        final Findings findings = new Findings();
+
+        RootDiff(int index, long firstRootId, long secondRootId, HeapContext firstRootContext,
+                 HeapContext secondRootContext) {
+            this.index = index;
+            this.firstRootId = firstRootId;
+            this.secondRootId = secondRootId;
+            this.firstRootContext = firstRootContext;
+            this.secondRootContext = secondRootContext;
+        }
+
+        void diffObject() throws HeapDifferException {
+            Deque<Frame> stack = new ArrayDeque<>();
+            try {
+                Frame root = visit(firstRootId, secondRootId, firstRootContext, secondRootContext);
+                if (root != null) {
+                    stack.push(root);
+                }
+                while (!stack.isEmpty()) {
+                    if (abortedAt.get() < index) {
+                        throw new HeapDifferException("Aborted.");
+                    }
+                    Frame frame = stack.peek();
+                    if (frame.done()) {
+                        stack.pop();
+                        continue;
+                    }
+                    int i = frame.next++;
+                    Frame child;
+                    if (frame.firstLayout != null) {
+                        if (frame.ignoredFields != null && frame.ignoredFields[i]) {
+                            continue;
                         }
+                        child = diffField(frame, i);
+                    } else {
+                        child = visit(
+                                frame.firstElements[i],
+                                frame.secondElements[i],
+                                frame.firstContext.push(frame.firstThing, i),
+                                frame.secondContext.push(frame.secondThing, i)
+                        );
+                    }
+                    if (child != null) {
+                        stack.push(child);
                     }
                 }
-            } else if (firstThing instanceof JavaObjectArray) {
-                JavaObjectArray firstArray = (JavaObjectArray) firstThing;
-                JavaObjectArray secondArray = (JavaObjectArray) secondThing;
-
-                long[] firstElements = firstArray.getElements();
-                long[] secondElements = secondArray.getElements();
-                for (int i = 0; i < firstElements.length; i++) {
-                    diffObject(
-                            firstElements[i],
-                            secondElements[i],
-                            firstContext.push(firstArray, Integer.toString(i)),
-                            secondContext.push(secondArray, Integer.toString(i))
-                    );
+            } catch (HeapDifferException ex) {
+                // Undo log: remove the assumptions of every comparison still in progress, as the recursive diff did when
+                // unwinding, and rethrow.
+                for (Frame frame : stack) {
+                    identity.remove(frame.firstObjId, frame.secondObjId);
                 }
+                throw ex;
             }
-        } catch (HeapDifferException ex) {
-            // Remove assumption and rethrow.
-            identity.remove(firstObjId, secondObjId);
-            throw ex;
         }
-    }
 
-    private List<JavaField> sorted(List<JavaField> lst) {
-        List<JavaField> copy = new ArrayList<>(lst);
-        copy.sort(Comparator.comparing(JavaField::getName));
-        return copy;
-    }
+        private Frame diffField(Frame frame, int field) throws HeapDifferException {
+            ClassLayout firstLayout = frame.firstLayout;
+            ClassLayout secondLayout = frame.secondLayout;
+            String name = firstLayout.names[field];
+            assert name.equals(secondLayout.names[field]);
+
+            long firstValue = ((HeapInstance) frame.firstThing).readSlot(firstLayout, field);
+            long secondValue = ((HeapInstance) frame.secondThing).readSlot(secondLayout, field);
+            if (firstLayout.isReference(field)) {
+                return visit(
+                        firstValue,
+                        secondValue,
+                        frame.firstContext.push(frame.firstThing, name),
+                        frame.secondContext.push(frame.secondThing, name)
+                );
+            }
+            // Primitives are compared as raw bits; they are only decoded to report a difference.
+            if (firstValue != secondValue) {
+                HeapContext firstContext = frame.firstContext.push(frame.firstThing, name);
+                error(firstContext, "Field value %s differs between objects on paths %s and %s: first dump has %s, second has %s",
+                        name, firstContext, frame.secondContext.push(frame.secondThing, name),
+                        new HeapField(name, firstLayout.types[field], firstValue).getValue(),
+                        new HeapField(name, secondLayout.types[field], secondValue).getValue());
+            }
+            return null;
+        }
+
+        // Compares a pair of references. Returns a frame if the objects' contents need to be compared, or null if the
+        // comparison is already settled.
+        private Frame visit(long firstObjId, long secondObjId, HeapContext firstContext, HeapContext secondContext) throws HeapDifferException {
+            if (firstObjId == 0 && secondObjId == 0) {
+                return null;
+            } else if (firstObjId == 0) {
+                error(firstContext, "Path is null in first dump, but not null in second dump: %s vs. %s",
+                        firstContext, secondContext);
+                return null;
+            } else if (secondObjId == 0) {
+                error(firstContext, "Path is not null in first dump, but null in second dump: %s vs. %s",
+                        firstContext, secondContext);
+                return null;
+            }
+
+            if (alreadyMatched(firstObjId, secondObjId, firstContext)) {
+                return null;
+            }
+
+            HeapObject firstThing = firstSnapshot.getObj(firstObjId);
+            HeapObject secondThing = secondSnapshot.getObj(secondObjId);
+            if (firstThing == null || secondThing == null) {
+                error(firstContext, "Path points to an object missing from the %s dump: %s vs. %s",
+                        firstThing == null ? "first" : "second", firstContext, secondContext);
+                return null;
+            }
+
+            if (!firstThing.getClassName().equals(secondThing.getClassName())) {
+                error(firstContext, "Path between dumps point to differently-typed objects: %s points to a %s, %s points to a %s",
+                        firstContext, firstThing.getClassName(), secondContext, secondThing.getClassName());
+                return null;
+            } else if (!(firstThing instanceof HeapPrimitiveArray) && ignored.ignores(firstThing)) {
+                // Primitive arrays' contents are never compared, so there's nothing to skip.
+                return null;
+            }
+
+            // To handle pointer loops, assume these objects are equivalent until proven otherwise.
+            if (!identity.claim(firstObjId, secondObjId)) {
+                // Another task matched one of them in the meantime.
+                alreadyMatched(firstObjId, secondObjId, firstContext);
+                return null;
+            }
+
+            if (!(firstThing instanceof HeapInstance) && !(firstThing instanceof HeapObjectArray)) {
+                return null;
+            }
+            if (firstThing instanceof HeapInstance
+                    && !((HeapInstance) firstThing).getLayout().matches(((HeapInstance) secondThing).getLayout())) {
+                error(firstContext, "Objects on paths %s and %s have classes with different fields: %s",
+                        firstContext, secondContext, firstThing.getClassName());
+                return null;
+            }
+            if (firstThing instanceof HeapObjectArray
+                    && ((HeapObjectArray) firstThing).getLength() != ((HeapObjectArray) secondThing).getLength()) {
+                error(firstContext, "Arrays on paths %s and %s have different lengths: %d vs. %d",
+                        firstContext, secondContext, ((HeapObjectArray) firstThing).getLength(),
+                        ((HeapObjectArray) secondThing).getLength());
+                return null;
+            }
+            boolean[] ignoredFields = firstThing instanceof HeapInstance ? ignored.ignoredFields((HeapInstance) firstThing) : null;
+            return new Frame(firstObjId, secondObjId, firstThing, secondThing, firstContext, secondContext, ignoredFields);
+        }
+
+        // Checks whether either object already has a counterpart, reporting an error if it isn't the other object.
+        private boolean alreadyMatched(long firstObjId, long secondObjId, HeapContext context) throws HeapDifferException {
+            long match = identity.get(firstObjId);
+            if (match != 0) {
+                if (match != secondObjId) {
+                    error(context, "Object %d in first dump is (potentially) equivalent to object %d in second dump, but was compared to object %d",
+                            firstObjId, match, secondObjId);
+                }
+                return true;
+            }
+            long inverseMatch = identity.getKey(secondObjId);
+            if (inverseMatch != 0) {
+                error(context, "Object %d in second dump is (potentially) equivalent to object %d in first dump, but was compared to object %d",
+                        secondObjId, inverseMatch, firstObjId);
+                return true;
+            }
+            return false;
+        }
 
-    private boolean shouldIgnore(String className) {
-        List<String> classNames = Arrays.asList(
-            "HashMap", "ClassLoader", "ThreadPoolExecutor", "java.io.FileDescriptor", "java.lang.Thread",
-            "PmdThread" // pmd
-        );
-        List<String> packagePrefixes = Arrays.asList("java.lang.ref", "sun");
-        return classNames.stream().anyMatch(className::contains) || packagePrefixes.stream().anyMatch(className::startsWith);
+        // Helper to log errors (if full diff requested) or throw errors. The error is grouped under the field path of
+        // the context it was found at, and only formatted when it's printed.
+        private void error(HeapContext context, String fmt, Object ... args) throws HeapDifferException {
+            findings.add(new Divergence(context.fieldPath(), fmt, args));
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -206,17 +480,33 @@ public class HeapDiffer {
         String firstPath = options.getOptionValue("first");
         String secondPath = options.getOptionValue("second");
         boolean computeFullDiff = options.hasOption("full");
-
-        HeapDiffer differ = new HeapDiffer(firstPath, secondPath, computeFullDiff);
-        differ.computeDiff();
+        int maxErrors = Integer.parseInt(options.getOptionValue("max-errors", Integer.toString(DEFAULT_MAX_ERRORS)));
+        int maxPerPath = Integer.parseInt(
+                options.getOptionValue("max-per-path", Integer.toString(DEFAULT_MAX_PER_PATH)));
+        int parallelism = Integer.parseInt(options.getOptionValue("parallelism", "1"));
+        HeapIgnorePolicy ignorePolicy = options.hasOption("ignore")
+                ? HeapIgnorePolicy.fromFile(Paths.get(options.getOptionValue("ignore")))
+                : HeapIgnorePolicy.defaults();
+
+        HeapDiffer differ;
+        try (RootSnapshot firstSnapshot = RootSnapshot.fromFile(firstPath);
+             RootSnapshot secondSnapshot = RootSnapshot.fromFile(secondPath)) {
+            differ = new HeapDiffer(firstSnapshot, secondSnapshot, computeFullDiff, ignorePolicy, parallelism);
+            differ.maxErrors = maxErrors;
+            differ.maxPerPath = maxPerPath;
+            if (options.hasOption("hash")) {
+                differ.firstHashes = HeapHasher.hash(firstSnapshot, ignorePolicy);
+                differ.secondHashes = HeapHasher.hash(secondSnapshot, ignorePolicy);
+            }
+            differ.computeDiff();
+        }
         if (differ.errors.isEmpty()) {
             System.out.println("No differences detected.");
             System.exit(0);
         } else {
             if (computeFullDiff) {
-                System.out.printf("%d difference(s) detected:\n", differ.errors.size());
-                for (int i = 0; i < differ.errors.size(); i++) {
-                    System.out.printf("%d: %s\n", i+1, differ.errors.get(i));
+                for (String line : differ.report()) {
+                    System.out.println(line);
                 }
             } else {
                 assert differ.errors.size() == 1;
@@ -228,28 +518,85 @@ public class HeapDiffer {
     }
 
     public static boolean diff(String firstPath, String secondPath, String prefix) throws Exception {
-        HeapDiffer differ = new HeapDiffer(firstPath, secondPath, false);
+        return diff(firstPath, secondPath, prefix, 1);
+    }
+
+    public static boolean diff(String firstPath, String secondPath, String prefix, int parallelism) throws Exception {
+        return diff(firstPath, secondPath, HeapIgnorePolicy.defaults(), parallelism);
+    }
+
+    public static boolean diff(String firstPath, String secondPath, HeapIgnorePolicy ignorePolicy, int parallelism) throws Exception {
+        try (RootSnapshot firstSnapshot = RootSnapshot.fromFile(firstPath);
+             RootSnapshot secondSnapshot = RootSnapshot.fromFile(secondPath)) {
+            HeapDiffer differ = new HeapDiffer(firstSnapshot, secondSnapshot, false, ignorePolicy, parallelism);
+            differ.computeDiff();
+            return differ.errors.isEmpty();
+        }
+    }
+
+    // Diffs two dumps which have already been opened and hashed, skipping the leading roots whose hashes match.
+    public static boolean diff(RootSnapshot firstSnapshot, RootHashes firstHashes, RootSnapshot secondSnapshot,
+                               RootHashes secondHashes, HeapIgnorePolicy ignorePolicy, int parallelism) {
+        if (firstHashes.matches(secondHashes)) {
+            return true;
+        }
+        HeapDiffer differ = new HeapDiffer(firstSnapshot, secondSnapshot, false, ignorePolicy, parallelism);
+        differ.firstHashes = firstHashes;
+        differ.secondHashes = secondHashes;
         differ.computeDiff();
         return differ.errors.isEmpty();
     }
 
     public static List<String> fullDiff(String firstPath, String secondPath, String prefix) throws Exception {
-        HeapDiffer differ = new HeapDiffer(firstPath, secondPath, true);
-        differ.computeDiff();
-        return differ.errors;
+        return fullDiff(firstPath, secondPath, prefix, 1);
     }
 
-    // Helper to log errors (if full diff requested) or throw errors.
-    private void error(String fmt, Object ... args) throws HeapDifferException {
-        String error = String.format(fmt, args);
-        errors.add(error);
+    public static List<String> fullDiff(String firstPath, String secondPath, String prefix, int parallelism) throws Exception {
+        return fullDiff(firstPath, secondPath, HeapIgnorePolicy.defaults(), parallelism);
+    }
 
-        if (!computeFullDiff) {
-            throw new HeapDifferException(error);
+    public static List<String> fullDiff(String firstPath, String secondPath, HeapIgnorePolicy ignorePolicy, int parallelism) throws Exception {
+        HeapDiffer differ;
+        try (RootSnapshot firstSnapshot = RootSnapshot.fromFile(firstPath);
+             RootSnapshot secondSnapshot = RootSnapshot.fromFile(secondPath)) {
+            differ = new HeapDiffer(firstSnapshot, secondSnapshot, true, ignorePolicy, parallelism);
+            differ.computeDiff();
         }
+        return differ.report();
     }
 
-    private static String frameName(StackFrame frame) {
+    // The lines of a full diff's report, or none if there are no differences: the differences kept, in diff order, then
+    // the number of differences on each field path, most frequent first.
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        if (errors.isEmpty()) {
+            return lines;
+        }
+        lines.add(String.format("%d difference(s) detected:", errorCount));
+        for (int i = 0; i < errors.size(); i++) {
+            lines.add(String.format("%d: %s", i + 1, errors.get(i)));
+        }
+        if (errorCount > errors.size()) {
+            lines.add(String.format("(%d more not shown; see --max-errors and --max-per-path)",
+                    errorCount - errors.size()));
+        }
+        List<Map.Entry<Divergence.FieldPath, long[]>> paths = new ArrayList<>(pathCounts.entrySet());
+        paths.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        lines.add(String.format("Differences by path (%d):", paths.size()));
+        for (Map.Entry<Divergence.FieldPath, long[]> path : paths) {
+            lines.add(String.format("%10d  %s", path.getValue()[0], path.getKey()));
+        }
+        return lines;
+    }
+
+    // Helper to log errors (if full diff requested) or throw errors, for the frame checks.
+    private void error(String fmt, Object ... args) throws HeapDifferException {
+        Findings findings = new Findings();
+        errorGroups.add(findings);
+        findings.add(new Divergence(TRACE, fmt, args));
+    }
+
+    private static String frameName(HeapFrame frame) {
         return String.format("\"%s.%s%s\"", frame.getClassName(), frame.getMethodName(), frame.getMethodSignature());
     }
 
@@ -268,6 +615,32 @@ public class HeapDiffer {
         computeFullDiff.setRequired(false);
         options.addOption(computeFullDiff);
 
+        Option parallelism = new Option("p", "parallelism", true,
+                "Number of threads to diff the roots with (default is 1). With several threads, an error may be " +
+                "reported on a different path to the same objects from run to run");
+        parallelism.setRequired(false);
+        options.addOption(parallelism);
+
+        Option ignore = new Option("i", "ignore", true,
+                "Path to a file of heap ignore rules (see HeapIgnorePolicy; default is the built-in rules)");
+        ignore.setRequired(false);
+        options.addOption(ignore);
+
+        Option maxErrors = new Option(null, "max-errors", true,
+                "With -full, the number of differences to print (default is 1000); all of them are counted");
+        maxErrors.setRequired(false);
+        options.addOption(maxErrors);
+
+        Option maxPerPath = new Option(null, "max-per-path", true,
+                "With -full, the number of differences to print per field path (default is 20)");
+        maxPerPath.setRequired(false);
+        options.addOption(maxPerPath);
+
+        Option hash = new Option("hash", false,
+                "Hash the roots of both dumps first, and only walk the roots from the first whose hashes differ");
+        hash.setRequired(false);
+        options.addOption(hash);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         try {
@@ -3,12 +3,16 @@ package com.mattdsouza.emi.heaps;
 import org.apache.commons.cli.*;
 import soot.*;
 import soot.jimple.Expr;
+import soot.jimple.IntConstant;
 import soot.jimple.Jimple;
 import soot.jimple.Stmt;
 import soot.tagkit.BytecodeOffsetTag;
 import soot.tagkit.Tag;
+import soot.toolkits.graph.ExceptionalUnitGraph;
+import soot.toolkits.scalar.SimpleLiveLocals;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 // Helper program add a heap dump instruction to a program.
 // This is a utility program to run before starting an EMI campaign on some test program.
@@ -19,6 +23,7 @@ public class HeapDumpInstrumentor {
         String clazz = options.getOptionValue("class");
         String method = options.getOptionValue("method");
         int offset = Integer.parseInt(options.getOptionValue("offset"));
+        boolean compact = options.hasOption("compact");
 
         String dumpLibrary = System.getProperty("heap_dump_library");
         if (dumpLibrary == null) {
@@ -26,7 +31,7 @@ public class HeapDumpInstrumentor {
             System.exit(1);
         }
 
-        System.out.printf("Adding heap dump instruction to %s.%s:%d.\n", clazz, method, offset);
+        System.out.printf("Adding %s instruction to %s.%s:%d.\n", compact ? "heap snapshot" : "heap dump", clazz, method, offset);
 
         List<String> sootOptions = new ArrayList<>();
         // Add classes to Soot classpath (including current classpath, so that we can resolve HeapDumper
@@ -44,7 +49,7 @@ public class HeapDumpInstrumentor {
 
         // Direct Soot to transform just the given class
         sootOptions.add(clazz);
-        HeapDumpTransformer transformer = new HeapDumpTransformer(method, offset);
+        HeapDumpTransformer transformer = new HeapDumpTransformer(method, offset, compact);
         PackManager.v().getPack("jtp").add(new Transform("jtp.mytransform", transformer));
 
         // Pre-load HeapDumper class so it's accessible in the transformer.
@@ -79,6 +84,12 @@ public class HeapDumpInstrumentor {
         offset.setRequired(true);
         options.addOption(offset);
 
+        Option compact = new Option("compact", false,
+                "Insert a call to HeapDumper.snapshot with the locals live at the offset, which writes only the objects " +
+                "reachable from them (in the .snap format), instead of a call to HeapDumper.dump, which dumps the whole heap");
+        compact.setRequired(false);
+        options.addOption(compact);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         try {
@@ -95,11 +106,13 @@ public class HeapDumpInstrumentor {
 class HeapDumpTransformer extends BodyTransformer {
     String method;
     int offset;
+    boolean compact;
     boolean success;
 
-    HeapDumpTransformer(String method, int offset) {
+    HeapDumpTransformer(String method, int offset, boolean compact) {
         this.method = method;
         this.offset = offset;
+        this.compact = compact;
         this.success = false;
     }
 
@@ -156,12 +169,48 @@ class HeapDumpTransformer extends BodyTransformer {
                     ". Inserting heap dump immediately before it.");
 
             SootClass dumpClass = Scene.v().getSootClass("com.mattdsouza.emi.heaps.HeapDumper");
-            SootMethod dumpMethod = dumpClass.getMethod("void dump()");
-            Expr dumpCall = Jimple.v().newStaticInvokeExpr(dumpMethod.makeRef());
-            Stmt dumpStmt = Jimple.v().newInvokeStmt(dumpCall);
-            units.insertBefore(dumpStmt, unit);
+            if (compact) {
+                units.insertBefore(snapshotCall(b, unit, dumpClass), unit);
+            } else {
+                SootMethod dumpMethod = dumpClass.getMethod("void dump()");
+                Expr dumpCall = Jimple.v().newStaticInvokeExpr(dumpMethod.makeRef());
+                Stmt dumpStmt = Jimple.v().newInvokeStmt(dumpCall);
+                units.insertBefore(dumpStmt, unit);
+            }
             this.success = true;
             return;
         }
     }
+
+    // Builds "HeapDumper.snapshot(new Object[] { <live locals> })", with primitive locals boxed. Locals are passed in
+    // the body's declaration order, so the roots of every variant's snapshot line up.
+    private List<Unit> snapshotCall(Body b, Unit unit, SootClass dumpClass) {
+        Set<Local> live = new HashSet<>(new SimpleLiveLocals(new ExceptionalUnitGraph(b)).getLiveLocalsBefore(unit));
+        List<Local> roots = b.getLocals().stream().filter(live::contains).collect(Collectors.toList());
+        System.out.println("Passing live locals to the snapshot: " + roots.stream().map(Local::getName).collect(Collectors.joining(", ")));
+
+        List<Unit> units = new ArrayList<>();
+        RefType objectType = RefType.v("java.lang.Object");
+        Local array = Jimple.v().newLocal("$heapRoots", ArrayType.v(objectType, 1));
+        b.getLocals().add(array);
+        units.add(Jimple.v().newAssignStmt(array, Jimple.v().newNewArrayExpr(objectType, IntConstant.v(roots.size()))));
+        for (int i = 0; i < roots.size(); i++) {
+            Local root = roots.get(i);
+            Value value = root;
+            if (root.getType() instanceof PrimType) {
+                PrimType type = (PrimType) root.getType();
+                RefType boxedType = type.boxedType();
+                Local boxed = Jimple.v().newLocal("$heapRoot" + i, boxedType);
+                b.getLocals().add(boxed);
+                SootMethodRef valueOf = Scene.v().makeMethodRef(boxedType.getSootClass(), "valueOf",
+                        Collections.singletonList(type), boxedType, true);
+                units.add(Jimple.v().newAssignStmt(boxed, Jimple.v().newStaticInvokeExpr(valueOf, root)));
+                value = boxed;
+            }
+            units.add(Jimple.v().newAssignStmt(Jimple.v().newArrayRef(array, IntConstant.v(i)), value));
+        }
+        SootMethod snapshotMethod = dumpClass.getMethod("void snapshot(java.lang.Object[])");
+        units.add(Jimple.v().newInvokeStmt(Jimple.v().newStaticInvokeExpr(snapshotMethod.makeRef(), array)));
+        return units;
+    }
 }
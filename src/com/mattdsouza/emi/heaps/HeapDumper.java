@@ -3,22 +3,63 @@ package com.mattdsouza.emi.heaps;
 
 import com.sun.management.HotSpotDiagnosticMXBean;
 
+import java.io.File;
 import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 
 public class HeapDumper {
     public static final String DUMP_FILE_PROP = "dump_file";
-    private static boolean dumped = false;
-    public static void dump() {
-        if (dumped) return;
+    // Set by a warm DaCapo harness to identify each of the runs it makes in one JVM.
+    public static final String DUMP_REQUEST_PROP = "dump_request";
+    // Dump at most once per run: per dump file and request. A warm harness may be given the same dump file again (e.g.,
+    // when a variant is re-run), but then with a new request.
+    private static String dumped = null;
+
+    // Returns the dump file to write, or null if there's none or this run already dumped.
+    private static String claimDump() {
         String dumpFile = System.getProperty(DUMP_FILE_PROP);
+        if (dumpFile == null) {
+            return null;
+        }
+        String run = dumpFile + "\t" + System.getProperty(DUMP_REQUEST_PROP, "");
+        if (run.equals(dumped)) {
+            return null;
+        }
+        dumped = run;
+        return dumpFile;
+    }
+
+    public static void dump() {
+        String dumpFile = claimDump();
         if (dumpFile == null) {
             return;
         }
         try {
+            // dumpHeap refuses to overwrite the dump of an earlier run.
+            new File(dumpFile).delete();
             ManagementFactory.newPlatformMXBeanProxy(
                     ManagementFactory.getPlatformMBeanServer(), "com.sun.management:type=HotSpotDiagnostic", HotSpotDiagnosticMXBean.class
             ).dumpHeap(dumpFile, true);
         } catch (Exception ex) {}
-        dumped = true;
+    }
+
+    // Compact alternative to dump(), inserted by HeapDumpInstrumentor --compact: the caller passes the locals live at
+    // the dump site, and only the objects reachable from them are written, in the .snap format (see SnapshotFormat).
+    // There is no full GC or whole-heap dump, so the pause is proportional to the reachable state, not the heap.
+    public static void snapshot(Object... roots) {
+        String dumpFile = claimDump();
+        if (dumpFile == null) {
+            return;
+        }
+        try {
+            // Keep the trace from this frame on, so readers find the dump site after it (as with dump()).
+            StackTraceElement[] trace = Thread.currentThread().getStackTrace();
+            int start = 0;
+            while (start < trace.length && !(trace[start].getClassName().equals(HeapDumper.class.getName())
+                    && trace[start].getMethodName().equals("snapshot"))) {
+                start++;
+            }
+            new ObjectGraphWriter().write(new File(dumpFile), Arrays.copyOfRange(trace, start, trace.length), roots);
+        } catch (Exception ex) {}
     }
 }
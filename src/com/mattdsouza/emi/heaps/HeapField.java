@@ -0,0 +1,74 @@
+package com.mattdsouza.emi.heaps;
+
+// A field (or primitive array element) value. Values are kept as raw bits: an object id for references, or the
+// primitive value widened to a long.
+public class HeapField {
+    // hprof basic types.
+    static final byte OBJECT = 2;
+    static final byte BOOLEAN = 4;
+    static final byte CHAR = 5;
+    static final byte FLOAT = 6;
+    static final byte DOUBLE = 7;
+    static final byte BYTE = 8;
+    static final byte SHORT = 9;
+    static final byte INT = 10;
+    static final byte LONG = 11;
+
+    private final String name;
+    private final byte type;
+    private final long value;
+
+    HeapField(String name, byte type, long value) {
+        this.name = name;
+        this.type = type;
+        this.value = value;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public boolean isReference() {
+        return type == OBJECT;
+    }
+
+    // The referenced object id (0 for null), for reference fields.
+    public long getObjectId() {
+        assert isReference();
+        return value;
+    }
+
+    public long getRawValue() {
+        return value;
+    }
+
+    public String getValue() {
+        switch (type) {
+            case OBJECT: return Long.toString(value);
+            case BOOLEAN: return Boolean.toString(value != 0);
+            case CHAR: return String.valueOf((char) value);
+            case FLOAT: return Float.toString(Float.intBitsToFloat((int) value));
+            case DOUBLE: return Double.toString(Double.longBitsToDouble(value));
+            default: return Long.toString(value);
+        }
+    }
+
+    static String typeName(byte type) {
+        switch (type) {
+            case OBJECT: return "Object";
+            case BOOLEAN: return "boolean";
+            case CHAR: return "char";
+            case FLOAT: return "float";
+            case DOUBLE: return "double";
+            case BYTE: return "byte";
+            case SHORT: return "short";
+            case INT: return "int";
+            case LONG: return "long";
+            default: throw new IllegalArgumentException("Unknown hprof basic type " + type);
+        }
+    }
+}
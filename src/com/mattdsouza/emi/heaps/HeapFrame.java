@@ -0,0 +1,38 @@
+package com.mattdsouza.emi.heaps;
+
+// A frame of a stack trace in a heap dump.
+public class HeapFrame {
+    private final String className;
+    private final String methodName;
+    private final String methodSignature;
+    private final String sourceFile;
+    private final int lineNumber;
+
+    HeapFrame(String className, String methodName, String methodSignature, String sourceFile, int lineNumber) {
+        this.className = className;
+        this.methodName = methodName;
+        this.methodSignature = methodSignature;
+        this.sourceFile = sourceFile;
+        this.lineNumber = lineNumber;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getMethodSignature() {
+        return methodSignature;
+    }
+
+    public String getSourceFile() {
+        return sourceFile;
+    }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
+}
@@ -0,0 +1,269 @@
+package com.mattdsouza.emi.heaps;
+
+import org.apache.commons.cli.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Computes a structural hash of the subgraph reachable from each frame root of a dump (see RootHashes), such that two
+// dumps whose hashes match have no differences HeapDiffer would report.
+//
+// Object graphs have cycles, so a root's hash isn't built from its children's hashes (as in a Merkle tree). Instead it
+// hashes a canonical serialization of the graph: the depth-first walk HeapDiffer makes (fields in layout order, then
+// array elements), where an object is written out in full when the walk first reaches it, and as its discovery number
+// when reached again. Object ids never enter the hash, so equal hashes mean the graphs are the same up to renaming
+// objects. Discovery numbers run across all roots, in diff order, so that objects shared between roots are shared in
+// both dumps, just as HeapDiffer's identity map requires.
+// The walk follows HeapDiffer's rules: objects ignored by the policy contribute only their class name, as do class
+// objects and primitive arrays (whose contents HeapDiffer doesn't compare), and ignored fields are skipped.
+public class HeapHasher {
+    // Tokens of the serialization.
+    private static final long NULL = 1;
+    private static final long SEEN = 2;
+    private static final long IGNORED = 3;
+    private static final long MISSING = 4;
+    private static final long NEW = 5;
+
+    private final RootSnapshot snapshot;
+    private final HeapIgnorePolicy.Verdicts ignored;
+
+    // Object id to discovery number + 1, and the ids in discovery order.
+    private final LongLongMap numbers = new LongLongMap();
+    private long[] discovered = new long[1024];
+    private int discoveredCount;
+
+    // Hashes of class names, and of instance class signatures (names and layouts), by class id.
+    private final LongLongMap classHashes = new LongLongMap();
+    private final Map<String, Long> nameHashes = new HashMap<>();
+
+    // Hash state of the root being walked: two independent 64-bit lanes.
+    private long first;
+    private long second;
+    private boolean missing;
+
+    // One object whose children are being hashed; like HeapDiffer, the walk keeps an explicit stack.
+    private static class Frame {
+        final HeapObject object;
+        final ClassLayout layout;
+        final boolean[] ignoredFields;
+        final int length;
+        int next;
+
+        Frame(HeapObject object, ClassLayout layout, boolean[] ignoredFields, int length) {
+            this.object = object;
+            this.layout = layout;
+            this.ignoredFields = ignoredFields;
+            this.length = length;
+        }
+    }
+
+    private HeapHasher(RootSnapshot snapshot, HeapIgnorePolicy ignorePolicy) {
+        this.snapshot = snapshot;
+        this.ignored = ignorePolicy.resolve(snapshot);
+    }
+
+    public static RootHashes hash(RootSnapshot snapshot, HeapIgnorePolicy ignorePolicy) {
+        return new HeapHasher(snapshot, ignorePolicy).hashRoots();
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine options = parseOptions(args);
+        HeapIgnorePolicy ignorePolicy = options.hasOption("ignore")
+                ? HeapIgnorePolicy.fromFile(Paths.get(options.getOptionValue("ignore")))
+                : HeapIgnorePolicy.defaults();
+        try (RootSnapshot snapshot = RootSnapshot.fromFile(options.getOptionValue("dump"))) {
+            hash(snapshot, ignorePolicy).write(Paths.get(options.getOptionValue("output")));
+        }
+    }
+
+    private RootHashes hashRoots() {
+        List<HeapFrame> frames = snapshot.getMainStackFrames();
+        int[] frameRoots = new int[frames.size()];
+        long trace = 0;
+        int count = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            HeapFrame frame = frames.get(i);
+            trace = mix(trace, hashName(frame.getClassName() + "." + frame.getMethodName() + frame.getMethodSignature()));
+            List<Long> roots = snapshot.roots.get(frame);
+            frameRoots[i] = roots == null ? -1 : roots.size();
+            count += roots == null ? 0 : roots.size();
+        }
+
+        long[] hashes = new long[count * 2];
+        boolean[] incomplete = new boolean[count];
+        int[] discoveredEnd = new int[count];
+        int root = 0;
+        for (HeapFrame frame : frames) {
+            List<Long> roots = snapshot.roots.get(frame);
+            if (roots == null) {
+                continue;
+            }
+            for (long id : roots) {
+                first = 0x243F6A8885A308D3L;
+                second = 0x13198A2E03707344L;
+                missing = false;
+                hashRoot(id);
+                hashes[2 * root] = first;
+                hashes[2 * root + 1] = second;
+                incomplete[root] = missing;
+                discoveredEnd[root] = discoveredCount;
+                root++;
+            }
+        }
+        return new RootHashes(trace, frameRoots, hashes, incomplete, Arrays.copyOf(discovered, discoveredCount), discoveredEnd);
+    }
+
+    private void hashRoot(long rootId) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        Frame root = visit(rootId);
+        if (root != null) {
+            stack.push(root);
+        }
+        while (!stack.isEmpty()) {
+            Frame frame = stack.peek();
+            if (frame.next >= frame.length) {
+                stack.pop();
+                continue;
+            }
+            int i = frame.next++;
+            Frame child;
+            if (frame.layout != null) {
+                if (frame.ignoredFields != null && frame.ignoredFields[i]) {
+                    continue;
+                }
+                long value = ((HeapInstance) frame.object).readSlot(frame.layout, i);
+                if (frame.layout.isReference(i)) {
+                    child = visit(value);
+                } else {
+                    add(value);
+                    child = null;
+                }
+            } else {
+                child = visit(((HeapObjectArray) frame.object).getElement(i));
+            }
+            if (child != null) {
+                stack.push(child);
+            }
+        }
+    }
+
+    // Hashes a reference. Returns a frame if the object's contents need to be hashed.
+    private Frame visit(long id) {
+        if (id == 0) {
+            add(NULL);
+            return null;
+        }
+        long number = numbers.get(id);
+        if (number != 0) {
+            add(SEEN);
+            add(number);
+            return null;
+        }
+        HeapObject object = snapshot.getObj(id);
+        if (object == null) {
+            // HeapDiffer reports these even if both dumps miss the object, so the root can't match anything.
+            missing = true;
+            add(MISSING);
+            return null;
+        }
+        if (ignored.ignores(object)) {
+            // Not numbered: HeapDiffer doesn't pair up ignored objects.
+            add(IGNORED);
+            add(hashClass(object));
+            return null;
+        }
+
+        numbers.put(id, discoveredCount + 1);
+        if (discoveredCount == discovered.length) {
+            discovered = Arrays.copyOf(discovered, discovered.length * 2);
+        }
+        discovered[discoveredCount++] = id;
+        add(NEW);
+        add(hashClass(object));
+
+        if (object instanceof HeapInstance) {
+            HeapInstance instance = (HeapInstance) object;
+            ClassLayout layout = instance.getLayout();
+            return new Frame(object, layout, ignored.ignoredFields(instance), layout.size());
+        } else if (object instanceof HeapObjectArray) {
+            int length = ((HeapObjectArray) object).getLength();
+            add(length);
+            return new Frame(object, null, null, length);
+        }
+        return null;
+    }
+
+    // Hashes the class of an object: its name, and for instances, the names and types of its fields.
+    private long hashClass(HeapObject object) {
+        long classId = object.getClassId();
+        if (classId == 0) {
+            return hashName(object.getClassName());
+        }
+        long hash = classHashes.get(classId);
+        if (hash == 0) {
+            hash = hashName(object.getClassName());
+            if (object instanceof HeapInstance) {
+                ClassLayout layout = ((HeapInstance) object).getLayout();
+                for (int i = 0; i < layout.size(); i++) {
+                    hash = mix(mix(hash, layout.names[i] == null ? 0 : hashName(layout.names[i])), layout.types[i]);
+                }
+            }
+            hash |= 1;  // 0 marks a missing entry.
+            classHashes.put(classId, hash);
+        }
+        return hash;
+    }
+
+    private long hashName(String name) {
+        Long hash = nameHashes.get(name);
+        if (hash == null) {
+            // 64-bit FNV-1a over the UTF-8 bytes.
+            long h = 0xCBF29CE484222325L;
+            for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+                h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+            }
+            hash = h;
+            nameHashes.put(name, hash);
+        }
+        return hash;
+    }
+
+    private void add(long value) {
+        first = mix(first, value);
+        second = Long.rotateLeft(second ^ (value * 0xC2B2AE3D27D4EB4FL), 31) * 0x165667B19E3779F9L + 0x27D4EB2F165667C5L;
+    }
+
+    private static long mix(long hash, long value) {
+        long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    static CommandLine parseOptions(String[] args) {
+        Options options = new Options();
+
+        Option dump = new Option("d", "dump", true, "Path to heap dump");
+        dump.setRequired(true);
+        options.addOption(dump);
+
+        Option output = new Option("o", "output", true, "Path to write the root hashes to");
+        output.setRequired(true);
+        options.addOption(output);
+
+        Option ignore = new Option("i", "ignore", true,
+                "Path to a file of heap ignore rules (see HeapIgnorePolicy; default is the built-in rules)");
+        ignore.setRequired(false);
+        options.addOption(ignore);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        try {
+            return parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp(HeapHasher.class.getName(), options);
+            System.exit(1);
+        }
+        return null;
+    }
+}
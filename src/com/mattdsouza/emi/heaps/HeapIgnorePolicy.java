@@ -0,0 +1,236 @@
+package com.mattdsouza.emi.heaps;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// Objects (and fields) which HeapDiffer doesn't compare, because their contents legitimately differ between runs.
+// Rules are read from a file with one rule per line ('#' starts a comment):
+//   class <name>            objects of exactly this class
+//   prefix <prefix>         objects of classes whose name starts with the prefix (e.g. "sun.")
+//   glob <pattern>          objects of classes matching the pattern, where '*' matches any run of characters and '?'
+//                           any single character (e.g. "*HashMap*")
+//   field <class> <field>   the named field of instances of the class, which may be a glob
+// Rules are compiled into a trie over the literal part of their class name (globs hang off the node of the literal
+// prefix before their first wildcard), so classifying a class walks its name once. Verdicts are then resolved once per
+// class of a dump (see resolve), so the check for each object visited is a lookup by class id.
+public class HeapIgnorePolicy {
+    // The rules used when a registry doesn't have its own.
+    static final List<String> DEFAULT_RULES = Arrays.asList(
+            "glob *HashMap*",
+            "glob *ClassLoader*",
+            "glob *ThreadPoolExecutor*",
+            "prefix java.io.FileDescriptor",
+            "prefix java.lang.Thread",
+            "prefix java.lang.ref",
+            "prefix sun"
+    );
+
+    private static class Node {
+        final Map<Character, Node> children = new HashMap<>();
+        boolean exact;
+        boolean prefix;
+        final List<Pattern> globs = new ArrayList<>();
+        // Field rules, as the class pattern and the field name.
+        final List<Pattern> fieldClasses = new ArrayList<>();
+        final List<String> fieldNames = new ArrayList<>();
+    }
+
+    private final Node root = new Node();
+
+    private HeapIgnorePolicy() {
+    }
+
+    public static HeapIgnorePolicy defaults() {
+        return parse(DEFAULT_RULES, "default rules");
+    }
+
+    public static HeapIgnorePolicy fromFile(Path rules) throws IOException {
+        return parse(Files.readAllLines(rules, StandardCharsets.UTF_8), rules.toString());
+    }
+
+    static HeapIgnorePolicy parse(List<String> lines, String source) {
+        HeapIgnorePolicy policy = new HeapIgnorePolicy();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            String kind = parts[0];
+            int arguments = kind.equals("field") ? 2 : 1;
+            if (parts.length != arguments + 1) {
+                throw new IllegalArgumentException(String.format("%s:%d: expected %d argument(s) for %s rule: %s",
+                        source, i + 1, arguments, kind, lines.get(i)));
+            }
+            String pattern = parts[1];
+            switch (kind) {
+                case "class":
+                    policy.node(pattern).exact = true;
+                    break;
+                case "prefix":
+                    policy.node(pattern).prefix = true;
+                    break;
+                case "glob":
+                    policy.node(literalPrefix(pattern)).globs.add(compileGlob(pattern));
+                    break;
+                case "field": {
+                    Node node = policy.node(literalPrefix(pattern));
+                    node.fieldClasses.add(compileGlob(pattern));
+                    node.fieldNames.add(parts[2]);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException(String.format("%s:%d: unknown rule kind %s: %s",
+                            source, i + 1, kind, lines.get(i)));
+            }
+        }
+        return policy;
+    }
+
+    // Whether objects of the class are ignored entirely.
+    boolean ignoresClass(String className) {
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.prefix) {
+                return true;
+            }
+            for (Pattern glob : node.globs) {
+                if (glob.matcher(className).matches()) {
+                    return true;
+                }
+            }
+            if (i == className.length()) {
+                return node.exact;
+            }
+            node = node.children.get(className.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    // The names of the fields ignored in instances of the class.
+    Set<String> ignoredFields(String className) {
+        Set<String> fields = new HashSet<>();
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            for (int j = 0; j < node.fieldClasses.size(); j++) {
+                if (node.fieldClasses.get(j).matcher(className).matches()) {
+                    fields.add(node.fieldNames.get(j));
+                }
+            }
+            node = i < className.length() ? node.children.get(className.charAt(i)) : null;
+        }
+        return fields;
+    }
+
+    // Resolves the verdicts for every class of a dump.
+    Verdicts resolve(RootSnapshot snapshot) {
+        return new Verdicts(this, snapshot);
+    }
+
+    // The policy's verdicts for the classes of one dump. Read-only once built, so it can be shared between threads.
+    static class Verdicts {
+        private static final long IGNORED = 1;
+        private static final long IGNORED_FIELDS = 2;
+
+        // Names of the objects without a class in the dump: class objects, primitive arrays, and object arrays whose
+        // class is missing.
+        private static final String[] UNCLASSED_NAMES = {
+                "java.lang.Class", "java.lang.Object[]",
+                "boolean[]", "char[]", "float[]", "double[]", "byte[]", "short[]", "int[]", "long[]"
+        };
+
+        private final HeapIgnorePolicy policy;
+        // Class id to flags; classes without any ignore rule are absent.
+        private final LongLongMap flags = new LongLongMap();
+        // For classes with IGNORED_FIELDS: which fields of their layout are ignored.
+        private final Map<Long, boolean[]> ignoredFields = new HashMap<>();
+        // Whether the objects without a class are ignored, by name. These include every String's backing array, so
+        // they're resolved up front rather than matched against the rules on every visit.
+        private final Map<String, Boolean> unclassed = new HashMap<>();
+
+        private Verdicts(HeapIgnorePolicy policy, RootSnapshot snapshot) {
+            this.policy = policy;
+            for (String name : UNCLASSED_NAMES) {
+                unclassed.put(name, policy.ignoresClass(name));
+            }
+            for (HeapClass cls : snapshot.getClasses()) {
+                if (policy.ignoresClass(cls.name)) {
+                    flags.put(cls.id, IGNORED);
+                    continue;
+                }
+                Set<String> fields = policy.ignoredFields(cls.name);
+                if (fields.isEmpty()) {
+                    continue;
+                }
+                ClassLayout layout = snapshot.getLayout(cls);
+                boolean[] ignored = new boolean[layout.size()];
+                for (int i = 0; i < ignored.length; i++) {
+                    ignored[i] = fields.contains(layout.names[i]);
+                }
+                flags.put(cls.id, IGNORED_FIELDS);
+                ignoredFields.put(cls.id, ignored);
+            }
+        }
+
+        boolean ignores(HeapObject object) {
+            long classId = object.getClassId();
+            if (classId == 0) {
+                Boolean verdict = unclassed.get(object.getClassName());
+                return verdict != null ? verdict : policy.ignoresClass(object.getClassName());
+            }
+            return flags.get(classId) == IGNORED;
+        }
+
+        // Returns which fields of the instance's layout are ignored, or null if none are.
+        boolean[] ignoredFields(HeapInstance instance) {
+            long classId = instance.getClassId();
+            return flags.get(classId) == IGNORED_FIELDS ? ignoredFields.get(classId) : null;
+        }
+    }
+
+    private Node node(String path) {
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            node = node.children.computeIfAbsent(path.charAt(i), c -> new Node());
+        }
+        return node;
+    }
+
+    private static String literalPrefix(String glob) {
+        int end = 0;
+        while (end < glob.length() && glob.charAt(end) != '*' && glob.charAt(end) != '?') {
+            end++;
+        }
+        return glob.substring(0, end);
+    }
+
+    private static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literal = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal < i) {
+                    regex.append(Pattern.quote(glob.substring(literal, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literal = i + 1;
+            }
+        }
+        if (literal < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literal)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
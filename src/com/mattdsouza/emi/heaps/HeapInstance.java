@@ -0,0 +1,45 @@
+package com.mattdsouza.emi.heaps;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// An instance of a class. Its field values are read from the dump on demand.
+public class HeapInstance extends HeapObject {
+    private final HeapClass cls;
+    // Offset of the instance's field values in the dump.
+    private final long valuesOffset;
+
+    HeapInstance(RootSnapshot snapshot, long id, HeapClass cls, long valuesOffset) {
+        super(snapshot, id, cls.name);
+        this.cls = cls;
+        this.valuesOffset = valuesOffset;
+    }
+
+    // Returns the instance fields of the object's class and its superclasses (in that order).
+    public List<HeapField> getFields() {
+        List<HeapField> fields = new ArrayList<>();
+        long pos = valuesOffset;
+        for (HeapClass c = cls; c != null; c = snapshot.getClass(c.superId)) {
+            for (int i = 0; i < c.fieldNames.length; i++) {
+                byte type = c.fieldTypes[i];
+                fields.add(new HeapField(c.fieldNames[i], type, snapshot.readValue(pos, type)));
+                pos += snapshot.sizeOf(type);
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    long getClassId() {
+        return cls.id;
+    }
+
+    ClassLayout getLayout() {
+        return snapshot.getLayout(cls);
+    }
+
+    // Reads the raw value (see HeapField) of a field, by its index in the class layout.
+    long readSlot(ClassLayout layout, int field) {
+        return snapshot.readValue(valuesOffset + layout.offsets[field], layout.types[field]);
+    }
+}
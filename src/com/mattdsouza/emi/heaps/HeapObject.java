@@ -0,0 +1,29 @@
+package com.mattdsouza.emi.heaps;
+
+// An object in a heap dump. Objects are views over the memory-mapped dump: their contents are decoded from the file
+// when accessed, not when the object is created. Plain HeapObjects are class objects (the dump describes their static
+// state, which we don't compare); instances and arrays have their own subclasses.
+public class HeapObject {
+    final RootSnapshot snapshot;
+    private final long id;
+    private final String className;
+
+    HeapObject(RootSnapshot snapshot, long id, String className) {
+        this.snapshot = snapshot;
+        this.id = id;
+        this.className = className;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    // Id of the object's class in the dump, or 0 if it has none (class objects and primitive arrays).
+    long getClassId() {
+        return 0;
+    }
+}
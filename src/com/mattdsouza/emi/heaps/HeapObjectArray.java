@@ -0,0 +1,37 @@
+package com.mattdsouza.emi.heaps;
+
+// An array of references. Its elements are read from the dump on demand.
+public class HeapObjectArray extends HeapObject {
+    private final long classId;
+    private final int length;
+    // Offset of the first element in the dump.
+    private final long elementsOffset;
+
+    HeapObjectArray(RootSnapshot snapshot, long id, long classId, String className, int length, long elementsOffset) {
+        super(snapshot, id, className);
+        this.classId = classId;
+        this.length = length;
+        this.elementsOffset = elementsOffset;
+    }
+
+    @Override
+    long getClassId() {
+        return classId;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getElement(int index) {
+        return snapshot.readId(elementsOffset + (long) index * snapshot.idSize());
+    }
+
+    public long[] getElements() {
+        long[] elements = new long[length];
+        for (int i = 0; i < length; i++) {
+            elements[i] = getElement(i);
+        }
+        return elements;
+    }
+}
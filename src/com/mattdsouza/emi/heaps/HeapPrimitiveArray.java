@@ -0,0 +1,30 @@
+package com.mattdsouza.emi.heaps;
+
+// An array of primitive values. Its elements are read from the dump on demand.
+public class HeapPrimitiveArray extends HeapObject {
+    private final byte type;
+    private final int length;
+    // Offset of the first element in the dump.
+    private final long elementsOffset;
+
+    HeapPrimitiveArray(RootSnapshot snapshot, long id, byte type, int length, long elementsOffset) {
+        super(snapshot, id, HeapField.typeName(type) + "[]");
+        this.type = type;
+        this.length = length;
+        this.elementsOffset = elementsOffset;
+    }
+
+    // The hprof basic type of the elements (see HeapField).
+    public byte getType() {
+        return type;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public HeapField getElement(int index) {
+        return new HeapField(Integer.toString(index), type,
+                snapshot.readValue(elementsOffset + (long) index * snapshot.sizeOf(type), type));
+    }
+}
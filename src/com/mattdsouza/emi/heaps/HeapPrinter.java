@@ -1,127 +1,273 @@
 package com.mattdsouza.emi.heaps;
 
-import heapdl.hprof.*;
 import org.apache.commons.cli.*;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Pattern;
 
+// Prints the object graph reachable from a dump's frame roots, as Graphviz DOT or GraphML. The graph is written while
+// it is walked (breadth-first), so memory use doesn't grow with the output. On real dumps the full graph is far too
+// big to render, so the walk can be bounded by depth, by number of objects and by array elements followed, and limited
+// to the roots of some frames.
 public class HeapPrinter {
-    public static void main(String[] args) throws IOException {
-        CommandLine options = parseOptions(args);
-        String hprofFile = options.getOptionValue("dump");
+    private static final int UNLIMITED = Integer.MAX_VALUE;
 
-        RootSnapshot snapshot = RootSnapshot.fromFile(hprofFile);
+    // Receives the graph as it's walked. Nodes are written before any edge to them, except for edges from frames.
+    private interface GraphWriter {
+        void start(List<String> frames) throws IOException;
 
-        LinkedHashMap<StackFrame, List<Long>> relevantRoots = snapshot.filterRoots(snapshot.getMainStackFrames());
+        void root(int frame, long id) throws IOException;
 
-        StringBuilder buf = new StringBuilder();
-        buf.append("digraph heap {\n");
+        void node(long id, String label) throws IOException;
 
-        /// Generate nodes and edges for stack frames.
-        String prev = null;
-        StringBuilder sameRankBuf = new StringBuilder();
-        sameRankBuf.append("{rank = same; ");
+        void edge(long from, long to, String label) throws IOException;
 
-        for (StackFrame frame : relevantRoots.keySet()) {
-            String name = frameName(frame);
-            buf.append(name);
-            buf.append(" [shape=box];\n");
-            if (prev != null) {
-                buf.append(prev);
-                buf.append(" -> ");
-                buf.append(name);
-                buf.append(";\n");
-            }
+        void end() throws IOException;
+    }
 
-            sameRankBuf.append(name);
-            sameRankBuf.append(";");
+    private final RootSnapshot snapshot;
+    private final GraphWriter out;
+    private final int maxDepth;
+    private final int maxNodes;
+    private final int maxFanOut;
 
-            prev = name;
-        }
-        sameRankBuf.append("}\n");
-        sameRankBuf.append("rankdir = LR;\n");
-        buf.append(sameRankBuf.toString());
+    // Object id to depth + 1, for objects already queued (and so printed, or to be).
+    private final LongLongMap queued = new LongLongMap();
+    private long[] queue = new long[1024];
+    private int queueHead;
+    private int queueTail;
 
+    private HeapPrinter(RootSnapshot snapshot, GraphWriter out, int maxDepth, int maxNodes, int maxFanOut) {
+        this.snapshot = snapshot;
+        this.out = out;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.maxFanOut = maxFanOut;
+    }
 
-        Set<Long> seen = new HashSet<>();
-        Queue<Long> toVisit = new ArrayDeque<>();
+    public static void main(String[] args) throws IOException {
+        CommandLine options = parseOptions(args);
+        String hprofFile = options.getOptionValue("dump");
+        String format = options.getOptionValue("format", "dot");
+        int maxDepth = Integer.parseInt(options.getOptionValue("max-depth", Integer.toString(UNLIMITED)));
+        int maxNodes = Integer.parseInt(options.getOptionValue("max-nodes", Integer.toString(UNLIMITED)));
+        int maxFanOut = Integer.parseInt(options.getOptionValue("max-fan-out", Integer.toString(UNLIMITED)));
+        Pattern frameFilter = options.hasOption("frame") ? Pattern.compile(options.getOptionValue("frame")) : null;
 
-        /// Perform BFS to generate pointer graph.
-        // Initialize BFS queue with roots
-        for (Map.Entry<StackFrame, List<Long>> entry : relevantRoots.entrySet()) {
-            String name = frameName(entry.getKey());
+        try (RootSnapshot snapshot = RootSnapshot.fromFile(hprofFile)) {
+            LinkedHashMap<HeapFrame, List<Long>> relevantRoots = snapshot.filterRoots(snapshot.getMainStackFrames());
+            if (frameFilter != null) {
+                relevantRoots.keySet().removeIf(frame -> !frameFilter.matcher(frame.getClassName() + "." + frame.getMethodName()).find());
+            }
 
-            for (Long objId : entry.getValue()) {
-                toVisit.add(objId);
-                buf.append(name);
-                buf.append(" -> ");
-                buf.append(objId);
-                buf.append(";\n");
+            OutputStream stream = options.hasOption("output")
+                    ? new FileOutputStream(options.getOptionValue("output"))
+                    : System.out;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16)) {
+                GraphWriter out;
+                switch (format) {
+                    case "dot": out = new DotWriter(writer); break;
+                    case "graphml": out = new GraphMLWriter(writer); break;
+                    default:
+                        System.out.println("Unknown format " + format + "; expected dot or graphml.");
+                        System.exit(1);
+                        return;
+                }
+                new HeapPrinter(snapshot, out, maxDepth, maxNodes, maxFanOut).print(relevantRoots);
             }
         }
+    }
 
-        // Perform BFS
-        while (!toVisit.isEmpty()) {
-            long objId = toVisit.poll();
-            if (!seen.add(objId) || objId == 0) {
-                continue;
-            }
-            JavaThing thing = snapshot.getObj(objId);
+    private void print(LinkedHashMap<HeapFrame, List<Long>> relevantRoots) throws IOException {
+        List<String> frames = new ArrayList<>();
+        for (HeapFrame frame : relevantRoots.keySet()) {
+            frames.add(frame.getClassName() + "." + frame.getMethodName() + frame.getMethodSignature());
+        }
+        out.start(frames);
 
-            buf.append(objId);
-            buf.append(" [label = \"");
+        // Roots are at depth 0.
+        int frame = 0;
+        for (List<Long> roots : relevantRoots.values()) {
+            for (long root : roots) {
+                if (enqueue(root, 0)) {
+                    out.root(frame, root);
+                }
+            }
+            frame++;
+        }
 
+        while (queueHead < queueTail) {
+            long objId = queue[queueHead++];
+            int depth = (int) queued.get(objId) - 1;
+            HeapObject thing = snapshot.getObj(objId);
+            if (thing == null) {
+                out.node(objId, "missing@" + objId);
+                continue;
+            }
             if (thing.getClassName().equals("java.lang.String")) {
                 // don't print out fields of String
-                buf.append("string");
-                buf.append("\"];\n");
+                out.node(objId, "string");
                 continue;
             }
 
-            buf.append(thing.getClassName());
-            buf.append("@");
-            buf.append(thing.getId());
-            buf.append("\"];\n");
-
-            if (thing instanceof JavaObject) {
-                JavaObject javaObject = (JavaObject) thing;
-
-                for (JavaField field : javaObject.getFields()) {
-                    if (field.getType().equals("Object") && !"0".equals(field.getValue())) {
-                        long fieldObjId = Long.parseLong(field.getValue());
-                        toVisit.add(fieldObjId);
-                        buf.append(objId);
-                        buf.append(" -> ");
-                        buf.append(fieldObjId);
-                        buf.append(" [label = \"");
-                        buf.append(field.getName());
-                        buf.append("\"];\n");
+            boolean expand = depth < maxDepth;
+            if (thing instanceof HeapObjectArray) {
+                HeapObjectArray array = (HeapObjectArray) thing;
+                int shown = expand ? Math.min(array.getLength(), maxFanOut) : 0;
+                String label = thing.getClassName() + "@" + objId;
+                if (expand && shown < array.getLength()) {
+                    label += String.format(" (%d of %d elements)", shown, array.getLength());
+                }
+                out.node(objId, label);
+                for (int i = 0; i < shown; i++) {
+                    long elementObjId = array.getElement(i);
+                    if (enqueue(elementObjId, depth + 1)) {
+                        out.edge(objId, elementObjId, Integer.toString(i));
                     }
                 }
-            } else if (thing instanceof JavaObjectArray) {
-                JavaObjectArray javaObjectArray = (JavaObjectArray) thing;
-                long[] elements = javaObjectArray.getElements();
-
-                for (int i = 0; i < elements.length; i++) {
-                    long elementObjId = elements[i];
-                    toVisit.add(elementObjId);
-                    buf.append(objId);
-                    buf.append(" -> ");
-                    buf.append(elementObjId);
-                    buf.append(" [label = ");
-                    buf.append(i);
-                    buf.append("];\n");
+            } else {
+                out.node(objId, thing.getClassName() + "@" + objId);
+                if (expand && thing instanceof HeapInstance) {
+                    HeapInstance instance = (HeapInstance) thing;
+                    ClassLayout layout = instance.getLayout();
+                    for (int i = 0; i < layout.size(); i++) {
+                        if (!layout.isReference(i)) {
+                            continue;
+                        }
+                        long fieldObjId = instance.readSlot(layout, i);
+                        if (enqueue(fieldObjId, depth + 1)) {
+                            out.edge(objId, fieldObjId, layout.names[i]);
+                        }
+                    }
                 }
             }
         }
+        out.end();
+    }
 
-        buf.append("}");
+    // Queues an object to be printed, if it isn't already. Returns whether the object is (or will be) in the output,
+    // i.e. whether an edge to it can be printed.
+    private boolean enqueue(long objId, int depth) {
+        if (objId == 0) {
+            return false;
+        }
+        if (queued.containsKey(objId)) {
+            return true;
+        }
+        if (queueTail >= maxNodes) {
+            return false;
+        }
+        queued.put(objId, depth + 1);
+        if (queueTail == queue.length) {
+            queue = Arrays.copyOf(queue, queue.length * 2);
+        }
+        queue[queueTail++] = objId;
+        return true;
+    }
+
+    private static class DotWriter implements GraphWriter {
+        private final Writer out;
+        private List<String> frames;
+
+        DotWriter(Writer out) {
+            this.out = out;
+        }
 
-        System.out.println(buf.toString());
+        @Override
+        public void start(List<String> frames) throws IOException {
+            this.frames = frames;
+            out.write("digraph heap {\n");
+            // Stack frames, in a row.
+            for (int i = 0; i < frames.size(); i++) {
+                out.write(quote(frames.get(i)) + " [shape=box];\n");
+                if (i > 0) {
+                    out.write(quote(frames.get(i - 1)) + " -> " + quote(frames.get(i)) + ";\n");
+                }
+            }
+            out.write("{rank = same; ");
+            for (String frame : frames) {
+                out.write(quote(frame) + ";");
+            }
+            out.write("}\n");
+            out.write("rankdir = LR;\n");
+        }
+
+        @Override
+        public void root(int frame, long id) throws IOException {
+            out.write(quote(frames.get(frame)) + " -> " + id + ";\n");
+        }
+
+        @Override
+        public void node(long id, String label) throws IOException {
+            out.write(id + " [label = " + quote(label) + "];\n");
+        }
+
+        @Override
+        public void edge(long from, long to, String label) throws IOException {
+            out.write(from + " -> " + to + " [label = " + quote(label) + "];\n");
+        }
+
+        @Override
+        public void end() throws IOException {
+            out.write("}\n");
+        }
+
+        private static String quote(String s) {
+            return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
     }
-    static String frameName(StackFrame frame) {
-        return String.format("\"%s.%s%s\"", frame.getClassName(), frame.getMethodName(), frame.getMethodSignature());
+
+    private static class GraphMLWriter implements GraphWriter {
+        private final Writer out;
+
+        GraphMLWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void start(List<String> frames) throws IOException {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+            out.write("  <key id=\"label\" for=\"all\" attr.name=\"label\" attr.type=\"string\"/>\n");
+            out.write("  <key id=\"kind\" for=\"node\" attr.name=\"kind\" attr.type=\"string\"/>\n");
+            out.write("  <graph id=\"heap\" edgedefault=\"directed\">\n");
+            for (int i = 0; i < frames.size(); i++) {
+                out.write("    <node id=\"frame" + i + "\"><data key=\"kind\">frame</data><data key=\"label\">"
+                        + escape(frames.get(i)) + "</data></node>\n");
+                if (i > 0) {
+                    out.write("    <edge source=\"frame" + (i - 1) + "\" target=\"frame" + i + "\"/>\n");
+                }
+            }
+        }
+
+        @Override
+        public void root(int frame, long id) throws IOException {
+            out.write("    <edge source=\"frame" + frame + "\" target=\"" + id + "\"/>\n");
+        }
+
+        @Override
+        public void node(long id, String label) throws IOException {
+            out.write("    <node id=\"" + id + "\"><data key=\"kind\">object</data><data key=\"label\">"
+                    + escape(label) + "</data></node>\n");
+        }
+
+        @Override
+        public void edge(long from, long to, String label) throws IOException {
+            out.write("    <edge source=\"" + from + "\" target=\"" + to + "\"><data key=\"label\">"
+                    + escape(label) + "</data></edge>\n");
+        }
+
+        @Override
+        public void end() throws IOException {
+            out.write("  </graph>\n");
+            out.write("</graphml>\n");
+        }
+
+        private static String escape(String s) {
+            return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        }
     }
 
     static CommandLine parseOptions(String[] args) {
@@ -131,6 +277,31 @@ public class HeapPrinter {
         dump.setRequired(true);
         options.addOption(dump);
 
+        Option output = new Option("o", "output", true, "Path to write the graph to (default is stdout)");
+        output.setRequired(false);
+        options.addOption(output);
+
+        Option format = new Option("f", "format", true, "Output format: dot (default) or graphml");
+        format.setRequired(false);
+        options.addOption(format);
+
+        Option maxDepth = new Option(null, "max-depth", true, "Don't follow references from objects this far from a root (roots are at depth 0)");
+        maxDepth.setRequired(false);
+        options.addOption(maxDepth);
+
+        Option maxNodes = new Option(null, "max-nodes", true, "Print at most this many objects");
+        maxNodes.setRequired(false);
+        options.addOption(maxNodes);
+
+        Option maxFanOut = new Option(null, "max-fan-out", true, "Follow at most this many elements of each array");
+        maxFanOut.setRequired(false);
+        options.addOption(maxFanOut);
+
+        Option frame = new Option(null, "frame", true,
+                "Only print the roots of frames whose \"class.method\" matches this regular expression");
+        frame.setRequired(false);
+        options.addOption(frame);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         try {
@@ -0,0 +1,16 @@
+package com.mattdsouza.emi.heaps;
+
+// The object correspondence HeapDiffer builds between two dumps: a one-to-one map between object ids (non-zero).
+interface IdentityMap {
+    // Returns the object of the second dump mapped to the given object of the first, or 0 if there is none.
+    long get(long first);
+
+    // Returns the object of the first dump mapped to the given object of the second, or 0 if there is none.
+    long getKey(long second);
+
+    // Maps the objects to each other if neither is mapped yet. Returns whether it did.
+    boolean claim(long first, long second);
+
+    // Removes the pair, if the objects are mapped to each other.
+    void remove(long first, long second);
+}
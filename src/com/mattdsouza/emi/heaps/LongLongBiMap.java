@@ -0,0 +1,55 @@
+package com.mattdsouza.emi.heaps;
+
+// One-to-one mapping between non-zero longs (object ids of two heap dumps), kept as two primitive maps.
+class LongLongBiMap implements IdentityMap {
+    private final LongLongMap forward = new LongLongMap();
+    private final LongLongMap inverse = new LongLongMap();
+
+    boolean containsKey(long key) {
+        return forward.containsKey(key);
+    }
+
+    boolean containsValue(long value) {
+        return inverse.containsKey(value);
+    }
+
+    // Returns the value mapped to the key, or 0 if there is none.
+    @Override
+    public long get(long key) {
+        return forward.get(key);
+    }
+
+    // Returns the key mapped to the value, or 0 if there is none.
+    @Override
+    public long getKey(long value) {
+        return inverse.get(value);
+    }
+
+    void put(long key, long value) {
+        assert !forward.containsKey(key) && !inverse.containsKey(value);
+        forward.put(key, value);
+        inverse.put(value, key);
+    }
+
+    @Override
+    public boolean claim(long key, long value) {
+        if (forward.containsKey(key) || inverse.containsKey(value)) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    // Removes the pair, if the key is mapped to the value.
+    @Override
+    public void remove(long key, long value) {
+        if (forward.containsKey(key) && forward.get(key) == value) {
+            forward.remove(key);
+            inverse.remove(value);
+        }
+    }
+
+    int size() {
+        return forward.size();
+    }
+}
@@ -0,0 +1,102 @@
+package com.mattdsouza.emi.heaps;
+
+// Open-addressing hash map from long to long, without boxing. Keys must be non-zero (0 marks an empty slot, and is the
+// null object id in heap dumps); get returns 0 for missing keys.
+class LongLongMap {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private int mask;
+
+    LongLongMap() {
+        this(1024);
+    }
+
+    LongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(long key) {
+        return keys[find(key)] != 0;
+    }
+
+    long get(long key) {
+        return values[find(key)];
+    }
+
+    void put(long key, long value) {
+        assert key != 0;
+        int slot = find(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if (size > keys.length * LOAD_FACTOR) {
+            grow();
+        }
+    }
+
+    void remove(long key) {
+        int slot = find(key);
+        if (keys[slot] == 0) {
+            return;
+        }
+        size--;
+        // Backward-shift deletion: move later entries of the probe sequence into the gap, so lookups never need
+        // tombstones.
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != 0) {
+            int home = slot(keys[next]);
+            // Move the entry if the gap lies (cyclically) between its home slot and its current slot.
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+    }
+
+    // Returns the slot holding the key, or the empty slot where it would go.
+    private int find(long key) {
+        int slot = slot(key);
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int slot(long key) {
+        // Object ids are aligned addresses, so mix the bits before masking.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
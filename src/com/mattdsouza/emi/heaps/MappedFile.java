@@ -0,0 +1,141 @@
+package com.mattdsouza.emi.heaps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+// Read-only, memory-mapped view of a file of any size. A single mapping is limited to 2GB, so the file is mapped in
+// chunks; consecutive chunks overlap by 8 bytes, so that any primitive value can be read from a single chunk.
+// Values are big-endian, as in hprof files.
+// Closing the file unmaps it right away (see unmap); reading it afterwards throws a NullPointerException.
+class MappedFile implements Closeable {
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final int OVERLAP = 8;
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer[] chunks;
+    private final long size;
+
+    MappedFile(Path path) throws IOException {
+        file = new RandomAccessFile(path.toFile(), "r");
+        size = file.length();
+        FileChannel channel = file.getChannel();
+        int count = (int) ((size + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        chunks = new MappedByteBuffer[Math.max(count, 1)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = (long) i << CHUNK_BITS;
+            long length = Math.min(size - start, CHUNK_SIZE + OVERLAP);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(length, 0));
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    byte u1(long pos) {
+        return chunk(pos).get(offset(pos));
+    }
+
+    short u2(long pos) {
+        return chunk(pos).getShort(offset(pos));
+    }
+
+    int u4(long pos) {
+        return chunk(pos).getInt(offset(pos));
+    }
+
+    long u8(long pos) {
+        return chunk(pos).getLong(offset(pos));
+    }
+
+    // Reads an identifier of the given size (4 or 8 bytes).
+    long id(long pos, int idSize) {
+        return idSize == 4 ? u4(pos) & 0xFFFFFFFFL : u8(pos);
+    }
+
+    // Copies bytes out of the file; only used for small values like strings.
+    byte[] bytes(long pos, int length) {
+        byte[] result = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            ByteBuffer chunk = chunk(pos + copied).duplicate();
+            int offset = offset(pos + copied);
+            int n = (int) Math.min(length - copied, CHUNK_SIZE - offset);
+            chunk.position(offset);
+            chunk.get(result, copied, n);
+            copied += n;
+        }
+        return result;
+    }
+
+    // Copies a range of the file to a stream, without materializing it.
+    void copyTo(long pos, long length, OutputStream out) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(length, 64 * 1024)];
+        while (length > 0) {
+            ByteBuffer chunk = chunk(pos).duplicate();
+            int offset = offset(pos);
+            int n = (int) Math.min(Math.min(length, buffer.length), CHUNK_SIZE - offset);
+            chunk.position(offset);
+            chunk.get(buffer, 0, n);
+            out.write(buffer, 0, n);
+            pos += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (chunks == null) {
+            return;
+        }
+        MappedByteBuffer[] mapped = chunks;
+        chunks = null;
+        for (MappedByteBuffer chunk : mapped) {
+            unmap(chunk);
+        }
+        file.close();
+    }
+
+    // Unmaps a buffer now, rather than when it's garbage collected: a long-lived process with a large heap may keep
+    // gigabytes of mappings (and the disk space of deleted files) alive for a long time otherwise. Nothing may use the
+    // buffer afterwards. Best effort: if the JDK offers no way to do it, the collector still does it eventually.
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9+.
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Fall back to Java 8's cleaner.
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector.
+        }
+    }
+
+    private MappedByteBuffer chunk(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)];
+    }
+
+    private static int offset(long pos) {
+        return (int) (pos & (CHUNK_SIZE - 1));
+    }
+}
@@ -0,0 +1,349 @@
+package com.mattdsouza.emi.heaps;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+// Writes the objects reachable from a set of roots to a .snap file (see SnapshotFormat), reading them reflectively from
+// the running program. Used by HeapDumper.snapshot, so like it, this only depends on the JDK.
+// Objects get ids in the order a breadth-first walk reaches them, which is the order their records are written in, as
+// the format requires. Classes get ids from a separate range. Static fields aren't followed (HeapDiffer doesn't compare
+// them), and neither are the fields of threads, class loaders and references, which are written as zeroes: they reach
+// most of the JVM, and HeapDiffer ignores them by default. Fields which reflection can't open are written as zeroes
+// too: on Java 9+, those of JDK classes in packages not opened with --add-opens, so that e.g. every ArrayList looks
+// empty. Run scripts should open at least java.base/java.lang and java.base/java.util (as pmd_registry/run does).
+class ObjectGraphWriter {
+    private static final int ID_SIZE = 8;
+    private static final long CLASS_IDS = 1L << 62;
+
+    // hprof record tags and basic types (see RootSnapshot and HeapField).
+    private static final int INSTANCE_DUMP = 0x21;
+    private static final int OBJ_ARRAY_DUMP = 0x22;
+    private static final int PRIM_ARRAY_DUMP = 0x23;
+    private static final byte OBJECT = 2;
+    private static final byte BOOLEAN = 4;
+    private static final byte CHAR = 5;
+    private static final byte FLOAT = 6;
+    private static final byte DOUBLE = 7;
+    private static final byte BYTE = 8;
+    private static final byte SHORT = 9;
+    private static final byte INT = 10;
+    private static final byte LONG = 11;
+
+    private static class ClassInfo {
+        final long id;
+        final String name;
+        final ClassInfo superclass;
+        // Declared instance fields. Fields are null where reflection can't open them.
+        final String[] names;
+        final Field[] fields;
+        final byte[] types;
+        // Whether instances' field values are written (rather than zeroes).
+        final boolean followed;
+        // Size of an instance's field values, including inherited ones.
+        final int instanceSize;
+
+        ClassInfo(long id, String name, ClassInfo superclass, String[] names, Field[] fields, byte[] types, boolean followed) {
+            this.id = id;
+            this.name = name;
+            this.superclass = superclass;
+            this.names = names;
+            this.fields = fields;
+            this.types = types;
+            this.followed = followed;
+            int size = superclass == null ? 0 : superclass.instanceSize;
+            for (byte type : types) {
+                size += sizeOf(type);
+            }
+            this.instanceSize = size;
+        }
+    }
+
+    private final Map<Object, Long> ids = new IdentityHashMap<>();
+    private final Deque<Object> queue = new ArrayDeque<>();
+    private final Map<Class<?>, ClassInfo> classes = new LinkedHashMap<>();
+    private long nextId = 1;
+
+    private DataOutputStream output;
+    private long offset;
+
+    // Writes the snapshot. The trace is the stack of the thread taking it, starting at the dump frame; the roots belong
+    // to the frame after it (the dump site).
+    void write(File file, StackTraceElement[] trace, Object[] roots) throws IOException {
+        List<Long> rootIds = new ArrayList<>();
+        for (Object root : roots) {
+            if (root != null) {
+                // Like in a heap dump, null locals aren't roots.
+                rootIds.add(id(root));
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            output = out;
+            out.write(SnapshotFormat.MAGIC);
+            out.writeInt(ID_SIZE);
+            offset = SnapshotFormat.HEADER_SIZE;
+
+            List<long[]> index = new ArrayList<>();
+            long written = 0;
+            while (!queue.isEmpty()) {
+                Object object = queue.poll();
+                if (written++ % SnapshotFormat.BLOCK == 0) {
+                    index.add(new long[] { ids.get(object), offset });
+                }
+                writeObject(object);
+            }
+
+            long metadataOffset = offset;
+            writeMetadata(trace, rootIds);
+            long indexOffset = offset;
+            for (long[] entry : index) {
+                writeLong(entry[0]);
+                writeLong(entry[1]);
+            }
+            out.writeLong(metadataOffset);
+            out.writeLong(indexOffset);
+            out.writeLong(index.size());
+        }
+    }
+
+    private void writeObject(Object object) throws IOException {
+        long id = ids.get(object);
+        Class<?> cls = object.getClass();
+        if (cls.isArray()) {
+            int length = Array.getLength(object);
+            Class<?> component = cls.getComponentType();
+            if (component.isPrimitive()) {
+                byte type = typeOf(component);
+                writeByte(PRIM_ARRAY_DUMP);
+                writeLong(id);
+                writeInt(0);
+                writeInt(length);
+                writeByte(type);
+                writePrimitives(type, object, length);
+            } else {
+                Object[] elements = (Object[]) object;
+                writeByte(OBJ_ARRAY_DUMP);
+                writeLong(id);
+                writeInt(0);
+                writeInt(length);
+                writeLong(classInfo(cls).id);
+                for (Object element : elements) {
+                    writeLong(id(element));
+                }
+            }
+            return;
+        }
+
+        ClassInfo info = classInfo(cls);
+        writeByte(INSTANCE_DUMP);
+        writeLong(id);
+        writeInt(0);
+        writeLong(info.id);
+        writeInt(info.instanceSize);
+        // Field values of the class, then of its superclasses, as in a heap dump.
+        for (ClassInfo c = info; c != null; c = c.superclass) {
+            for (int i = 0; i < c.fields.length; i++) {
+                Object value = null;
+                if (c.followed && c.fields[i] != null) {
+                    try {
+                        value = c.fields[i].get(object);
+                    } catch (IllegalAccessException e) {
+                        // Written as zero.
+                    }
+                }
+                writeValue(c.types[i], value);
+            }
+        }
+    }
+
+    private void writeValue(byte type, Object value) throws IOException {
+        switch (type) {
+            case OBJECT: writeLong(id(value)); break;
+            case BOOLEAN: writeByte(value != null && (Boolean) value ? 1 : 0); break;
+            case CHAR: writeShort(value == null ? 0 : (Character) value); break;
+            case FLOAT: writeInt(Float.floatToRawIntBits(value == null ? 0 : (Float) value)); break;
+            case DOUBLE: writeLong(Double.doubleToRawLongBits(value == null ? 0 : (Double) value)); break;
+            case BYTE: writeByte(value == null ? 0 : (Byte) value); break;
+            case SHORT: writeShort(value == null ? 0 : (Short) value); break;
+            case INT: writeInt(value == null ? 0 : (Integer) value); break;
+            case LONG: writeLong(value == null ? 0 : (Long) value); break;
+            default: throw new IllegalArgumentException("Unknown hprof basic type " + type);
+        }
+    }
+
+    private void writePrimitives(byte type, Object array, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            switch (type) {
+                case BOOLEAN: output.writeBoolean(((boolean[]) array)[i]); break;
+                case CHAR: output.writeChar(((char[]) array)[i]); break;
+                case FLOAT: output.writeFloat(((float[]) array)[i]); break;
+                case DOUBLE: output.writeDouble(((double[]) array)[i]); break;
+                case BYTE: output.writeByte(((byte[]) array)[i]); break;
+                case SHORT: output.writeShort(((short[]) array)[i]); break;
+                case INT: output.writeInt(((int[]) array)[i]); break;
+                default: output.writeLong(((long[]) array)[i]); break;
+            }
+        }
+        offset += (long) length * sizeOf(type);
+    }
+
+    private void writeMetadata(StackTraceElement[] trace, List<Long> rootIds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream metadata = new DataOutputStream(bytes);
+
+        // Snapshot the classes: registering is done by now, since every object has been written.
+        List<ClassInfo> infos = new ArrayList<>(classes.values());
+        metadata.writeInt(infos.size());
+        for (ClassInfo info : infos) {
+            metadata.writeLong(info.id);
+            metadata.writeUTF(info.name);
+            metadata.writeLong(info.superclass == null ? 0 : info.superclass.id);
+            metadata.writeShort(info.names.length);
+            for (int i = 0; i < info.names.length; i++) {
+                metadata.writeUTF(info.names[i]);
+                metadata.writeByte(info.types[i]);
+            }
+        }
+
+        metadata.writeInt(trace.length);
+        for (int i = 0; i < trace.length; i++) {
+            StackTraceElement frame = trace[i];
+            metadata.writeUTF(frame.getClassName());
+            metadata.writeUTF(frame.getMethodName());
+            // Stack trace elements don't have signatures.
+            metadata.writeUTF("");
+            metadata.writeBoolean(frame.getFileName() != null);
+            if (frame.getFileName() != null) {
+                metadata.writeUTF(frame.getFileName());
+            }
+            metadata.writeInt(frame.getLineNumber());
+            metadata.writeBoolean(i == 1);
+            if (i == 1) {
+                metadata.writeInt(rootIds.size());
+                for (long root : rootIds) {
+                    metadata.writeLong(root);
+                }
+            }
+        }
+
+        metadata.flush();
+        bytes.writeTo(output);
+        offset += bytes.size();
+    }
+
+    // Returns the id of an object, scheduling it to be written if it hasn't been reached yet.
+    private long id(Object object) {
+        if (object == null) {
+            return 0;
+        }
+        if (object instanceof Class) {
+            return classInfo((Class<?>) object).id;
+        }
+        Long id = ids.get(object);
+        if (id == null) {
+            id = nextId++;
+            ids.put(object, id);
+            queue.add(object);
+        }
+        return id;
+    }
+
+    private ClassInfo classInfo(Class<?> cls) {
+        ClassInfo info = classes.get(cls);
+        if (info != null) {
+            return info;
+        }
+        ClassInfo superclass = cls.getSuperclass() == null ? null : classInfo(cls.getSuperclass());
+
+        List<Field> fields = new ArrayList<>();
+        if (!cls.isArray()) {
+            for (Field field : cls.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    fields.add(field);
+                }
+            }
+        }
+        Field[] fieldArray = fields.toArray(new Field[0]);
+        String[] names = new String[fieldArray.length];
+        byte[] types = new byte[fieldArray.length];
+        for (int i = 0; i < fieldArray.length; i++) {
+            names[i] = fieldArray[i].getName();
+            types[i] = fieldArray[i].getType().isPrimitive() ? typeOf(fieldArray[i].getType()) : OBJECT;
+            try {
+                fieldArray[i].setAccessible(true);
+            } catch (RuntimeException e) {
+                // Java 9+ refuses to open fields of packages which aren't opened to us (see the class comment). They are
+                // written as zeroes, but keep their names and types, so the layout matches other dumps.
+                fieldArray[i] = null;
+            }
+        }
+
+        info = new ClassInfo(CLASS_IDS + classes.size(), className(cls), superclass, names, fieldArray, types, followed(cls));
+        classes.put(cls, info);
+        return info;
+    }
+
+    private static boolean followed(Class<?> cls) {
+        return !Thread.class.isAssignableFrom(cls)
+                && !ClassLoader.class.isAssignableFrom(cls)
+                && !java.lang.ref.Reference.class.isAssignableFrom(cls);
+    }
+
+    // Class names as a heap dump reader spells them: "java.lang.String", "int[]", "java.lang.Object[][]".
+    private static String className(Class<?> cls) {
+        StringBuilder suffix = new StringBuilder();
+        while (cls.isArray()) {
+            suffix.append("[]");
+            cls = cls.getComponentType();
+        }
+        return cls.getName() + suffix;
+    }
+
+    private static byte typeOf(Class<?> primitive) {
+        if (primitive == boolean.class) return BOOLEAN;
+        if (primitive == char.class) return CHAR;
+        if (primitive == float.class) return FLOAT;
+        if (primitive == double.class) return DOUBLE;
+        if (primitive == byte.class) return BYTE;
+        if (primitive == short.class) return SHORT;
+        if (primitive == int.class) return INT;
+        if (primitive == long.class) return LONG;
+        throw new IllegalArgumentException("Not a primitive type: " + primitive);
+    }
+
+    private static int sizeOf(byte type) {
+        switch (type) {
+            case OBJECT: return ID_SIZE;
+            case BOOLEAN:
+            case BYTE: return 1;
+            case CHAR:
+            case SHORT: return 2;
+            case FLOAT:
+            case INT: return 4;
+            default: return 8;
+        }
+    }
+
+    private void writeByte(int value) throws IOException {
+        output.writeByte(value);
+        offset += 1;
+    }
+
+    private void writeShort(int value) throws IOException {
+        output.writeShort(value);
+        offset += 2;
+    }
+
+    private void writeInt(int value) throws IOException {
+        output.writeInt(value);
+        offset += 4;
+    }
+
+    private void writeLong(long value) throws IOException {
+        output.writeLong(value);
+        offset += 8;
+    }
+}
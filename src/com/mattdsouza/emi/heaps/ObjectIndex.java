@@ -0,0 +1,138 @@
+package com.mattdsouza.emi.heaps;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Off-heap map from object id to the file offset of the object's record, for dumps with too many objects to index on
+// the Java heap. It is an open-addressing table (like LongLongMap) stored in a memory-mapped temporary file, so it
+// costs neither -Xmx nor direct memory and the OS can page it out. Ids must be non-zero.
+// Closing the index unmaps the table, which frees its (already deleted) file.
+class ObjectIndex implements ObjectOffsets {
+    private static final int CHUNK_BITS = 27;  // longs per chunk (1GB)
+    private static final long CHUNK_LONGS = 1L << CHUNK_BITS;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private LongBuffer[] chunks;
+    // The mappings the chunks view, to unmap them.
+    private MappedByteBuffer[] mapped;
+    private long capacity;
+    private long mask;
+    private long size;
+
+    ObjectIndex(long expectedSize) throws IOException {
+        long initialCapacity = 1 << 16;
+        while (initialCapacity * LOAD_FACTOR < expectedSize) {
+            initialCapacity <<= 1;
+        }
+        allocate(initialCapacity);
+    }
+
+    long size() {
+        return size;
+    }
+
+    // Returns the offset of the object, or -1 if it is not in the index.
+    @Override
+    public long get(long id) {
+        long slot = find(id);
+        return key(slot) == 0 ? -1 : value(slot);
+    }
+
+    void put(long id, long offset) throws IOException {
+        long slot = find(id);
+        if (key(slot) == 0) {
+            set(slot, id, offset);
+            if (++size > capacity * LOAD_FACTOR) {
+                grow();
+            }
+        } else {
+            set(slot, id, offset);
+        }
+    }
+
+    private long find(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        long slot = (h ^ (h >>> 32)) & mask;
+        long key;
+        while ((key = key(slot)) != 0 && key != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private long key(long slot) {
+        long i = slot << 1;
+        return chunks[(int) (i >>> CHUNK_BITS)].get((int) (i & (CHUNK_LONGS - 1)));
+    }
+
+    private long value(long slot) {
+        long i = (slot << 1) + 1;
+        return chunks[(int) (i >>> CHUNK_BITS)].get((int) (i & (CHUNK_LONGS - 1)));
+    }
+
+    // Chunks hold an even number of longs, so a key and its value are always in the same chunk.
+    private void set(long slot, long id, long offset) {
+        long i = slot << 1;
+        LongBuffer chunk = chunks[(int) (i >>> CHUNK_BITS)];
+        int index = (int) (i & (CHUNK_LONGS - 1));
+        chunk.put(index, id);
+        chunk.put(index + 1, offset);
+    }
+
+    @Override
+    public void close() {
+        if (mapped == null) {
+            return;
+        }
+        for (MappedByteBuffer buffer : mapped) {
+            MappedFile.unmap(buffer);
+        }
+        chunks = null;
+        mapped = null;
+    }
+
+    private void grow() throws IOException {
+        LongBuffer[] oldChunks = chunks;
+        MappedByteBuffer[] oldMapped = mapped;
+        allocate(capacity << 1);
+        for (LongBuffer chunk : oldChunks) {
+            for (int i = 0; i < chunk.limit(); i += 2) {
+                long id = chunk.get(i);
+                if (id != 0) {
+                    set(find(id), id, chunk.get(i + 1));
+                }
+            }
+        }
+        for (MappedByteBuffer buffer : oldMapped) {
+            MappedFile.unmap(buffer);
+        }
+    }
+
+    private void allocate(long capacity) throws IOException {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        long longs = capacity << 1;
+        chunks = new LongBuffer[(int) ((longs + CHUNK_LONGS - 1) >>> CHUNK_BITS)];
+        mapped = new MappedByteBuffer[chunks.length];
+
+        // The mapping stays valid after the file is deleted, so nothing is left behind if we crash.
+        Path path = Files.createTempFile("hprof-index", ".bin");
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(longs * Long.BYTES);
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i << CHUNK_BITS;
+                long length = Math.min(longs - start, CHUNK_LONGS);
+                mapped[i] = file.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, start * Long.BYTES, length * Long.BYTES);
+                chunks[i] = mapped[i].asLongBuffer();
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
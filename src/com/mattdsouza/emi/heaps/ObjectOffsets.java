@@ -0,0 +1,9 @@
+package com.mattdsouza.emi.heaps;
+
+import java.io.Closeable;
+
+// Where the records of a heap snapshot's objects are in its file. Closed with the snapshot.
+interface ObjectOffsets extends Closeable {
+    // Returns the offset of the object's record, or -1 if the snapshot doesn't contain it.
+    long get(long id);
+}
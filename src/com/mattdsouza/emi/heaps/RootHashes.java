@@ -0,0 +1,129 @@
+package com.mattdsouza.emi.heaps;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The structural hashes of a dump's frame roots (see HeapHasher), in diff order: frame by frame (the frames after the
+// dump call), and root by root within each frame. Two dumps whose hashes all match have no differences HeapDiffer
+// would report.
+// Saved as text: a hash of the frames' methods, then one line per frame with "-" for a frame without roots, or its
+// root hashes (32 hex digits each, or "!" for a root which reaches an object missing from the dump, which never matches).
+public class RootHashes {
+    // Hash of the frames' method names and signatures.
+    private final long trace;
+    // Number of roots of each frame, or -1 if the frame has none in the dump.
+    private final int[] frameRoots;
+    // Two longs per root.
+    private final long[] hashes;
+    private final boolean[] incomplete;
+
+    // Only for hashes computed from a dump (not read from a file): the ids of the objects in the order the hash
+    // walk discovered them, and the end of each root's objects in that order. These pair up the objects of roots with
+    // matching hashes, for HeapDiffer to skip them.
+    final long[] discovered;
+    final int[] discoveredEnd;
+
+    RootHashes(long trace, int[] frameRoots, long[] hashes, boolean[] incomplete, long[] discovered, int[] discoveredEnd) {
+        this.trace = trace;
+        this.frameRoots = frameRoots;
+        this.hashes = hashes;
+        this.incomplete = incomplete;
+        this.discovered = discovered;
+        this.discoveredEnd = discoveredEnd;
+    }
+
+    public static RootHashes read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            throw new IOException(String.format("%s: empty root hashes file", file));
+        }
+        long trace = Long.parseUnsignedLong(lines.get(0).trim(), 16);
+        lines = lines.subList(1, lines.size());
+        int[] frameRoots = new int[lines.size()];
+        List<String> roots = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.equals("-")) {
+                frameRoots[i] = -1;
+                continue;
+            }
+            String[] parts = line.isEmpty() ? new String[0] : line.split(" ");
+            frameRoots[i] = parts.length;
+            for (String part : parts) {
+                roots.add(part);
+            }
+        }
+        long[] hashes = new long[roots.size() * 2];
+        boolean[] incomplete = new boolean[roots.size()];
+        for (int i = 0; i < roots.size(); i++) {
+            String root = roots.get(i);
+            if (root.equals("!")) {
+                incomplete[i] = true;
+            } else if (root.length() == 32) {
+                hashes[2 * i] = Long.parseUnsignedLong(root.substring(0, 16), 16);
+                hashes[2 * i + 1] = Long.parseUnsignedLong(root.substring(16), 16);
+            } else {
+                throw new IOException(String.format("%s: malformed root hash %s", file, root));
+            }
+        }
+        return new RootHashes(trace, frameRoots, hashes, incomplete, null, null);
+    }
+
+    public void write(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(String.format("%016x", trace));
+            writer.newLine();
+            int root = 0;
+            for (int count : frameRoots) {
+                if (count < 0) {
+                    writer.write("-");
+                }
+                for (int i = 0; i < count; i++, root++) {
+                    if (i > 0) {
+                        writer.write(" ");
+                    }
+                    writer.write(incomplete[root]
+                            ? "!" : String.format("%016x%016x", hashes[2 * root], hashes[2 * root + 1]));
+                }
+                writer.newLine();
+            }
+        }
+    }
+
+    public int size() {
+        return incomplete.length;
+    }
+
+    // Whether the dumps are the same to HeapDiffer: same frames, roots, and root hashes.
+    public boolean matches(RootHashes other) {
+        return trace == other.trace && Arrays.equals(frameRoots, other.frameRoots) && commonPrefix(other) == size();
+    }
+
+    // Returns the number of leading roots (in diff order) whose hashes match the other dump's. Counting stops at the
+    // first frame whose number of roots differs.
+    public int commonPrefix(RootHashes other) {
+        if (trace != other.trace) {
+            return 0;
+        }
+        int root = 0;
+        for (int frame = 0; frame < Math.min(frameRoots.length, other.frameRoots.length); frame++) {
+            if (frameRoots[frame] != other.frameRoots[frame]) {
+                return root;
+            }
+            for (int i = 0; i < frameRoots[frame]; i++, root++) {
+                if (incomplete[root] || other.incomplete[root]
+                        || hashes[2 * root] != other.hashes[2 * root]
+                        || hashes[2 * root + 1] != other.hashes[2 * root + 1]) {
+                    return root;
+                }
+            }
+        }
+        return root;
+    }
+}
@@ -1,68 +1,534 @@
 package com.mattdsouza.emi.heaps;
 
 
-import edu.tufts.eaftan.hprofparser.parser.HprofParser;
-import heapdl.hprof.*;
-
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 
-public class RootSnapshot {
+// A heap dump, read lazily from a memory-mapped hprof file. Opening a dump makes one pass over it to index the objects
+// (in an off-heap ObjectIndex), the classes, and the stack traces and their frame roots; objects are only decoded when
+// getObj is called. This keeps the Java heap small even for multi-GB dumps.
+// A snapshot can also be saved in the compact .snap format (see SnapshotFormat and SnapshotWriter), which opens without
+// an indexing pass; fromFile accepts either format.
+// A snapshot holds its file's mappings (and, for hprof files, its index's) until it's closed. Objects read from it
+// can't be used after that.
+public class RootSnapshot implements Closeable {
     private static final String DUMP_CLASS = "com.mattdsouza.emi.heaps.HeapDumper";
     private static final String DUMP_METHOD = "dump";
+    private static final String SNAPSHOT_METHOD = "snapshot";
+
+    // hprof record tags.
+    private static final int UTF8 = 0x01;
+    private static final int LOAD_CLASS = 0x02;
+    private static final int STACK_FRAME = 0x04;
+    private static final int STACK_TRACE = 0x05;
+    private static final int HEAP_DUMP = 0x0C;
+    private static final int HEAP_DUMP_SEGMENT = 0x1C;
+
+    // Heap dump sub-record tags.
+    private static final int ROOT_UNKNOWN = 0xFF;
+    private static final int ROOT_JNI_GLOBAL = 0x01;
+    private static final int ROOT_JNI_LOCAL = 0x02;
+    private static final int ROOT_JAVA_FRAME = 0x03;
+    private static final int ROOT_NATIVE_STACK = 0x04;
+    private static final int ROOT_STICKY_CLASS = 0x05;
+    private static final int ROOT_THREAD_BLOCK = 0x06;
+    private static final int ROOT_MONITOR_USED = 0x07;
+    private static final int ROOT_THREAD_OBJECT = 0x08;
+    private static final int CLASS_DUMP = 0x20;
+    private static final int INSTANCE_DUMP = 0x21;
+    private static final int OBJ_ARRAY_DUMP = 0x22;
+    private static final int PRIM_ARRAY_DUMP = 0x23;
 
-    public Map<StackFrame, List<Long>> roots;
-    public Snapshot snapshot;
-    public List<StackTrace> stackTraces;
-    RootSnapshot(Map<StackFrame, List<Long>> roots, Snapshot snapshot, List<StackTrace> stackTraces) {
-        this.roots = roots;
-        this.stackTraces = stackTraces;
-        this.snapshot = snapshot;
+    public Map<HeapFrame, List<Long>> roots;
+    public List<HeapFrame[]> stackTraces;
+
+    private final MappedFile file;
+    private final int idSize;
+    private final ObjectOffsets objects;
+    private final Map<Long, HeapClass> classes;
+
+    private RootSnapshot(MappedFile file, int idSize, ObjectOffsets objects) {
+        this.file = file;
+        this.idSize = idSize;
+        this.objects = objects;
+        this.classes = new HashMap<>();
+        this.roots = new HashMap<>();
+        this.stackTraces = new ArrayList<>();
     }
 
-    public JavaThing getObj(long id) {
-        return snapshot.getObj(id);
+    // Returns the object with the given id, or null if the dump doesn't contain it.
+    public HeapObject getObj(long id) {
+        HeapClass cls = classes.get(id);
+        if (cls != null) {
+            return new HeapObject(this, id, "java.lang.Class");
+        }
+        long pos = objects.get(id);
+        if (pos < 0) {
+            return null;
+        }
+        int tag = file.u1(pos) & 0xFF;
+        long p = pos + 1 + idSize + 4;  // Skip the tag, id and stack trace serial number.
+        switch (tag) {
+            case INSTANCE_DUMP: {
+                long classId = readId(p);
+                cls = classes.get(classId);
+                if (cls == null) {
+                    throw new IllegalStateException(String.format("Class %d of object %d not found in the dump.", classId, id));
+                }
+                return new HeapInstance(this, id, cls, p + idSize + 4);
+            }
+            case OBJ_ARRAY_DUMP: {
+                int length = file.u4(p);
+                long arrayClassId = readId(p + 4);
+                HeapClass arrayClass = classes.get(arrayClassId);
+                String className = arrayClass != null ? arrayClass.name : "java.lang.Object[]";
+                return new HeapObjectArray(this, id, arrayClass != null ? arrayClassId : 0, className, length, p + 4 + idSize);
+            }
+            case PRIM_ARRAY_DUMP: {
+                int length = file.u4(p);
+                byte type = file.u1(p + 4);
+                return new HeapPrimitiveArray(this, id, type, length, p + 5);
+            }
+            default:
+                throw new IllegalStateException(String.format("Unexpected record 0x%x for object %d.", tag, id));
+        }
     }
 
     public static RootSnapshot fromFile(String hprofFile) throws IOException {
-        Map<StackFrame, List<Long>> roots = new HashMap<>();
-        Snapshot snapshot = new Snapshot();
-        RootSnapshotHandler rootHandler = new RootSnapshotHandler(roots, snapshot, new StackTraces(), false);
-        HprofParser parser = new HprofParser(rootHandler);
-        parser.parse(new File(hprofFile));
-        return new RootSnapshot(roots, snapshot, rootHandler.getAllStackTraces());
+        MappedFile file = new MappedFile(Paths.get(hprofFile));
+        if (file.size() >= SnapshotFormat.HEADER_SIZE
+                && Arrays.equals(file.bytes(0, SnapshotFormat.MAGIC.length), SnapshotFormat.MAGIC)) {
+            return fromSnapshotFile(hprofFile, file);
+        }
+
+        // Header: "JAVA PROFILE 1.0.x\0", identifier size, timestamp.
+        long pos = 0;
+        while (file.u1(pos) != 0) {
+            pos++;
+        }
+        int idSize = file.u4(pos + 1);
+        pos += 1 + 4 + 8;
+
+        // Objects take at least ~20 bytes in a dump; start the index at a size which rarely needs to grow.
+        RootSnapshot snapshot = null;
+        try {
+            ObjectIndex objects = new ObjectIndex(file.size() / 48);
+            snapshot = new RootSnapshot(file, idSize, objects);
+            snapshot.index(pos, objects);
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            if (snapshot != null) {
+                snapshot.close();
+            } else {
+                file.close();
+            }
+            throw e;
+        }
+    }
+
+    // Releases the mappings of the file and of the object index.
+    @Override
+    public void close() throws IOException {
+        objects.close();
+        file.close();
     }
 
-    public List<StackFrame> getMainStackFrames() {
-        StackTrace trace = findMainStackTrace();
-        List<StackFrame> result = new ArrayList<>();
+    // Opens a .snap file. Only the metadata is read; objects are found through the file's sorted index.
+    private static RootSnapshot fromSnapshotFile(String snapFile, MappedFile file) throws IOException {
+        int idSize = file.u4(SnapshotFormat.MAGIC.length);
+        long trailer = file.size() - SnapshotFormat.TRAILER_SIZE;
+        long metadataOffset = file.u8(trailer);
+        long indexOffset = file.u8(trailer + 8);
+        long count = file.u8(trailer + 16);
+        RootSnapshot snapshot = new RootSnapshot(file, idSize,
+                new SortedObjectIndex(file, idSize, metadataOffset, indexOffset, count));
+
+        try (FileInputStream stream = new FileInputStream(snapFile)) {
+            stream.getChannel().position(metadataOffset);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(stream));
+            int classCount = input.readInt();
+            for (int i = 0; i < classCount; i++) {
+                long id = input.readLong();
+                String name = input.readUTF();
+                long superId = input.readLong();
+                int fieldCount = input.readUnsignedShort();
+                String[] fieldNames = new String[fieldCount];
+                byte[] fieldTypes = new byte[fieldCount];
+                for (int j = 0; j < fieldCount; j++) {
+                    fieldNames[j] = input.readUTF();
+                    fieldTypes[j] = input.readByte();
+                }
+                snapshot.classes.put(id, new HeapClass(id, name, superId, fieldNames, fieldTypes));
+            }
+
+            int frameCount = input.readInt();
+            HeapFrame[] trace = new HeapFrame[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                String className = input.readUTF();
+                String methodName = input.readUTF();
+                String signature = input.readUTF();
+                String sourceFile = input.readBoolean() ? input.readUTF() : null;
+                trace[i] = new HeapFrame(className, methodName, signature, sourceFile, input.readInt());
+                if (input.readBoolean()) {
+                    int rootCount = input.readInt();
+                    List<Long> frameRoots = new ArrayList<>(rootCount);
+                    for (int j = 0; j < rootCount; j++) {
+                        frameRoots.add(input.readLong());
+                    }
+                    snapshot.roots.put(trace[i], frameRoots);
+                }
+            }
+            snapshot.stackTraces.add(trace);
+        }
+        return snapshot;
+    }
+
+    // The single indexing pass. Strings, classes and stack frames are decoded afterwards, since records may refer to
+    // ones which appear later in the file.
+    private void index(long pos, ObjectIndex objects) throws IOException {
+        LongLongMap strings = new LongLongMap();
+        LongLongMap classNameIds = new LongLongMap();
+        Map<Integer, Long> classSerialNameIds = new HashMap<>();
+        Map<Long, Long> framePositions = new HashMap<>();
+        Map<Integer, long[]> threadTraces = new HashMap<>();
+        List<long[]> traces = new ArrayList<>();
+        List<Long> classDumps = new ArrayList<>();
+        // (object id, thread serial number, frame number) of each Java frame root, in dump order.
+        List<long[]> frameRoots = new ArrayList<>();
+
+        long size = file.size();
+        while (pos < size) {
+            int tag = file.u1(pos) & 0xFF;
+            long length = file.u4(pos + 5) & 0xFFFFFFFFL;
+            long body = pos + 9;
+            switch (tag) {
+                case UTF8:
+                    strings.put(readId(body), pos);
+                    break;
+                case LOAD_CLASS:
+                    classSerialNameIds.put(file.u4(body), readId(body + 8 + idSize));
+                    classNameIds.put(readId(body + 4), readId(body + 8 + idSize));
+                    break;
+                case STACK_FRAME:
+                    framePositions.put(readId(body), body);
+                    break;
+                case STACK_TRACE: {
+                    int threadSerial = file.u4(body + 4);
+                    int numFrames = file.u4(body + 8);
+                    long[] frameIds = new long[numFrames];
+                    for (int i = 0; i < numFrames; i++) {
+                        frameIds[i] = readId(body + 12 + (long) i * idSize);
+                    }
+                    traces.add(frameIds);
+                    threadTraces.put(threadSerial, frameIds);
+                    break;
+                }
+                case HEAP_DUMP:
+                case HEAP_DUMP_SEGMENT:
+                    indexHeapDump(body, body + length, objects, classDumps, frameRoots);
+                    break;
+                default:
+                    break;
+            }
+            pos = body + length;
+        }
+
+        for (long classDump : classDumps) {
+            HeapClass cls = readClassDump(classDump, strings, classNameIds);
+            classes.put(cls.id, cls);
+        }
+
+        Map<Long, HeapFrame> frames = new HashMap<>();
+        for (Map.Entry<Long, Long> entry : framePositions.entrySet()) {
+            long p = entry.getValue();
+            Long classNameId = classSerialNameIds.get(file.u4(p + 4L * idSize));
+            frames.put(entry.getKey(), new HeapFrame(
+                    classNameId == null ? "<unknown>" : className(readString(strings, classNameId)),
+                    readString(strings, readId(p + idSize)),
+                    readString(strings, readId(p + 2L * idSize)),
+                    readString(strings, readId(p + 3L * idSize)),
+                    file.u4(p + 4L * idSize + 4)));
+        }
+        Map<long[], HeapFrame[]> resolvedTraces = new IdentityHashMap<>();
+        for (long[] frameIds : traces) {
+            HeapFrame[] trace = new HeapFrame[frameIds.length];
+            for (int i = 0; i < frameIds.length; i++) {
+                trace[i] = frames.get(frameIds[i]);
+            }
+            resolvedTraces.put(frameIds, trace);
+            stackTraces.add(trace);
+        }
+
+        // Maintain the thread to trace mapping so we can find the frame of each Java frame root.
+        for (long[] root : frameRoots) {
+            long[] frameIds = threadTraces.get((int) root[1]);
+            int frameNum = (int) root[2];
+            if (frameIds == null || frameNum < 0 || frameNum >= frameIds.length) {
+                continue;
+            }
+            HeapFrame frame = resolvedTraces.get(frameIds)[frameNum];
+            roots.computeIfAbsent(frame, k -> new ArrayList<>()).add(root[0]);
+        }
+    }
+
+    private void indexHeapDump(long pos, long end, ObjectIndex objects, List<Long> classDumps, List<long[]> frameRoots) throws IOException {
+        while (pos < end) {
+            int tag = file.u1(pos) & 0xFF;
+            long p = pos + 1;
+            switch (tag) {
+                case ROOT_UNKNOWN:
+                case ROOT_STICKY_CLASS:
+                case ROOT_MONITOR_USED:
+                    p += idSize;
+                    break;
+                case ROOT_JNI_GLOBAL:
+                    p += 2 * idSize;
+                    break;
+                case ROOT_JNI_LOCAL:
+                case ROOT_THREAD_OBJECT:
+                    p += idSize + 8;
+                    break;
+                case ROOT_JAVA_FRAME:
+                    frameRoots.add(new long[]{ readId(p), file.u4(p + idSize), file.u4(p + idSize + 4) });
+                    p += idSize + 8;
+                    break;
+                case ROOT_NATIVE_STACK:
+                case ROOT_THREAD_BLOCK:
+                    p += idSize + 4;
+                    break;
+                case CLASS_DUMP:
+                    classDumps.add(p);
+                    p = skipClassDump(p);
+                    break;
+                case INSTANCE_DUMP:
+                    objects.put(readId(p), pos);
+                    p += 2 * idSize + 4;
+                    p += 4 + (file.u4(p) & 0xFFFFFFFFL);
+                    break;
+                case OBJ_ARRAY_DUMP: {
+                    objects.put(readId(p), pos);
+                    long length = file.u4(p + idSize + 4) & 0xFFFFFFFFL;
+                    p += 2 * idSize + 8 + length * idSize;
+                    break;
+                }
+                case PRIM_ARRAY_DUMP: {
+                    objects.put(readId(p), pos);
+                    long length = file.u4(p + idSize + 4) & 0xFFFFFFFFL;
+                    byte type = file.u1(p + idSize + 8);
+                    p += idSize + 9 + length * sizeOf(type);
+                    break;
+                }
+                default:
+                    throw new IOException(String.format("Unknown heap dump sub-record 0x%x at offset %d.", tag, pos));
+            }
+            pos = p;
+        }
+    }
+
+    // Returns the position after the CLASS_DUMP sub-record whose body starts at p.
+    private long skipClassDump(long p) {
+        long fieldsPos = instanceFieldsPos(p);
+        int fields = file.u2(fieldsPos) & 0xFFFF;
+        return fieldsPos + 2 + (long) fields * (idSize + 1);
+    }
+
+    // Returns the position of the instance field table of the CLASS_DUMP sub-record whose body starts at p.
+    private long instanceFieldsPos(long p) {
+        p += 7L * idSize + 8;  // class, stack trace serial, super, loader, signers, domain, 2 reserved, instance size
+        int constants = file.u2(p) & 0xFFFF;
+        p += 2;
+        for (int i = 0; i < constants; i++) {
+            p += 3 + sizeOf(file.u1(p + 2));
+        }
+        int statics = file.u2(p) & 0xFFFF;
+        p += 2;
+        for (int i = 0; i < statics; i++) {
+            p += idSize + 1 + sizeOf(file.u1(p + idSize));
+        }
+        return p;
+    }
+
+    private HeapClass readClassDump(long p, LongLongMap strings, LongLongMap classNameIds) {
+        long id = readId(p);
+        long superId = readId(p + 4 + idSize);
+        long f = instanceFieldsPos(p);
+        int count = file.u2(f) & 0xFFFF;
+        f += 2;
+        String[] names = new String[count];
+        byte[] types = new byte[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = readString(strings, readId(f));
+            types[i] = file.u1(f + idSize);
+            f += idSize + 1;
+        }
+        String name = classNameIds.containsKey(id) ? className(readString(strings, classNameIds.get(id))) : "<unknown>";
+        return new HeapClass(id, name, superId, names, types);
+    }
+
+    private String readString(LongLongMap strings, long id) {
+        if (!strings.containsKey(id)) {
+            return null;
+        }
+        long pos = strings.get(id);
+        int length = (int) ((file.u4(pos + 5) & 0xFFFFFFFFL) - idSize);
+        return new String(file.bytes(pos + 9 + idSize, length), StandardCharsets.UTF_8);
+    }
+
+    // Converts internal class names (java/lang/String, [Ljava/lang/String;, [I) to the source form.
+    private static String className(String name) {
+        int dimensions = 0;
+        while (dimensions < name.length() && name.charAt(dimensions) == '[') {
+            dimensions++;
+        }
+        String element = name.substring(dimensions);
+        if (dimensions > 0) {
+            switch (element.charAt(0)) {
+                case 'Z': element = "boolean"; break;
+                case 'C': element = "char"; break;
+                case 'F': element = "float"; break;
+                case 'D': element = "double"; break;
+                case 'B': element = "byte"; break;
+                case 'S': element = "short"; break;
+                case 'I': element = "int"; break;
+                case 'J': element = "long"; break;
+                default: element = element.substring(1, element.length() - 1);
+            }
+        }
+        StringBuilder sb = new StringBuilder(element.replace('/', '.'));
+        for (int i = 0; i < dimensions; i++) {
+            sb.append("[]");
+        }
+        return sb.toString();
+    }
+
+    HeapClass getClass(long id) {
+        return id == 0 ? null : classes.get(id);
+    }
+
+    ClassLayout getLayout(HeapClass cls) {
+        // Threads of a parallel HeapDiffer may race to resolve a layout; that's harmless, since layouts are immutable.
+        ClassLayout layout = cls.layout;
+        if (layout == null) {
+            layout = ClassLayout.of(this, cls);
+            cls.layout = layout;
+        }
+        return layout;
+    }
+
+    Collection<HeapClass> getClasses() {
+        return classes.values();
+    }
+
+    MappedFile getFile() {
+        return file;
+    }
+
+    // Returns the offset of the object's record in the file, or -1 if there is none (e.g., for class objects).
+    long getOffset(long id) {
+        return objects.get(id);
+    }
+
+    // Returns the size of the object record (heap dump sub-record) at the given offset.
+    long recordSize(long pos) {
+        return recordSize(file, pos, idSize);
+    }
+
+    static long recordSize(MappedFile file, long pos, int idSize) {
+        int tag = file.u1(pos) & 0xFF;
+        long p = pos + 1 + idSize + 4;
+        switch (tag) {
+            case INSTANCE_DUMP:
+                return p + idSize + 4 + (file.u4(p + idSize) & 0xFFFFFFFFL) - pos;
+            case OBJ_ARRAY_DUMP:
+                return p + 4 + idSize + (file.u4(p) & 0xFFFFFFFFL) * idSize - pos;
+            case PRIM_ARRAY_DUMP:
+                return p + 5 + (file.u4(p) & 0xFFFFFFFFL) * sizeOf(file.u1(p + 4), idSize) - pos;
+            default:
+                throw new IllegalStateException(String.format("Unexpected record 0x%x at offset %d.", tag, pos));
+        }
+    }
+
+    int idSize() {
+        return idSize;
+    }
+
+    long readId(long pos) {
+        return file.id(pos, idSize);
+    }
+
+    // Reads a value of the given basic type, widened to a long (see HeapField).
+    long readValue(long pos, byte type) {
+        switch (type) {
+            case HeapField.OBJECT: return readId(pos);
+            case HeapField.BOOLEAN:
+            case HeapField.BYTE: return file.u1(pos);
+            case HeapField.CHAR: return file.u2(pos) & 0xFFFF;
+            case HeapField.SHORT: return file.u2(pos);
+            case HeapField.FLOAT:
+            case HeapField.INT: return file.u4(pos);
+            case HeapField.DOUBLE:
+            case HeapField.LONG: return file.u8(pos);
+            default: throw new IllegalArgumentException("Unknown hprof basic type " + type);
+        }
+    }
+
+    int sizeOf(byte type) {
+        return sizeOf(type, idSize);
+    }
+
+    static int sizeOf(byte type, int idSize) {
+        switch (type) {
+            case HeapField.OBJECT: return idSize;
+            case HeapField.BOOLEAN:
+            case HeapField.BYTE: return 1;
+            case HeapField.CHAR:
+            case HeapField.SHORT: return 2;
+            case HeapField.FLOAT:
+            case HeapField.INT: return 4;
+            case HeapField.DOUBLE:
+            case HeapField.LONG: return 8;
+            default: throw new IllegalArgumentException("Unknown hprof basic type " + type);
+        }
+    }
+
+    public List<HeapFrame> getMainStackFrames() {
+        HeapFrame[] trace = findMainStackTrace();
+        List<HeapFrame> result = new ArrayList<>();
         boolean foundDumpMethod = false;
-        for (StackFrame frame : trace.getFrames()) {
+        for (HeapFrame frame : trace) {
             // Include all frames after the dump call.
             if (foundDumpMethod) {
                 result.add(frame);
-            } else if (frame.getClassName().equals(DUMP_CLASS) && frame.getMethodName().equals(DUMP_METHOD)) {
+            } else if (isDumpFrame(frame)) {
                 foundDumpMethod = true;
             }
         }
         return result;
     }
 
-    private StackTrace findMainStackTrace() {
-        for (StackTrace trace : stackTraces) {
-            if (Arrays.stream(trace.getFrames()).anyMatch(
-                    (frame) -> frame.getClassName().equals(DUMP_CLASS) && frame.getMethodName().equals(DUMP_METHOD)
-            )) {
+    HeapFrame[] findMainStackTrace() {
+        for (HeapFrame[] trace : stackTraces) {
+            if (Arrays.stream(trace).anyMatch(RootSnapshot::isDumpFrame)) {
                 return trace;
             }
         }
         throw new RuntimeException("Could not find a main stack trace in the heap snapshot.");
     }
 
-    public LinkedHashMap<StackFrame, List<Long>> filterRoots(List<StackFrame> frames) {
-        LinkedHashMap<StackFrame, List<Long>> result = new LinkedHashMap<>();
-        for (StackFrame frame : frames) {
+    private static boolean isDumpFrame(HeapFrame frame) {
+        return frame != null && DUMP_CLASS.equals(frame.getClassName())
+                && (DUMP_METHOD.equals(frame.getMethodName()) || SNAPSHOT_METHOD.equals(frame.getMethodName()));
+    }
+
+    public LinkedHashMap<HeapFrame, List<Long>> filterRoots(List<HeapFrame> frames) {
+        LinkedHashMap<HeapFrame, List<Long>> result = new LinkedHashMap<>();
+        for (HeapFrame frame : frames) {
             // Include any frame which has a root mapping
             if (roots.containsKey(frame)) {
                 result.put(frame, roots.get(frame));
@@ -71,4 +537,3 @@ public class RootSnapshot {
         return result;
     }
 }
-
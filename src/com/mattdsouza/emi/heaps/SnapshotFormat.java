@@ -0,0 +1,24 @@
+package com.mattdsouza.emi.heaps;
+
+// Layout of .snap files, a compact cache of the part of a heap dump which HeapDiffer looks at. They are written by
+// SnapshotWriter (from a heap dump) and by HeapDumper.snapshot (directly from the running program); HeapDumper is
+// built into its own library, so this class must only depend on the JDK.
+//   header:   magic "EMISNAP1", u4 identifier size
+//   objects:  hprof heap dump sub-records (INSTANCE_DUMP, OBJ_ARRAY_DUMP, PRIM_ARRAY_DUMP) of every object reachable
+//             from the roots of the main thread's frames, sorted by id
+//   metadata: u4 class count, then per class: id, UTF name, super id, u2 field count, then per field: UTF name, u1 type;
+//             u4 frame count (the main thread's trace), then per frame: UTF class name, method name, signature,
+//             boolean + UTF source file, u4 line, boolean has roots, then if so: u4 count and the root ids
+//   index:    (u8 id, u8 offset) of every BLOCK-th object
+//   trailer:  u8 metadata offset, u8 index offset, u8 index entry count
+// Ids are written as u8 in the metadata and index, and with the dump's identifier size in the object records. Numbers
+// are big-endian and strings are in DataOutput's modified UTF-8.
+final class SnapshotFormat {
+    static final byte[] MAGIC = { 'E', 'M', 'I', 'S', 'N', 'A', 'P', '1' };
+    static final int HEADER_SIZE = MAGIC.length + 4;
+    static final int TRAILER_SIZE = 3 * 8;
+    // Objects per entry of the sparse index.
+    static final int BLOCK = 64;
+
+    private SnapshotFormat() {}
+}
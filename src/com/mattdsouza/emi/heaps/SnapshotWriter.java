@@ -0,0 +1,198 @@
+package com.mattdsouza.emi.heaps;
+
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// Saves a RootSnapshot in the .snap format (see SnapshotFormat). Only objects reachable from the main thread's frame
+// roots are kept, since those are all HeapDiffer can reach.
+public class SnapshotWriter {
+    private final RootSnapshot snapshot;
+    private final MappedFile file;
+    private final int idSize;
+
+    // Objects kept so far (as keys), and the breadth-first queue which reaches them.
+    private final LongLongMap reached = new LongLongMap();
+    private long[] queue = new long[1024];
+    private int queueHead;
+    private int queueTail;
+
+    private SnapshotWriter(RootSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.file = snapshot.getFile();
+        this.idSize = snapshot.idSize();
+    }
+
+    // Converts a heap dump to a .snap file.
+    public static void write(String hprofFile, Path snapFile) throws IOException {
+        try (RootSnapshot snapshot = RootSnapshot.fromFile(hprofFile)) {
+            write(snapshot, snapFile);
+        }
+    }
+
+    public static void write(RootSnapshot snapshot, Path snapFile) throws IOException {
+        // Write next to the destination and move it in place, so readers never see a partial file.
+        Path temporary = Files.createTempFile(snapFile.toAbsolutePath().getParent(), snapFile.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                new SnapshotWriter(snapshot).write(output);
+            }
+            Files.move(temporary, snapFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        CommandLine options = parseOptions(args);
+        write(options.getOptionValue("dump"), Paths.get(options.getOptionValue("output")));
+    }
+
+    private void write(DataOutputStream output) throws IOException {
+        output.write(SnapshotFormat.MAGIC);
+        output.writeInt(idSize);
+
+        HeapFrame[] trace = snapshot.findMainStackTrace();
+        for (HeapFrame frame : trace) {
+            List<Long> frameRoots = snapshot.roots.get(frame);
+            if (frameRoots != null) {
+                for (long root : frameRoots) {
+                    reach(root);
+                }
+            }
+        }
+
+        while (queueHead < queueTail) {
+            long id = queue[queueHead++];
+            HeapObject object = snapshot.getObj(id);
+            if (object instanceof HeapInstance) {
+                HeapInstance instance = (HeapInstance) object;
+                ClassLayout layout = instance.getLayout();
+                for (int i = 0; i < layout.size(); i++) {
+                    if (layout.isReference(i)) {
+                        reach(instance.readSlot(layout, i));
+                    }
+                }
+            } else if (object instanceof HeapObjectArray) {
+                HeapObjectArray array = (HeapObjectArray) object;
+                for (int i = 0; i < array.getLength(); i++) {
+                    reach(array.getElement(i));
+                }
+            }
+        }
+
+        // Objects, sorted by id, recording the offset of the first object of each block for the sparse index.
+        // DataOutputStream.size() overflows past 2GB, so offsets are tracked here rather than taken from the stream.
+        long[] ids = Arrays.copyOf(queue, queueTail);
+        Arrays.sort(ids);
+        long[] blockOffsets = new long[(ids.length + SnapshotFormat.BLOCK - 1) / SnapshotFormat.BLOCK];
+        long offset = SnapshotFormat.HEADER_SIZE;
+        for (int i = 0; i < ids.length; i++) {
+            if (i % SnapshotFormat.BLOCK == 0) {
+                blockOffsets[i / SnapshotFormat.BLOCK] = offset;
+            }
+            long pos = snapshot.getOffset(ids[i]);
+            long size = snapshot.recordSize(pos);
+            file.copyTo(pos, size, output);
+            offset += size;
+        }
+
+        long metadataOffset = offset;
+        long indexOffset = metadataOffset + writeMetadata(output, trace);
+        for (int i = 0; i < blockOffsets.length; i++) {
+            output.writeLong(ids[i * SnapshotFormat.BLOCK]);
+            output.writeLong(blockOffsets[i]);
+        }
+
+        output.writeLong(metadataOffset);
+        output.writeLong(indexOffset);
+        output.writeLong(blockOffsets.length);
+    }
+
+    // Returns the number of bytes written.
+    private int writeMetadata(DataOutputStream output, HeapFrame[] trace) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream metadata = new DataOutputStream(bytes);
+
+        Collection<HeapClass> classes = snapshot.getClasses();
+        metadata.writeInt(classes.size());
+        for (HeapClass cls : classes) {
+            metadata.writeLong(cls.id);
+            metadata.writeUTF(cls.name);
+            metadata.writeLong(cls.superId);
+            metadata.writeShort(cls.fieldNames.length);
+            for (int i = 0; i < cls.fieldNames.length; i++) {
+                metadata.writeUTF(cls.fieldNames[i] == null ? "" : cls.fieldNames[i]);
+                metadata.writeByte(cls.fieldTypes[i]);
+            }
+        }
+
+        metadata.writeInt(trace.length);
+        for (HeapFrame frame : trace) {
+            metadata.writeUTF(frame.getClassName());
+            metadata.writeUTF(frame.getMethodName());
+            metadata.writeUTF(frame.getMethodSignature());
+            metadata.writeBoolean(frame.getSourceFile() != null);
+            if (frame.getSourceFile() != null) {
+                metadata.writeUTF(frame.getSourceFile());
+            }
+            metadata.writeInt(frame.getLineNumber());
+            List<Long> frameRoots = snapshot.roots.get(frame);
+            metadata.writeBoolean(frameRoots != null);
+            if (frameRoots != null) {
+                metadata.writeInt(frameRoots.size());
+                for (long root : frameRoots) {
+                    metadata.writeLong(root);
+                }
+            }
+        }
+
+        metadata.flush();
+        bytes.writeTo(output);
+        return bytes.size();
+    }
+
+    // Schedules an object to be written, if it is in the dump and hasn't been reached yet.
+    private void reach(long id) {
+        if (id == 0 || reached.containsKey(id)) {
+            return;
+        }
+        if (snapshot.getOffset(id) < 0) {
+            // Class objects and objects missing from the dump have no record to copy.
+            return;
+        }
+        reached.put(id, 1);
+        if (queueTail == queue.length) {
+            queue = Arrays.copyOf(queue, queue.length * 2);
+        }
+        queue[queueTail++] = id;
+    }
+
+    static CommandLine parseOptions(String[] args) {
+        Options options = new Options();
+
+        Option dump = new Option("d", "dump", true, "Path to heap dump");
+        dump.setRequired(true);
+        options.addOption(dump);
+
+        Option output = new Option("o", "output", true, "Path to write the snapshot (.snap) to");
+        output.setRequired(true);
+        options.addOption(output);
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        try {
+            return parser.parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp(SnapshotWriter.class.getName(), options);
+            System.exit(1);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,57 @@
+package com.mattdsouza.emi.heaps;
+
+// Read-only ObjectOffsets for a file whose object records are sorted by id, searched in place. The file has a sparse
+// index with the (id, offset) of every SnapshotFormat.BLOCK-th record: a lookup binary-searches the index for the block which could
+// hold the id, then scans the block's records.
+class SortedObjectIndex implements ObjectOffsets {
+    private final MappedFile file;
+    private final int idSize;
+    private final long objectsEnd;
+    private final long indexStart;
+    private final long count;
+
+    SortedObjectIndex(MappedFile file, int idSize, long objectsEnd, long indexStart, long count) {
+        this.file = file;
+        this.idSize = idSize;
+        this.objectsEnd = objectsEnd;
+        this.indexStart = indexStart;
+        this.count = count;
+    }
+
+    // The index is part of the snapshot's file, which the snapshot closes.
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public long get(long id) {
+        // Find the last block starting at or before the id.
+        long low = 0;
+        long high = count - 1;
+        long block = -1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            if (file.u8(indexStart + middle * 16) <= id) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (block < 0) {
+            return -1;
+        }
+
+        long pos = file.u8(indexStart + block * 16 + 8);
+        for (int i = 0; i < SnapshotFormat.BLOCK && pos < objectsEnd; i++) {
+            long recordId = file.id(pos + 1, idSize);
+            if (recordId == id) {
+                return pos;
+            } else if (recordId > id) {
+                return -1;
+            }
+            pos += RootSnapshot.recordSize(file, pos, idSize);
+        }
+        return -1;
+    }
+}
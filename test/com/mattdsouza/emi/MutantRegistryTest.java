@@ -0,0 +1,120 @@
+package com.mattdsouza.emi;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Round trips of mutants through eviction: a mutant whose recipe was checked to generate its objects again is evicted
+// and regenerated byte for byte; a mutant whose recipe doesn't keeps its objects.
+public class MutantRegistryTest {
+    // The class the mutants mutate, copied into the registry's seed.
+    static class Fixture {
+        static int sum(int[] values) {
+            int total = 0;
+            for (int value : values) {
+                if (value > 0) {
+                    total += value;
+                }
+            }
+            return total;
+        }
+    }
+
+    private static final String FIXTURE = Fixture.class.getName();
+    private static final String FIXTURE_FILE = FIXTURE.replace('.', '/') + ".class";
+    private static final String METHOD = "sum([I)I";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MutantRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        Path root = folder.newFolder("registry").toPath();
+        Files.createDirectories(root.resolve("mutants"));
+        Files.createDirectories(root.resolve("support").resolve("jar"));
+        Path fixture = root.resolve("seed").resolve(FIXTURE_FILE);
+        Files.createDirectories(fixture.getParent());
+        try (InputStream input = Fixture.class.getClassLoader().getResourceAsStream(FIXTURE_FILE)) {
+            Files.copy(input, fixture);
+        }
+        registry = new MutantRegistry(root.toString());
+    }
+
+    @Test
+    public void evictedMutantIsRegeneratedIdentically() throws Exception {
+        MutationPlan plan = plan(42);
+        stage("m1", plan);
+        assertTrue(commit("m1", plan));
+        byte[] mutated = Files.readAllBytes(registry.getMutant("m1").resolve(FIXTURE_FILE));
+        assertFalse(Arrays.equals(Files.readAllBytes(registry.getSeed().resolve(FIXTURE_FILE)), mutated));
+
+        assertEquals(1, registry.evict(Collections.emptyList()));
+        assertFalse(Files.exists(registry.getRoot().resolve("mutants").resolve("m1")));
+
+        assertArrayEquals(mutated, Files.readAllBytes(registry.getMutant("m1").resolve(FIXTURE_FILE)));
+    }
+
+    @Test
+    public void mutantWhichDoesNotRegenerateIsKept() throws Exception {
+        // Commit the mutant of one seed with the recipe of another.
+        MutationPlan plan = plan(42);
+        stage("m2", plan(43));
+        assertFalse(commit("m2", plan));
+        byte[] mutated = Files.readAllBytes(registry.getMutant("m2").resolve(FIXTURE_FILE));
+
+        assertEquals(0, registry.evict(Collections.emptyList()));
+
+        assertArrayEquals(mutated, Files.readAllBytes(registry.getMutant("m2").resolve(FIXTURE_FILE)));
+    }
+
+    @Test
+    public void hotMutantIsKept() throws Exception {
+        MutationPlan plan = plan(42);
+        stage("m3", plan);
+        assertTrue(commit("m3", plan));
+
+        assertEquals(0, registry.evict(Collections.singletonList("m3")));
+        assertTrue(Files.exists(registry.getRoot().resolve("mutants").resolve("m3").resolve(FIXTURE_FILE)));
+    }
+
+    // A TRUE_GUARD of the fixture's first guardable statement, whose guard draws from the seed.
+    private MutationPlan plan(long seed) throws IOException {
+        MutationSites sites = new MutationSites();
+        AsmMutator.index(sites, registry.getSeed().toString(), Collections.singleton(FIXTURE));
+        for (MutationSites.Site site : sites.sites(FIXTURE, METHOD)) {
+            if (site.kind.guardable()) {
+                MutationPlan.Target target =
+                        new MutationPlan.Target(FIXTURE, METHOD, MutationPlan.Mutation.TRUE_GUARD, site);
+                return new MutationPlan(seed, Collections.singletonList(target));
+            }
+        }
+        throw new AssertionError("No guardable site in " + FIXTURE + "." + METHOD);
+    }
+
+    private void stage(String mutant, MutationPlan plan) throws Exception {
+        List<Path> outputPaths = Collections.singletonList(registry.createMutant(mutant));
+        AsmMutator.writeMutants(registry.getSeed().toString(), Collections.singletonList(plan), outputPaths);
+    }
+
+    // Commits a staged mutant of the seed with the plan's recipe, checked as MutantGenerator does. Returns whether the
+    // recipe generated it again.
+    private boolean commit(String mutant, MutationPlan plan) throws Exception {
+        MutantRegistry.Recipe recipe = plan.toRecipe("asm");
+        boolean reproducible = registry.reproduces(mutant, "seed", recipe);
+        registry.commitMutant(mutant, "seed", recipe, reproducible);
+        return reproducible;
+    }
+}
@@ -0,0 +1,57 @@
+package com.mattdsouza.emi.heaps;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Diffs of compact snapshots taken in this JVM, each holding one object array.
+public class HeapDifferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        System.clearProperty(HeapDumper.DUMP_FILE_PROP);
+    }
+
+    @Test
+    public void arraysOfTheSameLengthMatch() throws Exception {
+        assertTrue(diff(new Object[2], new Object[2]).isEmpty());
+    }
+
+    @Test
+    public void longerFirstArrayIsReported() throws Exception {
+        assertLengthsReported(diff(new Object[3], new Object[2]), 3, 2);
+    }
+
+    @Test
+    public void longerSecondArrayIsReported() throws Exception {
+        assertLengthsReported(diff(new Object[2], new Object[3]), 2, 3);
+    }
+
+    private static void assertLengthsReported(List<String> report, int firstLength, int secondLength) {
+        assertFalse(report.isEmpty());
+        String expected = String.format("have different lengths: %d vs. %d", firstLength, secondLength);
+        assertTrue(String.join("\n", report), report.stream().anyMatch(line -> line.contains(expected)));
+    }
+
+    // The full diff of a snapshot of each array, taken from the same frame.
+    private List<String> diff(Object[] first, Object[] second) throws Exception {
+        String firstFile = snapshot("first.snap", first);
+        String secondFile = snapshot("second.snap", second);
+        return HeapDiffer.fullDiff(firstFile, secondFile, HeapIgnorePolicy.defaults(), 1);
+    }
+
+    private String snapshot(String name, Object[] array) throws Exception {
+        String file = folder.getRoot().toPath().resolve(name).toString();
+        System.setProperty(HeapDumper.DUMP_FILE_PROP, file);
+        // One root, the array itself (rather than its elements as varargs).
+        HeapDumper.snapshot((Object) array);
+        return file;
+    }
+}